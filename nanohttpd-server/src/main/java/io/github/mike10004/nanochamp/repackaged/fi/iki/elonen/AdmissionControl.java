@@ -0,0 +1,291 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits what each client, identified by its remote IP address, may use of
+ * the server, so that one misbehaving client cannot occupy every worker.
+ * <p>
+ * A client may hold a limited number of connections at once; further
+ * connections are answered with 503 as soon as they are accepted. Requests
+ * are limited by a token bucket per client; a request beyond the limit is
+ * answered with 429 as soon as its first bytes arrive, before the header is
+ * parsed, and its connection is closed. The 503 response is written from
+ * prepared bytes; the 429 response tells the client in its {@code Retry-After}
+ * header how long until its next request will be admitted.
+ * </p>
+ * <p>
+ * An instance keeps the state of the clients it has seen, so an instance set
+ * on several servers applies its limits to them together. Clients that hold
+ * no connection and have a full bucket are forgotten.
+ * </p>
+ */
+public final class AdmissionControl {
+
+    static final byte[] SERVICE_UNAVAILABLE = bytes("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+
+    /**
+     * Shortest time between two sweeps of forgettable clients.
+     */
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Number of clients above which forgettable clients are swept.
+     */
+    private static final int SWEEP_THRESHOLD = 1024;
+
+    /**
+     * Marks a client that has been swept; it must be looked up again.
+     */
+    private static final int RETIRED = -1;
+
+    private final int maxConnectionsPerClient;
+
+    private final double requestsPerSecond;
+
+    private final int burst;
+
+    /**
+     * Time the bucket takes to regain one token, or 0 if requests are not
+     * limited.
+     */
+    private final long intervalNanos;
+
+    /**
+     * How far ahead of the present a client's next token may be scheduled
+     * while a request is still admitted.
+     */
+    private final long toleranceNanos;
+
+    private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong rejectedConnections = new AtomicLong();
+
+    private final AtomicLong rejectedRequests = new AtomicLong();
+
+    private AdmissionControl(Builder b) {
+        this.maxConnectionsPerClient = b.maxConnectionsPerClient;
+        this.requestsPerSecond = b.requestsPerSecond;
+        this.burst = b.burst;
+        this.intervalNanos = b.requestsPerSecond > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / b.requestsPerSecond)) : 0;
+        this.toleranceNanos = this.intervalNanos * (b.burst - 1);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return maximum number of connections a client may hold at once, or 0
+     *         for no limit
+     */
+    public int getMaxConnectionsPerClient() {
+        return maxConnectionsPerClient;
+    }
+
+    /**
+     * @return sustained number of requests per second a client may send, or
+     *         0 for no limit
+     */
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * @return number of requests a client may send at once after being idle
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Admits a connection from a client unless the client already holds the
+     * maximum number of connections. An admitted connection must be released
+     * with {@link #releaseConnection(String)} when it closes.
+     *
+     * @return true if the connection was admitted
+     */
+    public boolean tryAcquireConnection(String client) {
+        while (true) {
+            Client state = this.clients.computeIfAbsent(client, c -> new Client());
+            int connections = state.connections.get();
+            if (connections == RETIRED) {
+                continue;
+            }
+            if (this.maxConnectionsPerClient > 0 && connections >= this.maxConnectionsPerClient) {
+                this.rejectedConnections.incrementAndGet();
+                return false;
+            }
+            if (state.connections.compareAndSet(connections, connections + 1)) {
+                if (connections == 0) {
+                    sweepIfDue();
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a connection admitted by {@link #tryAcquireConnection(String)}.
+     */
+    public void releaseConnection(String client) {
+        Client state = this.clients.get(client);
+        if (state != null) {
+            state.connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes a token from the client's bucket.
+     *
+     * @return true if the request was admitted
+     */
+    public boolean tryAcquireRequest(String client) {
+        return acquireRequest(client) == 0;
+    }
+
+    /**
+     * Takes a token from the client's bucket if it holds one.
+     *
+     * @return 0 if the request was admitted, otherwise the number of
+     *         nanoseconds until the bucket regains a token
+     */
+    public long acquireRequest(String client) {
+        if (this.intervalNanos == 0) {
+            return 0;
+        }
+        AtomicLong theoreticalArrival = this.clients.computeIfAbsent(client, c -> new Client()).theoreticalArrival;
+        while (true) {
+            long now = System.nanoTime();
+            long tat = theoreticalArrival.get();
+            long start = tat - now > 0 ? tat : now;
+            long wait = start - now - this.toleranceNanos;
+            if (wait > 0) {
+                this.rejectedRequests.incrementAndGet();
+                return wait;
+            }
+            if (theoreticalArrival.compareAndSet(tat, start + this.intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return number of connections the client holds
+     */
+    public int getConnectionCount(String client) {
+        Client state = this.clients.get(client);
+        return state == null ? 0 : Math.max(0, state.connections.get());
+    }
+
+    /**
+     * @return number of clients being tracked
+     */
+    public int getClientCount() {
+        return this.clients.size();
+    }
+
+    /**
+     * @return number of connections refused at accept time
+     */
+    public long getRejectedConnectionCount() {
+        return this.rejectedConnections.get();
+    }
+
+    /**
+     * @return number of requests refused because of the rate limit
+     */
+    public long getRejectedRequestCount() {
+        return this.rejectedRequests.get();
+    }
+
+    private void sweepIfDue() {
+        long last = this.lastSweep.get();
+        long now = System.nanoTime();
+        if (this.clients.size() > SWEEP_THRESHOLD && now - last >= SWEEP_INTERVAL_NANOS && this.lastSweep.compareAndSet(last, now)) {
+            this.clients.forEach((client, state) -> {
+                if (state.theoreticalArrival.get() - now <= 0 && state.connections.compareAndSet(0, RETIRED)) {
+                    this.clients.remove(client, state);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns a 429 response whose {@code Retry-After} header is the given
+     * wait rounded up to whole seconds.
+     */
+    static byte[] tooManyRequests(long waitNanos) {
+        long seconds = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        return bytes("HTTP/1.1 429 Too Many Requests\r\nContent-Length: 0\r\nRetry-After: " + seconds + "\r\nConnection: close\r\n\r\n");
+    }
+
+    private static byte[] bytes(String response) {
+        return response.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final class Client {
+
+        /**
+         * Open connections, or {@link #RETIRED}.
+         */
+        final AtomicInteger connections = new AtomicInteger();
+
+        /**
+         * Time at which the bucket is full again, as a
+         * {@link System#nanoTime()} value.
+         */
+        final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    public static final class Builder {
+
+        private int maxConnectionsPerClient;
+
+        private double requestsPerSecond;
+
+        private int burst = 1;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the maximum number of connections a client may hold at once;
+         * 0 means no limit.
+         */
+        public Builder maxConnectionsPerClient(int maxConnections) {
+            if (maxConnections < 0) {
+                throw new IllegalArgumentException("maxConnections " + maxConnections);
+            }
+            this.maxConnectionsPerClient = maxConnections;
+            return this;
+        }
+
+        /**
+         * Limits each client to a sustained rate of requests, with bursts of
+         * up to the given number of requests after an idle period.
+         */
+        public Builder requestRate(double requestsPerSecond, int burst) {
+            if (!(requestsPerSecond > 0)) {
+                throw new IllegalArgumentException("requestsPerSecond " + requestsPerSecond);
+            }
+            if (burst < 1) {
+                throw new IllegalArgumentException("burst " + burst);
+            }
+            this.requestsPerSecond = requestsPerSecond;
+            this.burst = burst;
+            return this;
+        }
+
+        public AdmissionControl build() {
+            return new AdmissionControl(this);
+        }
+    }
+}
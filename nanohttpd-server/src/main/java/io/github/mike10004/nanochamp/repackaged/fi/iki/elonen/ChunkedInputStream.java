@@ -0,0 +1,168 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.RequestBodyException;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Decodes a request body sent with {@code Transfer-Encoding: chunked}. Chunk
+ * data is passed through as it arrives; chunk extensions and trailers are
+ * read and discarded. Closing the stream does not close the underlying
+ * stream, which belongs to the connection.
+ */
+class ChunkedInputStream extends InputStream implements RequestBody {
+
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final InputStream in;
+
+    private final long maxBodySize;
+
+    private long chunkRemaining;
+
+    private long total;
+
+    private boolean started;
+
+    private boolean eof;
+
+    /**
+     * Set when the body turned out to be malformed; the framing of the
+     * connection is then lost.
+     */
+    private boolean failed;
+
+    /**
+     * @param maxBodySize
+     *            maximum total size of the chunk data, or -1 for no limit
+     */
+    ChunkedInputStream(InputStream in, long maxBodySize) {
+        this.in = in;
+        this.maxBodySize = maxBodySize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            if (chunkRemaining == 0 && !nextChunk()) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (n < 0) {
+                throw new EOFException("request body ended inside a chunk");
+            }
+            chunkRemaining -= n;
+            return n;
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return eof ? 0 : (int) Math.min(in.available(), chunkRemaining);
+    }
+
+    @Override
+    public long getRemaining() {
+        return eof ? 0 : -1;
+    }
+
+    @Override
+    public boolean discardRemaining(long limit) throws IOException {
+        if (failed) {
+            return false;
+        }
+        byte[] buf = new byte[4096];
+        long discarded = 0;
+        int n;
+        while ((n = read(buf, 0, buf.length)) > 0) {
+            discarded += n;
+            if (discarded > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Reads the next chunk header.
+     *
+     * @return false if the last chunk has been read
+     */
+    private boolean nextChunk() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (failed) {
+            throw new IOException("chunked request body is unreadable after an earlier error");
+        }
+        if (started && !readLine().isEmpty()) {
+            throw new RequestBodyException(Response.Status.BAD_REQUEST, "BAD REQUEST: chunk data longer than chunk size");
+        }
+        started = true;
+        String line = readLine();
+        int semicolon = line.indexOf(';');
+        String size = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+        try {
+            chunkRemaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            chunkRemaining = -1;
+        }
+        if (chunkRemaining < 0) {
+            throw new RequestBodyException(Response.Status.BAD_REQUEST, "BAD REQUEST: invalid chunk size " + size);
+        }
+        total += chunkRemaining;
+        if (maxBodySize >= 0 && total > maxBodySize) {
+            throw new RequestBodyException(Response.Status.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: request body exceeds " + maxBodySize + " bytes");
+        }
+        if (chunkRemaining == 0) {
+            // skip the trailer
+            while (!readLine().isEmpty()) {
+                // discard
+            }
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(16);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("request body ended inside a chunk header");
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new RequestBodyException(Response.Status.BAD_REQUEST, "BAD REQUEST: chunk header too long");
+            }
+            line.write(b);
+        }
+        int length = line.size();
+        byte[] bytes = line.toByteArray();
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+}
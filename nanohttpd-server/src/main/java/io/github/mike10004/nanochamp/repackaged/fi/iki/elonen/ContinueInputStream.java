@@ -0,0 +1,70 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Connection input for a request sent with {@code Expect: 100-continue}.
+ * The interim {@code 100 Continue} response is written when the body is
+ * first read, so a handler that answers without reading the body never
+ * invites the client to send it. Closing this stream does not close the
+ * connection.
+ */
+class ContinueInputStream extends FilterInputStream {
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+
+    private boolean sent;
+
+    ContinueInputStream(InputStream in, OutputStream out) {
+        super(in);
+        this.out = out;
+    }
+
+    /**
+     * @return whether the interim response has been sent
+     */
+    boolean isSent() {
+        return sent;
+    }
+
+    private void sendContinue() throws IOException {
+        if (!sent) {
+            sent = true;
+            out.write(CONTINUE);
+            out.flush();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        sendContinue();
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        sendContinue();
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        sendContinue();
+        return in.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+}
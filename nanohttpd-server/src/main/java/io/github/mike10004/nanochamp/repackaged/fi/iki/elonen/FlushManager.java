@@ -1,5 +1,8 @@
 package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 public interface FlushManager {
 
     interface FlushTicket extends AutoCloseable {
@@ -9,6 +12,44 @@ public interface FlushManager {
 
     FlushTicket open();
 
+    /**
+     * Opens a ticket tagged with the route or handler that produced the
+     * response. Managers that do not track tags open an untagged ticket.
+     *
+     * @param tag
+     *            the tag, or null for an untagged ticket
+     */
+    default FlushTicket open(String tag) {
+        return open();
+    }
+
     void flush() throws InterruptedException;
 
+    /**
+     * Waits until the tickets open at the time of the call are closed, or
+     * until the timeout elapses. The default implementation waits for
+     * {@link #flush()} on another thread and interrupts it on timeout;
+     * managers that can wait with a timeout themselves should override it.
+     *
+     * @return true if the tickets were closed
+     */
+    default boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        final CountDownLatch flushed = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                flush();
+                flushed.countDown();
+            } catch (InterruptedException ignore) {
+                // timed out
+            }
+        }, "FlushManager Timed Flush");
+        waiter.setDaemon(true);
+        waiter.start();
+        try {
+            return flushed.await(timeout, unit);
+        } finally {
+            waiter.interrupt();
+        }
+    }
+
 }
@@ -0,0 +1,189 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Host names of remote addresses, shared by all connections of a server.
+ * Reverse lookups can be slow when a PTR record is missing, so each address
+ * is looked up at most once per time-to-live, concurrent requests for the
+ * same address wait for the same lookup, and lookups can be started in the
+ * background before the name is needed. The number of entries is bounded.
+ * A caller waits a bounded time for a lookup started by someone else and
+ * then uses the IP address; failed lookups are not cached.
+ */
+class HostNameCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final int LOOKUP_THREADS = 2;
+
+    /**
+     * Prefetches waiting for a lookup thread; further prefetches are dropped
+     * and the name is looked up when it is asked for.
+     */
+    static final int MAX_QUEUED_PREFETCHES = 64;
+
+    /**
+     * Longest time a caller waits for a lookup running on another thread.
+     */
+    static final long MAX_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private static final class Entry {
+
+        final CompletableFuture<String> name = new CompletableFuture<String>();
+
+        /**
+         * Set by the thread that performs the lookup.
+         */
+        final AtomicBoolean started = new AtomicBoolean();
+
+        final long expiresAt;
+
+        Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<InetAddress, Entry> entries = new ConcurrentHashMap<InetAddress, Entry>();
+
+    private final int maxEntries;
+
+    private final long ttlMillis;
+
+    private final ThreadPoolExecutor lookupExecutor;
+
+    HostNameCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_PREFETCHES), r -> {
+            Thread t = new Thread(r, "NanoHttpd Host Name Lookup");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        this.lookupExecutor = executor;
+    }
+
+    /**
+     * Returns the host name of an address, looking it up on the calling
+     * thread unless a lookup is cached or already running. A running lookup
+     * is waited for at most {@link #MAX_WAIT_MILLIS}, after which the IP
+     * address is returned.
+     */
+    String getHostName(InetAddress address) {
+        Entry entry = entries.get(address);
+        if (entry == null || isExpired(entry)) {
+            entry = install(address, entry, new Entry(System.currentTimeMillis() + ttlMillis));
+        }
+        // takes over a prefetch still waiting in the queue
+        lookup(address, entry);
+        try {
+            return entry.name.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // fall through to the address
+        }
+        return address.getHostAddress();
+    }
+
+    /**
+     * Starts a background lookup of an address that is not cached yet.
+     */
+    void prefetch(final InetAddress address) {
+        Entry entry = entries.get(address);
+        if (entry != null && !isExpired(entry)) {
+            return;
+        }
+        final Entry fresh = new Entry(System.currentTimeMillis() + ttlMillis);
+        if (install(address, entry, fresh) == fresh) {
+            lookupExecutor.execute(() -> lookup(address, fresh));
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int getQueuedPrefetchCount() {
+        return lookupExecutor.getQueue().size();
+    }
+
+    /**
+     * Replaces a missing or expired entry.
+     *
+     * @return the entry now cached for the address
+     */
+    private Entry install(InetAddress address, Entry expected, Entry fresh) {
+        if (expected == null) {
+            evictIfFull();
+            Entry existing = entries.putIfAbsent(address, fresh);
+            return existing == null ? fresh : existing;
+        }
+        if (entries.replace(address, expected, fresh)) {
+            return fresh;
+        }
+        Entry current = entries.get(address);
+        return current == null ? install(address, null, fresh) : current;
+    }
+
+    private void evictIfFull() {
+        if (entries.size() < maxEntries) {
+            return;
+        }
+        for (Iterator<Map.Entry<InetAddress, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            if (isExpired(it.next().getValue())) {
+                it.remove();
+            }
+        }
+        Iterator<InetAddress> it = entries.keySet().iterator();
+        while (entries.size() >= maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return entry.expiresAt <= System.currentTimeMillis();
+    }
+
+    /**
+     * Looks up the name of an entry unless another thread has started to.
+     * A failed lookup completes the entry with the IP address and removes it
+     * from the cache.
+     */
+    private void lookup(InetAddress address, Entry entry) {
+        if (!entry.started.compareAndSet(false, true)) {
+            return;
+        }
+        String name;
+        try {
+            name = resolve(address);
+        } catch (UnknownHostException e) {
+            name = address.getHostAddress();
+        } catch (RuntimeException e) {
+            entries.remove(address, entry);
+            name = address.getHostAddress();
+        }
+        entry.name.complete(name);
+    }
+
+    String resolve(InetAddress address) throws UnknownHostException {
+        // a fresh instance, so the lookup is not skipped because the
+        // connection's InetAddress already holds a name
+        return InetAddress.getByAddress(address.getAddress()).getHostName();
+    }
+}
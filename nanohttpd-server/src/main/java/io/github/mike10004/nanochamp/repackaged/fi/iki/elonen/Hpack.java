@@ -0,0 +1,444 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression (RFC 7541) for the HTTP/2 engine.
+ * <p>
+ * The decoder implements the full specification, including the dynamic
+ * table and Huffman-coded strings. The encoder never adds entries to the
+ * dynamic table and never Huffman-codes strings, so it is stateless and
+ * may be shared by concurrent streams.
+ * </p>
+ */
+class Hpack {
+
+    private Hpack() {
+    }
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    /**
+     * Static table index of the first entry with a given name.
+     */
+    private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<String, Integer>();
+
+    /**
+     * Static table index of entries with a given name and value.
+     */
+    private static final Map<String, Integer> STATIC_FIELD_INDEX = new HashMap<String, Integer>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAME_INDEX.put(STATIC_TABLE[i][0], i + 1);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_FIELD_INDEX.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            }
+        }
+    }
+
+    /**
+     * Huffman codes from RFC 7541 Appendix B, indexed by symbol. The EOS
+     * symbol is not included because it never appears in a valid string.
+     */
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    private static final byte[] HUFFMAN_CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28,
+            28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28,
+            28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11,
+            10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6,
+            6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7,
+            8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6,
+            6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7,
+            7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23,
+            22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23,
+            23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21,
+            23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23,
+            20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25,
+            26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24,
+            21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23,
+            22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27,
+            27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    /**
+     * Huffman decoding tree. Each node occupies two slots, for bit 0 and bit
+     * 1. A positive slot value is the index of a child node; a negative value
+     * is the bitwise complement of a decoded symbol; zero means no code.
+     */
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    private static int[] buildHuffmanTree() {
+        int[] tree = new int[2 * 512];
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int node = 0;
+            for (int bit = HUFFMAN_CODE_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int slot = 2 * node + ((code >>> bit) & 1);
+                if (bit == 0) {
+                    tree[slot] = ~symbol;
+                } else {
+                    if (tree[slot] == 0) {
+                        tree[slot] = nodes++;
+                    }
+                    node = tree[slot];
+                }
+            }
+        }
+        return tree;
+    }
+
+    static class HpackException extends Exception {
+
+        private static final long serialVersionUID = 4386224519434215735L;
+
+        HpackException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Receives decoded header fields.
+     */
+    interface HeaderListener {
+
+        void header(String name, String value) throws HpackException;
+    }
+
+    /**
+     * Decodes header blocks. Instances hold the dynamic table of one
+     * connection and must decode the connection's header blocks in order.
+     */
+    static class Decoder {
+
+        private final int maxAllowedTableSize;
+
+        private final ArrayDeque<String[]> dynamicTable = new ArrayDeque<String[]>();
+
+        private int tableSize;
+
+        private int maxTableSize;
+
+        private byte[] block;
+
+        private int pos;
+
+        private int limit;
+
+        Decoder(int maxAllowedTableSize) {
+            this.maxAllowedTableSize = maxAllowedTableSize;
+            this.maxTableSize = maxAllowedTableSize;
+        }
+
+        void decode(byte[] block, int offset, int length, HeaderListener listener) throws HpackException {
+            this.block = block;
+            this.pos = offset;
+            this.limit = offset + length;
+            while (pos < limit) {
+                int b = block[pos] & 0xFF;
+                if ((b & 0x80) != 0) {
+                    String[] field = get(readInt(7));
+                    listener.header(field[0], field[1]);
+                } else if ((b & 0x40) != 0) {
+                    String[] field = readLiteral(6);
+                    add(field);
+                    listener.header(field[0], field[1]);
+                } else if ((b & 0x20) != 0) {
+                    int size = readInt(5);
+                    if (size > maxAllowedTableSize) {
+                        throw new HpackException("table size update exceeds limit: " + size);
+                    }
+                    maxTableSize = size;
+                    evict();
+                } else {
+                    String[] field = readLiteral(4);
+                    listener.header(field[0], field[1]);
+                }
+            }
+            this.block = null;
+        }
+
+        private String[] readLiteral(int prefixBits) throws HpackException {
+            int index = readInt(prefixBits);
+            String name = index == 0 ? readString() : get(index)[0];
+            return new String[] {
+                    name,
+                    readString()
+            };
+        }
+
+        private String[] get(int index) throws HpackException {
+            if (index <= 0) {
+                throw new HpackException("invalid index " + index);
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (dynamicIndex >= dynamicTable.size()) {
+                throw new HpackException("invalid index " + index);
+            }
+            Iterator<String[]> it = dynamicTable.iterator();
+            for (int i = 0; i < dynamicIndex; i++) {
+                it.next();
+            }
+            return it.next();
+        }
+
+        private void add(String[] field) {
+            int size = entrySize(field);
+            if (size > maxTableSize) {
+                dynamicTable.clear();
+                tableSize = 0;
+                return;
+            }
+            dynamicTable.addFirst(field);
+            tableSize += size;
+            evict();
+        }
+
+        private void evict() {
+            while (tableSize > maxTableSize) {
+                tableSize -= entrySize(dynamicTable.removeLast());
+            }
+        }
+
+        private static int entrySize(String[] field) {
+            return field[0].length() + field[1].length() + 32;
+        }
+
+        private int readInt(int prefixBits) throws HpackException {
+            int mask = (1 << prefixBits) - 1;
+            int value = block[pos++] & mask;
+            if (value < mask) {
+                return value;
+            }
+            int shift = 0;
+            int b;
+            do {
+                if (pos >= limit) {
+                    throw new HpackException("truncated integer");
+                }
+                b = block[pos++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                shift += 7;
+                if (shift > 28 || value < 0) {
+                    throw new HpackException("integer overflow");
+                }
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private String readString() throws HpackException {
+            if (pos >= limit) {
+                throw new HpackException("truncated string");
+            }
+            boolean huffman = (block[pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > limit - pos) {
+                throw new HpackException("truncated string");
+            }
+            String s = huffman ? decodeHuffman(block, pos, length) : new String(block, pos, length, StandardCharsets.ISO_8859_1);
+            pos += length;
+            return s;
+        }
+    }
+
+    static String decodeHuffman(byte[] data, int offset, int length) throws HpackException {
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                int next = HUFFMAN_TREE[2 * node + ((b >>> bit) & 1)];
+                if (next < 0) {
+                    sb.append((char) ~next);
+                    node = 0;
+                    depth = 0;
+                } else if (next == 0) {
+                    throw new HpackException("invalid Huffman code");
+                } else {
+                    node = next;
+                    depth++;
+                }
+            }
+        }
+        // the final partial code must be a prefix of EOS (all ones), shorter than a byte
+        if (depth > 7) {
+            throw new HpackException("invalid Huffman padding");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encodes header blocks using the static table and literals without
+     * indexing.
+     */
+    static class Encoder {
+
+        byte[] encode(List<Map.Entry<String, String>> headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+            for (Map.Entry<String, String> header : headers) {
+                String name = header.getKey();
+                String value = header.getValue();
+                Integer index = STATIC_FIELD_INDEX.get(name + '\0' + value);
+                if (index != null) {
+                    writeInt(out, 0x80, 7, index);
+                    continue;
+                }
+                Integer nameIndex = STATIC_NAME_INDEX.get(name);
+                if (nameIndex != null) {
+                    writeInt(out, 0x00, 4, nameIndex);
+                } else {
+                    out.write(0x00);
+                    writeString(out, name);
+                }
+                writeString(out, value);
+            }
+            return out.toByteArray();
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+            writeInt(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int firstByteFlags, int prefixBits, int value) {
+        int mask = (1 << prefixBits) - 1;
+        if (value < mask) {
+            out.write(firstByteFlags | value);
+            return;
+        }
+        out.write(firstByteFlags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
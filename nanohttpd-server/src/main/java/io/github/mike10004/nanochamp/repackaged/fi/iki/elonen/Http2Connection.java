@@ -0,0 +1,986 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.FlushManager.FlushTicket;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.HTTPSession;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.Method;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.Response;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.ResponseException;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFileManager;
+
+/**
+ * HTTP/2 connection engine (RFC 7540).
+ * <p>
+ * One instance serves one connection. The thread that calls {@link #run(int)}
+ * reads frames; each request stream is served on the server's HTTP/2 executor
+ * through the same {@link NanoHTTPD#serve(NanoHTTPD.IHTTPSession)} method as
+ * HTTP/1.1 requests, so many streams proceed concurrently over one connection.
+ * Outgoing data respects both the connection and the stream flow-control
+ * windows; incoming data is buffered per stream and the receive window is
+ * reopened as the handler consumes the request body.
+ * </p>
+ */
+class Http2Connection {
+
+    private static final Logger LOG = Logger.getLogger(Http2Connection.class.getName());
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Length of the part of the preface that looks like an HTTP/1 request
+     * header, which {@link HTTPSession} consumes before detecting HTTP/2.
+     */
+    static final int PREFACE_REQUEST_LINE_LENGTH = 18;
+
+    static final int MAX_CONCURRENT_STREAMS = 100;
+
+    private static final int TYPE_DATA = 0x0;
+
+    private static final int TYPE_HEADERS = 0x1;
+
+    private static final int TYPE_PRIORITY = 0x2;
+
+    private static final int TYPE_RST_STREAM = 0x3;
+
+    private static final int TYPE_SETTINGS = 0x4;
+
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+
+    private static final int TYPE_PING = 0x6;
+
+    private static final int TYPE_GOAWAY = 0x7;
+
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+
+    private static final int FLAG_ACK = 0x1;
+
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    private static final int FLAG_PADDED = 0x8;
+
+    private static final int FLAG_PRIORITY = 0x20;
+
+    static final int NO_ERROR = 0x0;
+
+    static final int PROTOCOL_ERROR = 0x1;
+
+    static final int INTERNAL_ERROR = 0x2;
+
+    static final int FLOW_CONTROL_ERROR = 0x3;
+
+    static final int STREAM_CLOSED = 0x5;
+
+    static final int FRAME_SIZE_ERROR = 0x6;
+
+    static final int REFUSED_STREAM = 0x7;
+
+    static final int CANCEL = 0x8;
+
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    private static final int MAX_HEADER_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Largest decoded header list accepted, counted as in RFC 7540 section
+     * 6.5.2: the lengths of each name and value plus 32 per field.
+     */
+    static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+
+    private static final int HEADER_FIELD_OVERHEAD = 32;
+
+    private final NanoHTTPD httpd;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    private final String remoteIp;
+
+    private final String remoteHostname;
+
+    private final InetAddress remoteAddress;
+
+    private final Executor executor;
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+
+    private final Object writeLock = new Object();
+
+    private final Object windowLock = new Object();
+
+    private final byte[] frameHeader = new byte[9];
+
+    /**
+     * Number of bytes of the current frame header read so far, kept across
+     * read timeouts.
+     */
+    private int frameHeaderRead;
+
+    /**
+     * Guarded by windowLock.
+     */
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * Guarded by windowLock.
+     */
+    private int initialStreamSendWindow = DEFAULT_WINDOW_SIZE;
+
+    private volatile int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    private volatile boolean closed;
+
+    private int lastStreamId;
+
+    private int headerBlockStreamId;
+
+    private boolean headerBlockEndStream;
+
+    private byte[] headerBlock = new byte[1024];
+
+    private int headerBlockLength;
+
+    Http2Connection(NanoHTTPD httpd, InputStream in, OutputStream out, String remoteIp, String remoteHostname, InetAddress remoteAddress) {
+        this.httpd = httpd;
+        this.in = in;
+        this.out = new BufferedOutputStream(out, DEFAULT_MAX_FRAME_SIZE + 9);
+        this.remoteIp = remoteIp;
+        this.remoteHostname = remoteHostname;
+        this.remoteAddress = remoteAddress;
+        this.executor = httpd.getHttp2Executor();
+    }
+
+    static class Http2Exception extends IOException {
+
+        private static final long serialVersionUID = -1915413787355498216L;
+
+        private final int errorCode;
+
+        Http2Exception(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * Serves the connection until the peer closes it or a connection error
+     * occurs.
+     *
+     * @param prefaceBytesRead
+     *            number of bytes of the client connection preface that have
+     *            already been consumed from the input
+     */
+    void run(int prefaceBytesRead) throws IOException {
+        byte[] preface = new byte[PREFACE.length - prefaceBytesRead];
+        readFully(preface, 0, preface.length);
+        for (int i = 0; i < preface.length; i++) {
+            if (preface[i] != PREFACE[prefaceBytesRead + i]) {
+                throw new IOException("invalid HTTP/2 connection preface");
+            }
+        }
+        writeSettings();
+        try {
+            while (readFrame()) {
+                // keep reading
+            }
+        } catch (Http2Exception e) {
+            LOG.log(Level.FINE, "HTTP/2 connection error", e);
+            goAway(e.errorCode);
+        } finally {
+            closed = true;
+            for (Stream stream : streams.values()) {
+                stream.abort();
+            }
+            synchronized (this.windowLock) {
+                this.windowLock.notifyAll();
+            }
+        }
+    }
+
+    private boolean readFrame() throws IOException {
+        try {
+            while (frameHeaderRead < 9) {
+                int r = this.in.read(frameHeader, frameHeaderRead, 9 - frameHeaderRead);
+                if (r < 0) {
+                    if (frameHeaderRead == 0) {
+                        return false;
+                    }
+                    throw new EOFException();
+                }
+                frameHeaderRead += r;
+            }
+        } catch (SocketTimeoutException e) {
+            if (streams.isEmpty()) {
+                goAway(NO_ERROR);
+                return false;
+            }
+            // resume the frame header where the read stopped
+            return true;
+        }
+        frameHeaderRead = 0;
+        int length = ((frameHeader[0] & 0xFF) << 16) | ((frameHeader[1] & 0xFF) << 8) | (frameHeader[2] & 0xFF);
+        int type = frameHeader[3] & 0xFF;
+        int flags = frameHeader[4] & 0xFF;
+        int streamId = readInt(frameHeader, 5) & 0x7FFFFFFF;
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "frame too large: " + length);
+        }
+        byte[] payload = new byte[length];
+        if (!readFully(payload, 0, length)) {
+            throw new EOFException();
+        }
+        if (headerBlockStreamId != 0 && type != TYPE_CONTINUATION) {
+            throw new Http2Exception(PROTOCOL_ERROR, "expected CONTINUATION");
+        }
+        switch (type) {
+            case TYPE_DATA:
+                onData(streamId, flags, payload);
+                break;
+            case TYPE_HEADERS:
+                onHeaders(streamId, flags, payload);
+                break;
+            case TYPE_CONTINUATION:
+                if (streamId == 0 || streamId != headerBlockStreamId) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "unexpected CONTINUATION");
+                }
+                appendHeaderBlock(payload, 0, length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    onHeaderBlock();
+                }
+                break;
+            case TYPE_RST_STREAM:
+                if (streamId == 0 || length != 4) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "invalid RST_STREAM");
+                }
+                Stream reset = streams.remove(streamId);
+                if (reset != null) {
+                    reset.abort();
+                    synchronized (this.windowLock) {
+                        this.windowLock.notifyAll();
+                    }
+                }
+                break;
+            case TYPE_SETTINGS:
+                onSettings(streamId, flags, payload);
+                break;
+            case TYPE_PING:
+                if (streamId != 0 || length != 8) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "invalid PING");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(TYPE_PING, FLAG_ACK, 0, payload, 0, 8);
+                }
+                break;
+            case TYPE_GOAWAY:
+                // the peer will open no more streams; let the ones in flight finish
+                break;
+            case TYPE_WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case TYPE_PUSH_PROMISE:
+                throw new Http2Exception(PROTOCOL_ERROR, "clients must not push");
+            case TYPE_PRIORITY:
+            default:
+                // priority is advisory and unknown frame types are ignored
+                break;
+        }
+        return true;
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "invalid stream id " + streamId);
+        }
+        int offset = 0;
+        int length = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            int padLength = payload.length > 0 ? payload[0] & 0xFF : Integer.MAX_VALUE;
+            offset++;
+            length -= 1 + padLength;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+            length -= 5;
+        }
+        if (length < 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "invalid HEADERS padding");
+        }
+        headerBlockStreamId = streamId;
+        headerBlockEndStream = (flags & FLAG_END_STREAM) != 0;
+        headerBlockLength = 0;
+        appendHeaderBlock(payload, offset, length);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void appendHeaderBlock(byte[] fragment, int offset, int length) throws Http2Exception {
+        if (headerBlockLength + length > MAX_HEADER_BLOCK_SIZE) {
+            throw new Http2Exception(PROTOCOL_ERROR, "header block too large");
+        }
+        if (headerBlockLength + length > headerBlock.length) {
+            byte[] bigger = new byte[Math.max(headerBlockLength + length, headerBlock.length * 2)];
+            System.arraycopy(headerBlock, 0, bigger, 0, headerBlockLength);
+            headerBlock = bigger;
+        }
+        System.arraycopy(fragment, offset, headerBlock, headerBlockLength, length);
+        headerBlockLength += length;
+    }
+
+    private void onHeaderBlock() throws IOException {
+        int streamId = headerBlockStreamId;
+        boolean endStream = headerBlockEndStream;
+        headerBlockStreamId = 0;
+        final List<Map.Entry<String, String>> fields = new ArrayList<Map.Entry<String, String>>();
+        final long[] listSize = new long[1];
+        try {
+            // the whole block is decoded even once the list is too large, so
+            // that the dynamic table stays in step with the peer's
+            decoder.decode(headerBlock, 0, headerBlockLength, new Hpack.HeaderListener() {
+
+                @Override
+                public void header(String name, String value) {
+                    listSize[0] += name.length() + value.length() + HEADER_FIELD_OVERHEAD;
+                    if (listSize[0] <= MAX_HEADER_LIST_SIZE) {
+                        fields.add(new AbstractMap.SimpleImmutableEntry<String, String>(name, value));
+                    }
+                }
+            });
+        } catch (Hpack.HpackException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+        Stream existing = streams.get(streamId);
+        if (listSize[0] > MAX_HEADER_LIST_SIZE) {
+            if (existing != null) {
+                streams.remove(streamId);
+                existing.abort();
+                synchronized (this.windowLock) {
+                    this.windowLock.notifyAll();
+                }
+            } else if (streamId > lastStreamId) {
+                lastStreamId = streamId;
+            }
+            writeRstStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        if (existing != null) {
+            // trailers; their fields are not exposed to handlers
+            if (!endStream) {
+                throw new Http2Exception(PROTOCOL_ERROR, "trailers must end the stream");
+            }
+            existing.body.finish();
+            existing.remoteClosed = true;
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new Http2Exception(STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+        }
+        lastStreamId = streamId;
+        if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+            writeRstStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        final Stream stream;
+        synchronized (this.windowLock) {
+            stream = new Stream(streamId, initialStreamSendWindow, fields);
+        }
+        if (endStream) {
+            stream.body.finish();
+            stream.remoteClosed = true;
+        }
+        streams.put(streamId, stream);
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    serve(stream);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            streams.remove(streamId);
+            writeRstStream(streamId, REFUSED_STREAM);
+        }
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int offset = 0;
+        int length = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            int padLength = payload.length > 0 ? payload[0] & 0xFF : Integer.MAX_VALUE;
+            offset = 1;
+            length -= 1 + padLength;
+            if (length < 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "invalid DATA padding");
+            }
+        }
+        if (payload.length > 0) {
+            // per-stream windows bound what is buffered, so the connection window is reopened at once
+            writeWindowUpdate(0, payload.length);
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            writeRstStream(streamId, STREAM_CLOSED);
+            return;
+        }
+        if (!stream.body.receive(payload, offset, length, payload.length - length)) {
+            streams.remove(streamId);
+            stream.abort();
+            writeRstStream(streamId, FLOW_CONTROL_ERROR);
+            return;
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.body.finish();
+            stream.remoteClosed = true;
+        }
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "invalid SETTINGS length");
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+            int value = readInt(payload, i + 2);
+            if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                if (value < 0) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "initial window size too large");
+                }
+                synchronized (this.windowLock) {
+                    int delta = value - initialStreamSendWindow;
+                    initialStreamSendWindow = value;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    this.windowLock.notifyAll();
+                }
+            } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xFFFFFF) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "invalid max frame size " + value);
+                }
+                peerMaxFrameSize = value;
+            }
+            // the encoder keeps no dynamic table, so HEADER_TABLE_SIZE needs no action
+        }
+        writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE");
+        }
+        int increment = readInt(payload, 0) & 0x7FFFFFFF;
+        synchronized (this.windowLock) {
+            if (streamId == 0) {
+                if (increment == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "zero window increment");
+                }
+                connectionSendWindow += increment;
+                if (connectionSendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "connection window overflow");
+                }
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    if (increment == 0 || (long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+                        streams.remove(streamId);
+                        stream.abort();
+                        writeRstStream(streamId, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+                    } else {
+                        stream.sendWindow += increment;
+                    }
+                }
+            }
+            this.windowLock.notifyAll();
+        }
+    }
+
+    private void serve(Stream stream) {
+        TempFileManager tempFileManager = httpd.getTempFileManagerFactory().create();
+        HTTPSession session = httpd.new HTTPSession(tempFileManager, stream.body, new NullOutputStream(), remoteIp, remoteHostname, remoteAddress);
+        Response r = null;
+        Method method = null;
+        try {
+            try {
+                String path = stream.pseudoHeader(":path");
+                method = Method.lookup(stream.pseudoHeader(":method"));
+                if (method == null || path == null) {
+                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: missing or unsupported :method or :path");
+                }
+                session.initDecoded(method, path, stream.regularHeaders(), "HTTP/2.0");
+                r = httpd.serve(session);
+                if (r == null) {
+                    throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
+                }
+                session.getCookies().unloadQueue(r);
+            } catch (ResponseException re) {
+                r = NanoHTTPD.newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
+            }
+            r.setRequestMethod(method);
+            writeResponse(stream, r);
+            if (!stream.remoteClosed) {
+                // the handler did not read the whole request body
+                writeRstStream(stream.id, NO_ERROR);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "HTTP/2 stream " + stream.id + " ended abnormally", e);
+        } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "bug in the handler code", e);
+            try {
+                writeRstStream(stream.id, INTERNAL_ERROR);
+            } catch (IOException ignore) {
+                // connection is gone
+            }
+        } finally {
+            streams.remove(stream.id);
+            NanoHTTPD.safeClose(r);
+            session.releaseBody();
+            tempFileManager.clear();
+        }
+    }
+
+    private void writeResponse(Stream stream, Response r) throws IOException {
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        int status = r.getStatus().getRequestStatus();
+        headers.add(entry(":status", String.valueOf(status)));
+        if (r.getMimeType() != null) {
+            headers.add(entry("content-type", r.getMimeType()));
+        }
+        if (r.getHeader("date") == null) {
+            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+            headers.add(entry("date", gmtFrmt.format(new Date())));
+        }
+        for (Map.Entry<String, String> header : r.getHeaderEntries()) {
+            String name = header.getKey().toLowerCase(Locale.US);
+            if (!isConnectionSpecific(name)) {
+                headers.add(entry(name, header.getValue()));
+            }
+        }
+        long pending = -1;
+        String contentLength = r.getHeader("content-length");
+        if (contentLength != null) {
+            try {
+                pending = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                LOG.severe("content-length was no number " + contentLength);
+            }
+        } else if (!r.isChunkedTransfer()) {
+            pending = r.getContentLength();
+            headers.add(entry("content-length", String.valueOf(pending)));
+        }
+        boolean hasBody = r.getRequestMethod() != Method.HEAD && status != 204 && status != 304 && pending != 0;
+        try (FlushTicket ignore = httpd.getFlushManager().open(r.getFlushTag())) {
+            writeHeaders(stream.id, encoder.encode(headers), !hasBody);
+            if (hasBody) {
+                writeBody(stream, r.getData(), pending);
+            }
+        }
+    }
+
+    private static boolean isConnectionSpecific(String name) {
+        return "connection".equals(name) || "keep-alive".equals(name) || "proxy-connection".equals(name) || "transfer-encoding".equals(name) || "upgrade".equals(name);
+    }
+
+    private static Map.Entry<String, String> entry(String name, String value) {
+        return new AbstractMap.SimpleImmutableEntry<String, String>(name, value);
+    }
+
+    private void writeBody(Stream stream, InputStream data, long pending) throws IOException {
+        // the peer may allow frames of up to 16 MiB; larger buffers gain little
+        byte[] buffer = new byte[Math.min(peerMaxFrameSize, DEFAULT_MAX_FRAME_SIZE)];
+        boolean sendEverything = pending < 0;
+        while (sendEverything || pending > 0) {
+            int toRead = sendEverything ? buffer.length : (int) Math.min(pending, buffer.length);
+            int read = data == null ? -1 : data.read(buffer, 0, toRead);
+            if (read <= 0) {
+                break;
+            }
+            if (!sendEverything) {
+                pending -= read;
+            }
+            boolean last = !sendEverything && pending == 0;
+            int offset = 0;
+            while (offset < read) {
+                int n = acquireSendWindow(stream, read - offset);
+                boolean end = last && offset + n == read;
+                writeFrame(TYPE_DATA, end ? FLAG_END_STREAM : 0, stream.id, buffer, offset, n);
+                offset += n;
+            }
+            if (last) {
+                return;
+            }
+        }
+        writeFrame(TYPE_DATA, FLAG_END_STREAM, stream.id, buffer, 0, 0);
+    }
+
+    private int acquireSendWindow(Stream stream, int wanted) throws IOException {
+        synchronized (this.windowLock) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("connection closed");
+                }
+                if (stream.aborted) {
+                    throw new IOException("stream " + stream.id + " reset");
+                }
+                long available = Math.min(connectionSendWindow, stream.sendWindow);
+                if (available > 0) {
+                    int n = (int) Math.min(wanted, available);
+                    connectionSendWindow -= n;
+                    stream.sendWindow -= n;
+                    return n;
+                }
+                try {
+                    this.windowLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for flow-control window");
+                }
+            }
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] payload = new byte[18];
+        putSetting(payload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        putSetting(payload, 6, SETTINGS_HEADER_TABLE_SIZE, Hpack.DEFAULT_TABLE_SIZE);
+        putSetting(payload, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        writeFrame(TYPE_SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    private static void putSetting(byte[] payload, int offset, int id, int value) {
+        payload[offset] = (byte) (id >> 8);
+        payload[offset + 1] = (byte) id;
+        putInt(payload, offset + 2, value);
+    }
+
+    private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        synchronized (this.writeLock) {
+            int maxFrameSize = peerMaxFrameSize;
+            int offset = 0;
+            int type = TYPE_HEADERS;
+            do {
+                int length = Math.min(maxFrameSize, block.length - offset);
+                boolean endHeaders = offset + length == block.length;
+                int flags = (endHeaders ? FLAG_END_HEADERS : 0) | (type == TYPE_HEADERS && endStream ? FLAG_END_STREAM : 0);
+                writeFrameLocked(type, flags, streamId, block, offset, length);
+                offset += length;
+                type = TYPE_CONTINUATION;
+            } while (offset < block.length);
+            this.out.flush();
+        }
+    }
+
+    private void writeRstStream(int streamId, int errorCode) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        writeFrame(TYPE_RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void goAway(int errorCode) {
+        byte[] payload = new byte[8];
+        putInt(payload, 0, lastStreamId);
+        putInt(payload, 4, errorCode);
+        try {
+            writeFrame(TYPE_GOAWAY, 0, 0, payload, 0, 8);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "could not send GOAWAY", e);
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        synchronized (this.writeLock) {
+            writeFrameLocked(type, flags, streamId, payload, offset, length);
+            this.out.flush();
+        }
+    }
+
+    private void writeFrameLocked(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (length >> 16);
+        header[1] = (byte) (length >> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId);
+        this.out.write(header, 0, 9);
+        this.out.write(payload, offset, length);
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /**
+     * @return false if the stream ended before the first byte
+     */
+    private boolean readFully(byte[] b, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int r = this.in.read(b, offset + total, length - total);
+            if (r < 0) {
+                if (total == 0) {
+                    return false;
+                }
+                throw new EOFException();
+            }
+            total += r;
+        }
+        return true;
+    }
+
+    private class Stream {
+
+        final int id;
+
+        final List<Map.Entry<String, String>> fields;
+
+        final StreamBody body = new StreamBody(this);
+
+        /**
+         * Guarded by windowLock.
+         */
+        int sendWindow;
+
+        volatile boolean remoteClosed;
+
+        volatile boolean aborted;
+
+        Stream(int id, int sendWindow, List<Map.Entry<String, String>> fields) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+            this.fields = fields;
+        }
+
+        String pseudoHeader(String name) {
+            for (Map.Entry<String, String> field : fields) {
+                if (name.equals(field.getKey())) {
+                    return field.getValue();
+                }
+            }
+            return null;
+        }
+
+        Map<String, String> regularHeaders() {
+            Map<String, StringBuilder> joined = new HashMap<String, StringBuilder>();
+            for (Map.Entry<String, String> field : fields) {
+                String name = field.getKey();
+                if (name.startsWith(":")) {
+                    continue;
+                }
+                StringBuilder value = joined.get(name);
+                if (value == null) {
+                    joined.put(name, new StringBuilder(field.getValue()));
+                } else {
+                    value.append("cookie".equals(name) ? "; " : ", ").append(field.getValue());
+                }
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            for (Map.Entry<String, StringBuilder> entry : joined.entrySet()) {
+                headers.put(entry.getKey(), entry.getValue().toString());
+            }
+            String authority = pseudoHeader(":authority");
+            if (authority != null && !headers.containsKey("host")) {
+                headers.put("host", authority);
+            }
+            return headers;
+        }
+
+        void abort() {
+            aborted = true;
+            body.abort();
+        }
+    }
+
+    /**
+     * Request body of a stream. The frame reader appends DATA payloads and
+     * the handler reads them; the stream's receive window is reopened as the
+     * handler consumes data.
+     */
+    private class StreamBody extends InputStream {
+
+        private final Stream stream;
+
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+
+        private int chunkPosition;
+
+        private int receiveWindow = DEFAULT_WINDOW_SIZE;
+
+        private int unacknowledged;
+
+        private boolean finished;
+
+        private boolean aborted;
+
+        StreamBody(Stream stream) {
+            this.stream = stream;
+        }
+
+        synchronized boolean receive(byte[] data, int offset, int length, int padding) {
+            if (length + padding > receiveWindow) {
+                return false;
+            }
+            receiveWindow -= length + padding;
+            // padding is never delivered, so it is credited back as if consumed
+            unacknowledged += padding;
+            if (length > 0) {
+                byte[] chunk = new byte[length];
+                System.arraycopy(data, offset, chunk, 0, length);
+                chunks.addLast(chunk);
+                notifyAll();
+            }
+            return true;
+        }
+
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n;
+            int windowIncrement = 0;
+            synchronized (this) {
+                while (chunks.isEmpty()) {
+                    if (aborted) {
+                        throw new IOException("stream " + stream.id + " reset");
+                    }
+                    if (finished) {
+                        return -1;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                byte[] chunk = chunks.peekFirst();
+                n = Math.min(len, chunk.length - chunkPosition);
+                System.arraycopy(chunk, chunkPosition, b, off, n);
+                chunkPosition += n;
+                if (chunkPosition == chunk.length) {
+                    chunks.removeFirst();
+                    chunkPosition = 0;
+                }
+                unacknowledged += n;
+                if (unacknowledged >= DEFAULT_WINDOW_SIZE / 2 && !finished) {
+                    windowIncrement = unacknowledged;
+                    receiveWindow += unacknowledged;
+                    unacknowledged = 0;
+                }
+            }
+            if (windowIncrement > 0) {
+                writeWindowUpdate(stream.id, windowIncrement);
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            int available = 0;
+            for (byte[] chunk : chunks) {
+                available += chunk.length;
+            }
+            return available - chunkPosition;
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Reusable {@link Inflater}s. An inflater holds native memory that is only
+ * freed by {@link Inflater#end()} or by the garbage collector, so creating one
+ * per request is expensive under load.
+ */
+class InflaterPool {
+
+    static final int DEFAULT_MAX_POOLED = 32;
+
+    private final int maxPooled;
+
+    private final ConcurrentLinkedQueue<Inflater> zlib = new ConcurrentLinkedQueue<Inflater>();
+
+    private final ConcurrentLinkedQueue<Inflater> raw = new ConcurrentLinkedQueue<Inflater>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    InflaterPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @param nowrap
+     *            true for raw deflate data, false for the zlib format
+     */
+    Inflater borrow(boolean nowrap) {
+        Inflater inflater = (nowrap ? raw : zlib).poll();
+        if (inflater == null) {
+            return new Inflater(nowrap);
+        }
+        pooled.decrementAndGet();
+        return inflater;
+    }
+
+    void release(Inflater inflater, boolean nowrap) {
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        inflater.reset();
+        (nowrap ? raw : zlib).add(inflater);
+    }
+}
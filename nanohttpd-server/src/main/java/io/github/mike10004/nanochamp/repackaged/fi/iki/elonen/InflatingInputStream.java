@@ -0,0 +1,287 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.RequestBodyException;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a request body sent with {@code Content-Encoding: gzip} or
+ * {@code deflate} as it is read. The inflater comes from an
+ * {@link InflaterPool} and goes back when the data ends or the stream is
+ * closed. Closing the stream does not close the underlying body.
+ * <p>
+ * The deflate coding is meant to be zlib data, but some clients send raw
+ * deflate data; both are accepted. Concatenated gzip members are decoded as
+ * one body.
+ * </p>
+ */
+class InflatingInputStream extends InputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int FHCRC = 2;
+
+    private static final int FEXTRA = 4;
+
+    private static final int FNAME = 8;
+
+    private static final int FCOMMENT = 16;
+
+    private final InputStream in;
+
+    private final boolean gzip;
+
+    private final InflaterPool pool;
+
+    private final long maxSize;
+
+    private final byte[] buf = new byte[8192];
+
+    private final CRC32 crc = new CRC32();
+
+    private Inflater inflater;
+
+    private boolean nowrap;
+
+    /**
+     * Position and limit of the compressed bytes in {@link #buf} that have not
+     * been given to the inflater; used for the gzip header and trailer.
+     */
+    private int pos, lim;
+
+    private long size;
+
+    private boolean eof;
+
+    /**
+     * @param maxSize
+     *            maximum number of decoded bytes, or -1 for no limit; reading
+     *            more fails with a 413 status
+     */
+    InflatingInputStream(InputStream in, boolean gzip, InflaterPool pool, long maxSize) {
+        this.in = in;
+        this.gzip = gzip;
+        this.pool = pool;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (eof) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (inflater == null && !start()) {
+            return -1;
+        }
+        try {
+            int n;
+            while ((n = inflater.inflate(b, off, len)) == 0) {
+                if (inflater.finished()) {
+                    if (!finishMember()) {
+                        return -1;
+                    }
+                } else if (inflater.needsDictionary()) {
+                    throw malformed("preset dictionary not supported");
+                } else if (inflater.needsInput()) {
+                    if (!fill()) {
+                        throw malformed("request body ended inside compressed data");
+                    }
+                    inflater.setInput(buf, pos, lim - pos);
+                    pos = lim;
+                }
+            }
+            size += n;
+            if (maxSize >= 0 && size > maxSize) {
+                end();
+                eof = true;
+                throw new RequestBodyException(Response.Status.PAYLOAD_TOO_LARGE, "decoded request body exceeds " + maxSize + " bytes");
+            }
+            if (gzip) {
+                crc.update(b, off, n);
+            }
+            return n;
+        } catch (DataFormatException e) {
+            throw malformed(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the gzip header, or detects the zlib header, and takes an
+     * inflater from the pool.
+     *
+     * @return false if the body is empty
+     */
+    private boolean start() throws IOException {
+        if (!ensure(2)) {
+            if (lim > pos) {
+                throw malformed("truncated header");
+            }
+            eof = true;
+            return false;
+        }
+        if (gzip) {
+            readGzipHeader();
+            nowrap = true;
+        } else {
+            int cmf = buf[pos] & 0xFF, flg = buf[pos + 1] & 0xFF;
+            nowrap = (cmf & 0x0F) != 8 || (cmf * 256 + flg) % 31 != 0;
+        }
+        inflater = pool.borrow(nowrap);
+        crc.reset();
+        inflater.setInput(buf, pos, lim - pos);
+        pos = lim;
+        return true;
+    }
+
+    private void readGzipHeader() throws IOException {
+        if (!ensure(10) || ((buf[pos] & 0xFF) | (buf[pos + 1] & 0xFF) << 8) != GZIP_MAGIC || buf[pos + 2] != 8) {
+            throw malformed("not in gzip format");
+        }
+        int flags = buf[pos + 3] & 0xFF;
+        pos += 10;
+        if ((flags & FEXTRA) != 0) {
+            if (!ensure(2)) {
+                throw malformed("truncated gzip header");
+            }
+            int xlen = (buf[pos] & 0xFF) | (buf[pos + 1] & 0xFF) << 8;
+            pos += 2;
+            skipBytes(xlen);
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FHCRC) != 0) {
+            skipBytes(2);
+        }
+    }
+
+    /**
+     * Checks the gzip trailer of the member just inflated and starts the next
+     * member, if there is one.
+     *
+     * @return false at the end of the body
+     */
+    private boolean finishMember() throws IOException {
+        // the inflater may hold bytes beyond the deflate data
+        int unused = inflater.getRemaining();
+        pos -= unused;
+        if (!gzip) {
+            end();
+            eof = true;
+            return false;
+        }
+        if (!ensure(8)) {
+            throw malformed("truncated gzip trailer");
+        }
+        long expectedCrc = readIntLE();
+        long expectedSize = readIntLE();
+        if (expectedCrc != crc.getValue() || expectedSize != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+            throw malformed("gzip trailer does not match the data");
+        }
+        if (!ensure(2)) {
+            end();
+            eof = true;
+            return false;
+        }
+        readGzipHeader();
+        inflater.reset();
+        crc.reset();
+        inflater.setInput(buf, pos, lim - pos);
+        pos = lim;
+        return true;
+    }
+
+    private long readIntLE() {
+        long v = (buf[pos] & 0xFFL) | (buf[pos + 1] & 0xFFL) << 8 | (buf[pos + 2] & 0xFFL) << 16 | (buf[pos + 3] & 0xFFL) << 24;
+        pos += 4;
+        return v;
+    }
+
+    private void skipBytes(int n) throws IOException {
+        while (n > 0) {
+            if (!ensure(1)) {
+                throw malformed("truncated gzip header");
+            }
+            int k = Math.min(n, lim - pos);
+            pos += k;
+            n -= k;
+        }
+    }
+
+    private void skipZeroTerminated() throws IOException {
+        do {
+            if (!ensure(1)) {
+                throw malformed("truncated gzip header");
+            }
+        } while (buf[pos++] != 0);
+    }
+
+    /**
+     * Makes at least {@code n} unread bytes available in the buffer.
+     */
+    private boolean ensure(int n) throws IOException {
+        if (lim - pos >= n) {
+            return true;
+        }
+        System.arraycopy(buf, pos, buf, 0, lim - pos);
+        lim -= pos;
+        pos = 0;
+        while (lim < n) {
+            int k = in.read(buf, lim, buf.length - lim);
+            if (k < 0) {
+                return false;
+            }
+            lim += k;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        int k = in.read(buf, 0, buf.length);
+        if (k < 0) {
+            return false;
+        }
+        pos = 0;
+        lim = k;
+        return true;
+    }
+
+    private RequestBodyException malformed(String message) {
+        end();
+        eof = true;
+        return new RequestBodyException(Response.Status.BAD_REQUEST, "BAD REQUEST: invalid " + (gzip ? "gzip" : "deflate") + " request body: " + message);
+    }
+
+    private void end() {
+        if (inflater != null) {
+            pool.release(inflater, nowrap);
+            inflater = null;
+        }
+    }
+
+    /**
+     * Returns the inflater to the pool. The underlying body is left open.
+     */
+    @Override
+    public void close() {
+        end();
+        eof = true;
+    }
+}
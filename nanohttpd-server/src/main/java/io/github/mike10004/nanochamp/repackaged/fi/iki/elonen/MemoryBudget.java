@@ -0,0 +1,56 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of bytes that may be held in memory at once, shared by all requests
+ * of a server. Reservations never block; a caller that cannot reserve memory
+ * has to use the disk or reject the request.
+ */
+class MemoryBudget {
+
+    private final AtomicLong used = new AtomicLong();
+
+    private volatile long limit;
+
+    MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return bytes currently reserved
+     */
+    long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Reserves bytes if the budget allows it.
+     *
+     * @return true if the bytes were reserved
+     */
+    boolean tryReserve(long bytes) {
+        while (true) {
+            long current = used.get();
+            long next = current + bytes;
+            if (next > limit || next < 0) {
+                return false;
+            }
+            if (used.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+}
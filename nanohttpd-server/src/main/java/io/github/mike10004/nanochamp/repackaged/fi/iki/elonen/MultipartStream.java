@@ -0,0 +1,381 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single-pass parser for {@code multipart/form-data} request bodies.
+ * <p>
+ * Parts are returned one at a time by {@link #next()}; the content of each
+ * part is read directly from the request body through
+ * {@link Part#getInputStream()}, so nothing is buffered beyond a small
+ * window. Boundaries are located with Boyer-Moore-Horspool search. Advancing
+ * to the next part skips whatever is left of the current one.
+ * </p>
+ */
+public class MultipartStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    public static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+
+    private static final Pattern DISPOSITION_ATTRIBUTE_PATTERN = Pattern.compile("[ \t]*([a-zA-Z*]+)[ \t]*=[ \t]*(?:\"([^\"]*)\"|'([^']*)'|([^;\\s]*))");
+
+    /**
+     * Signals a request body that does not follow the multipart format.
+     */
+    public static class MalformedStreamException extends IOException {
+
+        private static final long serialVersionUID = -3914553745120936577L;
+
+        public MalformedStreamException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One part of a multipart body.
+     */
+    public static class Part {
+
+        private final Map<String, String> headers;
+
+        private final String name;
+
+        private final String fileName;
+
+        private final InputStream inputStream;
+
+        private Part(Map<String, String> headers, InputStream inputStream) {
+            this.headers = Collections.unmodifiableMap(headers);
+            this.inputStream = inputStream;
+            String name = null, fileName = null;
+            String disposition = headers.get("content-disposition");
+            if (disposition != null) {
+                Matcher matcher = DISPOSITION_ATTRIBUTE_PATTERN.matcher(disposition);
+                while (matcher.find()) {
+                    String value = matcher.group(2) != null ? matcher.group(2) : matcher.group(3) != null ? matcher.group(3) : matcher.group(4);
+                    if ("name".equalsIgnoreCase(matcher.group(1))) {
+                        name = value;
+                    } else if ("filename".equalsIgnoreCase(matcher.group(1))) {
+                        fileName = value;
+                    }
+                }
+            }
+            this.name = name;
+            this.fileName = fileName;
+        }
+
+        /**
+         * @return the part headers, with lower case names
+         */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getContentType() {
+            return headers.get("content-type");
+        }
+
+        /**
+         * Returns the content of the part. The stream is valid until
+         * {@link MultipartStream#next()} is called again.
+         */
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+    }
+
+    private final InputStream in;
+
+    private final Charset headerCharset;
+
+    private final int maxHeaderSize;
+
+    /**
+     * CRLF, two hyphens and the boundary. The first boundary of a body is
+     * usually not preceded by CRLF, so the buffer starts out holding one.
+     */
+    private final byte[] delimiter;
+
+    private final int[] skipTable = new int[256];
+
+    private final byte[] buffer;
+
+    private int head;
+
+    private int tail;
+
+    /**
+     * Buffer position from which the delimiter search resumes; positions
+     * before it have been ruled out as delimiter starts.
+     */
+    private int searchFrom;
+
+    private boolean eof;
+
+    private boolean finished;
+
+    private PartInputStream current;
+
+    public MultipartStream(InputStream in, String boundary, Charset headerCharset) {
+        this(in, boundary, headerCharset, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_HEADER_SIZE);
+    }
+
+    public MultipartStream(InputStream in, String boundary, Charset headerCharset, int bufferSize, int maxHeaderSize) {
+        this.in = in;
+        this.headerCharset = headerCharset;
+        this.maxHeaderSize = maxHeaderSize;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[Math.max(bufferSize, 2 * delimiter.length)];
+        int m = delimiter.length;
+        for (int i = 0; i < skipTable.length; i++) {
+            skipTable[i] = m;
+        }
+        for (int i = 0; i < m - 1; i++) {
+            skipTable[delimiter[i] & 0xFF] = m - 1 - i;
+        }
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        tail = 2;
+    }
+
+    /**
+     * Advances to the next part, skipping any unread content of the current
+     * part.
+     *
+     * @return the next part, or null if the closing boundary has been read
+     */
+    public Part next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (current == null) {
+            // skip the preamble
+            skipToDelimiter();
+        } else {
+            current.skipRemaining();
+        }
+        if (!ensure(2)) {
+            throw new MalformedStreamException("multipart body ended after a boundary");
+        }
+        if (buffer[head] == '-' && buffer[head + 1] == '-') {
+            finished = true;
+            current = null;
+            return null;
+        }
+        // the rest of the boundary line is transport padding
+        readLine(maxHeaderSize);
+        Map<String, String> headers = new HashMap<String, String>();
+        int headerBytes = 0;
+        String line;
+        while (!(line = readLine(maxHeaderSize - headerBytes)).isEmpty()) {
+            headerBytes += line.length() + 2;
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        current = new PartInputStream();
+        return new Part(headers, current);
+    }
+
+    private void skipToDelimiter() throws IOException {
+        PartInputStream preamble = new PartInputStream();
+        preamble.skipRemaining();
+    }
+
+    /**
+     * Reads a CRLF-terminated line and consumes the terminator.
+     */
+    private String readLine(int limit) throws IOException {
+        ByteArrayOutputStream spanned = null;
+        while (true) {
+            for (int i = head; i + 1 < tail; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                    String line;
+                    if (spanned == null) {
+                        line = new String(buffer, head, i - head, headerCharset);
+                    } else {
+                        spanned.write(buffer, head, i - head);
+                        line = new String(spanned.toByteArray(), headerCharset);
+                    }
+                    head = i + 2;
+                    return line;
+                }
+            }
+            // the line continues past the buffered bytes; a trailing CR may start the terminator
+            int n = tail - head - (tail > head && buffer[tail - 1] == '\r' ? 1 : 0);
+            if (spanned == null) {
+                spanned = new ByteArrayOutputStream();
+            }
+            spanned.write(buffer, head, n);
+            head += n;
+            if (spanned.size() > limit) {
+                throw new MalformedStreamException("multipart header size exceeds " + maxHeaderSize);
+            }
+            if (!fill()) {
+                throw new MalformedStreamException("multipart body ended inside a part header");
+            }
+        }
+    }
+
+    /**
+     * Makes at least {@code n} bytes available in the buffer.
+     *
+     * @return false if the input ended first
+     */
+    private boolean ensure(int n) throws IOException {
+        while (tail - head < n) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads more input, compacting the buffer first if necessary.
+     *
+     * @return false if the input has ended or the buffer is full
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (head > 0 && tail == buffer.length) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            searchFrom -= head;
+            tail -= head;
+            head = 0;
+        }
+        if (tail == buffer.length) {
+            return false;
+        }
+        int n = in.read(buffer, tail, buffer.length - tail);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        tail += n;
+        return true;
+    }
+
+    /**
+     * Searches the buffered bytes for the delimiter.
+     *
+     * @return the buffer index of the delimiter, or -1
+     */
+    private int findDelimiter() {
+        int m = delimiter.length;
+        int pos = Math.max(head, searchFrom);
+        while (pos + m <= tail) {
+            int j = m - 1;
+            while (j >= 0 && buffer[pos + j] == delimiter[j]) {
+                j--;
+            }
+            if (j < 0) {
+                searchFrom = pos;
+                return pos;
+            }
+            pos += skipTable[buffer[pos + m - 1] & 0xFF];
+        }
+        searchFrom = Math.max(pos, tail - m + 1);
+        return -1;
+    }
+
+    private class PartInputStream extends InputStream {
+
+        private boolean done;
+
+        /**
+         * @return number of bytes that may be returned without crossing the
+         *         delimiter, or 0 if the delimiter is next
+         */
+        private int available(boolean block) throws IOException {
+            while (true) {
+                int index = findDelimiter();
+                if (index >= 0) {
+                    if (index == head) {
+                        head += delimiter.length;
+                        searchFrom = head;
+                        done = true;
+                    }
+                    return index - head < 0 ? 0 : index - head;
+                }
+                // a partial delimiter may sit at the end of the buffer
+                int safe = tail - head - (delimiter.length - 1);
+                if (safe > 0 || !block) {
+                    return Math.max(0, safe);
+                }
+                if (!fill()) {
+                    throw new MalformedStreamException("multipart body ended without a closing boundary");
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int available = available(true);
+            if (done) {
+                return -1;
+            }
+            int n = Math.min(len, available);
+            System.arraycopy(buffer, head, b, off, n);
+            head += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && !done) {
+                int available = available(true);
+                int k = (int) Math.min(n - skipped, available);
+                head += k;
+                skipped += k;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return done ? 0 : available(false);
+        }
+
+        void skipRemaining() throws IOException {
+            while (!done) {
+                head += available(true);
+            }
+        }
+    }
+}
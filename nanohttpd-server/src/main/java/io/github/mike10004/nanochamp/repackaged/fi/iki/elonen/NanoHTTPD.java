@@ -39,8 +39,6 @@ import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
@@ -50,20 +48,21 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
+import java.nio.file.Path;
 import java.security.KeyStore;
 import java.text.SimpleDateFormat;
 import java.util.AbstractMap;
@@ -77,10 +76,20 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -94,8 +103,10 @@ import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManagerFactory;
 
 import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.FlushManager.FlushTicket;
@@ -177,46 +188,143 @@ public abstract class NanoHTTPD {
 
         private final Socket acceptSocket;
 
+        /**
+         * Connection that is not a socket, such as a Unix domain socket
+         * channel; null if {@link #acceptSocket} is set.
+         */
+        private final Channel channel;
+
+        private OutputStream outputStream;
+
+        private volatile HTTPSession session;
+
+        private final long startTime = System.currentTimeMillis();
+
+        /**
+         * Admission control that admitted the connection, or null.
+         */
+        private AdmissionControl admissionControl;
+
+        private String admittedClient;
+
         public ClientHandler(InputStream inputStream, Socket acceptSocket) {
             this.inputStream = inputStream;
             this.acceptSocket = acceptSocket;
+            this.channel = null;
+        }
+
+        /**
+         * Creates a handler for a local connection that is not a socket. The
+         * client is taken to be on the loopback address.
+         */
+        ClientHandler(InputStream inputStream, OutputStream outputStream, Channel channel) {
+            this.inputStream = inputStream;
+            this.outputStream = outputStream;
+            this.acceptSocket = null;
+            this.channel = channel;
         }
 
         public void close() {
             safeClose(this.inputStream);
             safeClose(this.acceptSocket);
+            safeClose(this.channel);
+        }
+
+        /**
+         * @return true if the connection has served a request and is waiting
+         *         for the next one
+         */
+        boolean isIdle() {
+            HTTPSession session = this.session;
+            return session != null && session.awaitingRequest;
+        }
+
+        /**
+         * @return a snapshot of the state of the connection
+         */
+        public ConnectionInfo getInfo() {
+            SocketAddress remoteAddress = null;
+            if (this.acceptSocket != null) {
+                remoteAddress = this.acceptSocket.getRemoteSocketAddress();
+            } else if (this.channel instanceof SocketChannel) {
+                try {
+                    remoteAddress = ((SocketChannel) this.channel).getRemoteAddress();
+                } catch (IOException ignore) {
+                }
+            }
+            HTTPSession session = this.session;
+            return new ConnectionInfo(remoteAddress, this.startTime, session == null ? 0 : session.requestCount, isIdle());
+        }
+
+        private boolean isClosed() {
+            return this.acceptSocket != null ? this.acceptSocket.isClosed() : !this.channel.isOpen();
         }
 
         @Override
         public void run() {
-            OutputStream outputStream = null;
+            OutputStream outputStream = this.outputStream;
+            ConnectionOutcome outcome = ConnectionOutcome.ERROR;
             try {
-                outputStream = this.acceptSocket.getOutputStream();
+                InetAddress remoteAddress = InetAddress.getLoopbackAddress();
+                if (this.acceptSocket != null) {
+                    outputStream = this.acceptSocket.getOutputStream();
+                    remoteAddress = this.acceptSocket.getInetAddress();
+                }
+                if (isHostNamePrefetch() && !remoteAddress.isLoopbackAddress() && !remoteAddress.isAnyLocalAddress()) {
+                    NanoHTTPD.this.hostNameCache.prefetch(remoteAddress);
+                }
                 TempFileManager tempFileManager = NanoHTTPD.this.tempFileManagerFactory.create();
-                HTTPSession session = new HTTPSession(tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
-                while (!this.acceptSocket.isClosed()) {
-                    session.execute();
+                HTTPSession session = new HTTPSession(tempFileManager, this.inputStream, outputStream, remoteAddress);
+                this.session = session;
+                if (this.acceptSocket != null) {
+                    session.setSocket(this.acceptSocket);
                 }
-            } catch (Exception e) {
-                // When the socket is closed by the client,
-                // we throw our own SocketException
-                // to break the "keep alive" loop above. If
-                // the exception was anything other
-                // than the expected SocketException OR a
-                // SocketTimeoutException, print the
-                // stacktrace
-                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage())) && !(e instanceof SocketTimeoutException)) {
-                    NanoHTTPD.LOG.log(Level.SEVERE, "Communication with the client broken, or an bug in the handler code", e);
+                if (isHttp2Enabled() && this.acceptSocket instanceof SSLSocket && "h2".equals(negotiatedProtocol((SSLSocket) this.acceptSocket))) {
+                    outcome = session.runHttp2(0);
+                } else {
+                    outcome = ConnectionOutcome.OPEN;
+                    while (outcome == ConnectionOutcome.OPEN && !isClosed()) {
+                        outcome = session.handleRequest();
+                    }
+                    if (outcome == ConnectionOutcome.OPEN) {
+                        // the handler closed the socket
+                        outcome = ConnectionOutcome.CLOSE_REQUESTED;
+                    }
                 }
+            } catch (SocketTimeoutException e) {
+                outcome = ConnectionOutcome.TIMEOUT;
+            } catch (Exception e) {
+                outcome = ConnectionOutcome.ERROR;
+                NanoHTTPD.LOG.log(Level.SEVERE, "Communication with the client broken, or an bug in the handler code", e);
             } finally {
                 safeClose(outputStream);
                 safeClose(this.inputStream);
                 safeClose(this.acceptSocket);
+                safeClose(this.channel);
+                if (this.admissionControl != null) {
+                    this.admissionControl.releaseConnection(this.admittedClient);
+                }
+                NanoHTTPD.this.connectionOutcomes.incrementAndGet(outcome.ordinal());
+                NanoHTTPD.this.connections.remove(this);
                 NanoHTTPD.this.asyncRunner.closed(this);
             }
         }
     }
 
+    /**
+     * Completes the TLS handshake and returns the application protocol
+     * chosen by ALPN, or null if none was negotiated or the runtime does not
+     * support ALPN.
+     */
+    private static String negotiatedProtocol(SSLSocket socket) throws IOException {
+        socket.startHandshake();
+        try {
+            return socket.getApplicationProtocol();
+        } catch (NoSuchMethodError | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
     public static class Cookie {
 
         public static String getHTTPTime(int days) {
@@ -348,21 +456,26 @@ public abstract class NanoHTTPD {
      */
     public static class DefaultAsyncRunner implements AsyncRunner {
 
-        private long requestCount;
+        private final AtomicLong requestCount = new AtomicLong();
 
-        private final List<ClientHandler> running = Collections.synchronizedList(new ArrayList<NanoHTTPD.ClientHandler>());
+        /**
+         * Running clients; a concurrent set, so that adding and removing a
+         * client takes constant time and needs no lock shared by all
+         * connections.
+         */
+        private final Set<ClientHandler> running = ConcurrentHashMap.newKeySet();
 
         /**
-         * @return a list with currently running clients.
+         * @return a snapshot of the currently running clients.
          */
         public List<ClientHandler> getRunning() {
-            return running;
+            return new ArrayList<ClientHandler>(running);
         }
 
         @Override
         public void closeAll() {
-            // copy of the list for concurrency
-            for (ClientHandler clientHandler : new ArrayList<ClientHandler>(this.running)) {
+            // the iterator is weakly consistent, so no copy is needed
+            for (ClientHandler clientHandler : this.running) {
                 clientHandler.close();
             }
         }
@@ -374,10 +487,9 @@ public abstract class NanoHTTPD {
 
         @Override
         public void exec(ClientHandler clientHandler) {
-            ++this.requestCount;
             Thread t = new Thread(clientHandler);
             t.setDaemon(true);
-            t.setName("NanoHttpd Request Processor (#" + this.requestCount + ")");
+            t.setName("NanoHttpd Request Processor (#" + this.requestCount.incrementAndGet() + ")");
             this.running.add(clientHandler);
             t.start();
         }
@@ -465,17 +577,6 @@ public abstract class NanoHTTPD {
         }
     }
 
-    /**
-     * Default strategy for creating and cleaning up temporary files.
-     */
-    private class DefaultTempFileManagerFactory implements TempFileManagerFactory {
-
-        @Override
-        public TempFileManager create() {
-            return new DefaultTempFileManager();
-        }
-    }
-
     /**
      * Creates a normal ServerSocket for TCP connections
      */
@@ -497,11 +598,25 @@ public abstract class NanoHTTPD {
 
         private String[] sslProtocols;
 
+        private String[] applicationProtocols;
+
         public SecureServerSocketFactory(SSLServerSocketFactory sslServerSocketFactory, String[] sslProtocols) {
             this.sslServerSocketFactory = sslServerSocketFactory;
             this.sslProtocols = sslProtocols;
         }
 
+        public String[] getApplicationProtocols() {
+            return this.applicationProtocols;
+        }
+
+        /**
+         * Sets the protocols offered through ALPN, in order of preference.
+         * Ignored on runtimes without ALPN support.
+         */
+        public void setApplicationProtocols(String... applicationProtocols) {
+            this.applicationProtocols = applicationProtocols;
+        }
+
         @Override
         public ServerSocket create() throws IOException {
             SSLServerSocket ss = null;
@@ -514,23 +629,20 @@ public abstract class NanoHTTPD {
             ss.setUseClientMode(false);
             ss.setWantClientAuth(false);
             ss.setNeedClientAuth(false);
+            if (this.applicationProtocols != null) {
+                try {
+                    SSLParameters parameters = ss.getSSLParameters();
+                    parameters.setApplicationProtocols(this.applicationProtocols);
+                    ss.setSSLParameters(parameters);
+                } catch (NoSuchMethodError e) {
+                    NanoHTTPD.LOG.log(Level.WARNING, "ALPN is not supported by this runtime");
+                }
+            }
             return ss;
         }
 
     }
 
-    private static final String CONTENT_DISPOSITION_REGEX = "([ |\t]*Content-Disposition[ |\t]*:)(.*)";
-
-    private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern.compile(CONTENT_DISPOSITION_REGEX, Pattern.CASE_INSENSITIVE);
-
-    private static final String CONTENT_TYPE_REGEX = "([ |\t]*content-type[ |\t]*:)(.*)";
-
-    private static final Pattern CONTENT_TYPE_PATTERN = Pattern.compile(CONTENT_TYPE_REGEX, Pattern.CASE_INSENSITIVE);
-
-    private static final String CONTENT_DISPOSITION_ATTRIBUTE_REGEX = "[ |\t]*([a-zA-Z]*)[ |\t]*=[ |\t]*['|\"]([^\"^']*)['|\"]";
-
-    private static final Pattern CONTENT_DISPOSITION_ATTRIBUTE_PATTERN = Pattern.compile(CONTENT_DISPOSITION_ATTRIBUTE_REGEX);
-
     protected static class ContentType {
 
         private static final String ASCII_ENCODING = "US-ASCII";
@@ -608,9 +720,7 @@ public abstract class NanoHTTPD {
 
     protected class HTTPSession implements IHTTPSession {
 
-        private static final int REQUEST_BUFFER_LEN = 512;
-
-        private static final int MEMORY_STORE_LIMIT = 1024;
+        private static final int REQUEST_BUFFER_LEN = 8192;
 
         public static final int BUFSIZE = 8192;
 
@@ -640,10 +750,46 @@ public abstract class NanoHTTPD {
 
         private String remoteIp;
 
+        /**
+         * Looked up when first needed, from {@link #remoteAddress}.
+         */
         private String remoteHostname;
 
+        private InetAddress remoteAddress;
+
+        /**
+         * Connection socket, if the session serves one; used to apply the
+         * keep-alive idle timeout.
+         */
+        private Socket socket;
+
+        private int readTimeout;
+
+        /**
+         * Number of requests read from the connection.
+         */
+        private volatile int requestCount;
+
         private String protocolVersion;
 
+        /**
+         * The request body. Reads end where the body ends, so an unconsumed
+         * body can be discarded before the next request on the connection.
+         */
+        private InputStream body;
+
+        /**
+         * Length of the request body, or -1 if it is delimited by the end of
+         * the stream.
+         */
+        private long bodyLength;
+
+        /**
+         * Whether the connection is between requests, waiting for the first
+         * bytes of another one.
+         */
+        private volatile boolean awaitingRequest;
+
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
             this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
@@ -654,11 +800,100 @@ public abstract class NanoHTTPD {
             this.tempFileManager = tempFileManager;
             this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
             this.outputStream = outputStream;
-            this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
-            this.remoteHostname = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "localhost" : inetAddress.getHostName().toString();
+            this.remoteIp = remoteIp(inetAddress);
+            if (inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress()) {
+                this.remoteHostname = "localhost";
+            } else {
+                this.remoteAddress = inetAddress;
+            }
             this.headers = new HashMap<String, String>();
         }
 
+        /**
+         * Creates a session for one HTTP/2 stream. The request is supplied
+         * already decoded by {@link #initDecoded}.
+         */
+        HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, String remoteIp, String remoteHostname, InetAddress remoteAddress) {
+            this(tempFileManager, inputStream, outputStream);
+            this.remoteIp = remoteIp;
+            this.remoteHostname = remoteHostname;
+            this.remoteAddress = remoteAddress;
+        }
+
+        void setSocket(Socket socket) throws SocketException {
+            this.socket = socket;
+            this.readTimeout = socket.getSoTimeout();
+        }
+
+        /**
+         * Initializes the request from fields that were decoded by another
+         * protocol, in place of reading an HTTP/1 request header.
+         */
+        void initDecoded(Method method, String path, Map<String, String> headers, String protocolVersion) {
+            this.method = method;
+            this.protocolVersion = protocolVersion;
+            this.parms = new HashMap<String, List<String>>();
+            int qmi = path.indexOf('?');
+            if (qmi >= 0) {
+                decodeParms(path.substring(qmi + 1), this.parms);
+                this.uri = decodePercent(path.substring(0, qmi));
+            } else {
+                decodeParms(null, this.parms);
+                this.uri = decodePercent(path);
+            }
+            this.headers = new HashMap<String, String>(headers);
+            if (null != this.remoteIp) {
+                this.headers.put("remote-addr", this.remoteIp);
+                this.headers.put("http-client-ip", this.remoteIp);
+            }
+            this.cookies = new CookieHandler(this.headers);
+            // the stream ends with the body
+            this.body = this.inputStream;
+            this.bodyLength = -1;
+            String contentLength = this.headers.get("content-length");
+            if (contentLength != null) {
+                try {
+                    this.bodyLength = Long.parseLong(contentLength.trim());
+                } catch (NumberFormatException ignore) {
+                    // the body still ends with the stream
+                }
+            }
+            decodeContentEncoding();
+        }
+
+        /**
+         * Replaces the body with a decoding stream if request body decoding
+         * is enabled and the body is sent with the gzip or deflate content
+         * coding. The content-encoding and content-length headers are then
+         * removed, because they no longer describe the body that is read.
+         * Other codings are passed through.
+         */
+        private void decodeContentEncoding() {
+            String contentEncoding = this.headers.get("content-encoding");
+            if (contentEncoding == null || !isRequestBodyDecoding()) {
+                return;
+            }
+            String coding = contentEncoding.trim().toLowerCase(Locale.US);
+            boolean gzip = "gzip".equals(coding) || "x-gzip".equals(coding);
+            if (!gzip && !"deflate".equals(coding)) {
+                return;
+            }
+            this.body = new InflatingInputStream(this.body, gzip, NanoHTTPD.this.inflaterPool, getMaxDecodedBodySize());
+            this.bodyLength = -1;
+            this.headers.remove("content-encoding");
+            this.headers.remove("content-length");
+        }
+
+        /**
+         * Releases resources held by a decoding body stream. The connection
+         * input is left open.
+         */
+        void releaseBody() {
+            if (this.body instanceof InflatingInputStream) {
+                safeClose(this.body);
+            }
+        }
+
         /**
          * Decodes the sent headers and loads the data into Key/value pairs
          */
@@ -719,76 +954,32 @@ public abstract class NanoHTTPD {
 
         /**
          * Decodes the Multipart Body data and put it into Key/Value pairs.
+         * The body is parsed as it is read; parts that declare a content
+         * type are streamed to temporary files. The values of the other
+         * parts are buffered like a form body, so together they are subject
+         * to {@link #getMaxBufferedBodySize()} and the memory budget.
          */
-        private void decodeMultipartFormData(ContentType contentType, ByteBuffer fbuf, Map<String, List<String>> parms, Map<String, String> files) throws ResponseException {
+        private void decodeMultipartFormData(ContentType contentType, InputStream body, Map<String, List<String>> parms, Map<String, String> files) throws IOException, ResponseException {
             int pcount = 0;
+            long maxSize = getMaxBufferedBodySize();
+            long fieldBytes = 0;
             try {
-                int[] boundaryIdxs = getBoundaryPositions(fbuf, contentType.getBoundary().getBytes());
-                if (boundaryIdxs.length < 2) {
+                MultipartStream multipart = new MultipartStream(body, contentType.getBoundary(), Charset.forName(contentType.getEncoding()));
+                MultipartStream.Part part = multipart.next();
+                if (part == null) {
                     throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but contains less than two boundary strings.");
                 }
-
-                byte[] partHeaderBuff = new byte[MAX_HEADER_SIZE];
-                for (int boundaryIdx = 0; boundaryIdx < boundaryIdxs.length - 1; boundaryIdx++) {
-                    fbuf.position(boundaryIdxs[boundaryIdx]);
-                    int len = (fbuf.remaining() < MAX_HEADER_SIZE) ? fbuf.remaining() : MAX_HEADER_SIZE;
-                    fbuf.get(partHeaderBuff, 0, len);
-                    BufferedReader in =
-                            new BufferedReader(new InputStreamReader(new ByteArrayInputStream(partHeaderBuff, 0, len), Charset.forName(contentType.getEncoding())), len);
-
-                    int headerLines = 0;
-                    // First line is boundary string
-                    String mpline = in.readLine();
-                    headerLines++;
-                    if (mpline == null || !mpline.contains(contentType.getBoundary())) {
-                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but chunk does not start with boundary.");
-                    }
-
-                    String partName = null, fileName = null, partContentType = null;
-                    // Parse the reset of the header lines
-                    mpline = in.readLine();
-                    headerLines++;
-                    while (mpline != null && mpline.trim().length() > 0) {
-                        Matcher matcher = CONTENT_DISPOSITION_PATTERN.matcher(mpline);
-                        if (matcher.matches()) {
-                            String attributeString = matcher.group(2);
-                            matcher = CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(attributeString);
-                            while (matcher.find()) {
-                                String key = matcher.group(1);
-                                if ("name".equalsIgnoreCase(key)) {
-                                    partName = matcher.group(2);
-                                } else if ("filename".equalsIgnoreCase(key)) {
-                                    fileName = matcher.group(2);
-                                    // add these two line to support multiple
-                                    // files uploaded using the same field Id
-                                    if (!fileName.isEmpty()) {
-                                        if (pcount > 0)
-                                            partName = partName + String.valueOf(pcount++);
-                                        else
-                                            pcount++;
-                                    }
-                                }
-                            }
-                        }
-                        matcher = CONTENT_TYPE_PATTERN.matcher(mpline);
-                        if (matcher.matches()) {
-                            partContentType = matcher.group(2).trim();
-                        }
-                        mpline = in.readLine();
-                        headerLines++;
-                    }
-                    int partHeaderLength = 0;
-                    while (headerLines-- > 0) {
-                        partHeaderLength = scipOverNewLine(partHeaderBuff, partHeaderLength);
-                    }
-                    // Read the part data
-                    if (partHeaderLength >= len - 4) {
-                        throw new ResponseException(Response.Status.INTERNAL_ERROR, "Multipart header size exceeds MAX_HEADER_SIZE.");
+                for (; part != null; part = multipart.next()) {
+                    String partName = part.getName();
+                    String fileName = part.getFileName();
+                    // add these two line to support multiple
+                    // files uploaded using the same field Id
+                    if (fileName != null && !fileName.isEmpty()) {
+                        if (pcount > 0)
+                            partName = partName + String.valueOf(pcount++);
+                        else
+                            pcount++;
                     }
-                    int partDataStart = boundaryIdxs[boundaryIdx] + partHeaderLength;
-                    int partDataEnd = boundaryIdxs[boundaryIdx + 1] - 4;
-
-                    fbuf.position(partDataStart);
 
                     List<String> values = parms.get(partName);
                     if (values == null) {
@@ -796,15 +987,14 @@ public abstract class NanoHTTPD {
                         parms.put(partName, values);
                     }
 
-                    if (partContentType == null) {
+                    if (part.getContentType() == null) {
                         // Read the part into a string
-                        byte[] data_bytes = new byte[partDataEnd - partDataStart];
-                        fbuf.get(data_bytes);
-
-                        values.add(new String(data_bytes, contentType.getEncoding()));
+                        byte[] value = readField(part.getInputStream(), maxSize < 0 ? -1 : maxSize - fieldBytes);
+                        fieldBytes += value.length;
+                        values.add(new String(value, contentType.getEncoding()));
                     } else {
                         // Read it into a file
-                        String path = saveTmpFile(fbuf, partDataStart, partDataEnd - partDataStart, fileName);
+                        String path = saveTmpFile(part.getInputStream(), fileName);
                         if (!files.containsKey(partName)) {
                             files.put(partName, path);
                         } else {
@@ -817,18 +1007,34 @@ public abstract class NanoHTTPD {
                         values.add(fileName);
                     }
                 }
-            } catch (ResponseException re) {
+            } catch (ResponseException | RequestBodyException re) {
                 throw re;
+            } catch (MultipartStream.MalformedStreamException e) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: " + e.getMessage());
             } catch (Exception e) {
                 throw new ResponseException(Response.Status.INTERNAL_ERROR, e.toString());
             }
         }
 
-        private int scipOverNewLine(byte[] partHeaderBuff, int index) {
-            while (partHeaderBuff[index] != '\n') {
-                index++;
+        /**
+         * Reads the value of a form field, in memory while the budget allows
+         * and otherwise through a temporary file.
+         *
+         * @param maxSize
+         *            maximum number of bytes, or -1 for no limit
+         */
+        private byte[] readField(InputStream in, long maxSize) throws IOException {
+            SpoolingOutputStream spool = new SpoolingOutputStream(NanoHTTPD.this.bodyMemoryBudget, this.tempFileManager, maxSize);
+            try {
+                byte[] buf = new byte[REQUEST_BUFFER_LEN];
+                int read;
+                while ((read = in.read(buf, 0, REQUEST_BUFFER_LEN)) > 0) {
+                    spool.write(buf, 0, read);
+                }
+                return spool.toByteArray();
+            } finally {
+                safeClose(spool);
             }
-            return ++index;
         }
 
         /**
@@ -870,6 +1076,20 @@ public abstract class NanoHTTPD {
 
         @Override
         public void execute() throws IOException {
+            if (handleRequest() != ConnectionOutcome.OPEN) {
+                throw new SocketException("NanoHttpd Shutdown");
+            }
+        }
+
+        /**
+         * Reads one request from the connection and sends the response.
+         * Only real errors are thrown; the normal ways a connection ends are
+         * returned.
+         *
+         * @return {@link ConnectionOutcome#OPEN} if the connection can serve
+         *         another request, otherwise how the connection ended
+         */
+        ConnectionOutcome handleRequest() throws IOException {
             Response r = null;
             try {
                 // Read the first 8192 bytes.
@@ -881,22 +1101,60 @@ public abstract class NanoHTTPD {
                 this.splitbyte = 0;
                 this.rlen = 0;
 
+                if (isDraining() && this.requestCount > 0) {
+                    safeClose(this.inputStream);
+                    safeClose(this.outputStream);
+                    return ConnectionOutcome.CLOSE_REQUESTED;
+                }
                 int read = -1;
                 this.inputStream.mark(HTTPSession.BUFSIZE);
+                KeepAlivePolicy keepAlivePolicy = getKeepAlivePolicy();
+                boolean idle = this.socket != null && this.requestCount > 0 && keepAlivePolicy.getIdleTimeout() > 0;
+                int headerReadTimeout = this.socket != null ? getSocketOptions().getHeaderReadTimeout() : 0;
                 try {
-                    read = this.inputStream.read(buf, 0, HTTPSession.BUFSIZE);
+                    if (idle) {
+                        this.socket.setSoTimeout(keepAlivePolicy.getIdleTimeout());
+                    } else if (headerReadTimeout > 0) {
+                        this.socket.setSoTimeout(headerReadTimeout);
+                    }
+                    this.awaitingRequest = this.requestCount > 0;
+                    try {
+                        read = this.inputStream.read(buf, 0, HTTPSession.BUFSIZE);
+                    } finally {
+                        this.awaitingRequest = false;
+                    }
+                    if (idle) {
+                        this.socket.setSoTimeout(headerReadTimeout > 0 ? headerReadTimeout : this.readTimeout);
+                    }
                 } catch (SSLException e) {
                     throw e;
+                } catch (SocketTimeoutException e) {
+                    safeClose(this.inputStream);
+                    safeClose(this.outputStream);
+                    return ConnectionOutcome.TIMEOUT;
                 } catch (IOException e) {
                     safeClose(this.inputStream);
                     safeClose(this.outputStream);
-                    throw new SocketException("NanoHttpd Shutdown");
+                    return ConnectionOutcome.EOF;
                 }
                 if (read == -1) {
                     // socket was been closed
                     safeClose(this.inputStream);
                     safeClose(this.outputStream);
-                    throw new SocketException("NanoHttpd Shutdown");
+                    return ConnectionOutcome.EOF;
+                }
+                AdmissionControl admissionControl = getAdmissionControl();
+                long retryAfterNanos = admissionControl == null || this.remoteIp == null ? 0 : admissionControl.acquireRequest(this.remoteIp);
+                if (retryAfterNanos > 0) {
+                    // the request is left unread, so the connection cannot be reused
+                    try {
+                        this.outputStream.write(AdmissionControl.tooManyRequests(retryAfterNanos));
+                        this.outputStream.flush();
+                    } finally {
+                        safeClose(this.inputStream);
+                        safeClose(this.outputStream);
+                    }
+                    return ConnectionOutcome.REJECTED;
                 }
                 while (read > 0) {
                     this.rlen += read;
@@ -906,6 +1164,9 @@ public abstract class NanoHTTPD {
                     }
                     read = this.inputStream.read(buf, this.rlen, HTTPSession.BUFSIZE - this.rlen);
                 }
+                if (headerReadTimeout > 0) {
+                    this.socket.setSoTimeout(this.readTimeout);
+                }
 
                 if (this.splitbyte < this.rlen) {
                     this.inputStream.reset();
@@ -926,6 +1187,11 @@ public abstract class NanoHTTPD {
                 Map<String, String> pre = new HashMap<String, String>();
                 decodeHeader(hin, pre, this.parms, this.headers);
 
+                if (isHttp2Enabled() && "PRI".equals(pre.get("method")) && "HTTP/2.0".equals(protocolVersion)) {
+                    // prior-knowledge cleartext HTTP/2; the rest of the preface follows
+                    return runHttp2(Http2Connection.PREFACE_REQUEST_LINE_LENGTH);
+                }
+
                 if (null != this.remoteIp) {
                     this.headers.put("remote-addr", this.remoteIp);
                     this.headers.put("http-client-ip", this.remoteIp);
@@ -940,17 +1206,54 @@ public abstract class NanoHTTPD {
 
                 this.cookies = new CookieHandler(this.headers);
 
-                String connection = this.headers.get("connection");
-                boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && (connection == null || !connection.matches("(?i).*close.*"));
+                InputStream bodySource = this.inputStream;
+                ContinueInputStream continuation = null;
+                String expect = this.headers.get("expect");
+                if (expect != null && "HTTP/1.1".equals(protocolVersion)) {
+                    if (!"100-continue".equalsIgnoreCase(expect.trim())) {
+                        throw new ResponseException(Response.Status.EXPECTATION_FAILED, "EXPECTATION FAILED: " + expect);
+                    }
+                    continuation = new ContinueInputStream(this.inputStream, this.outputStream);
+                    bodySource = continuation;
+                }
 
-                // Ok, now do the serve()
+                RequestBody requestBody;
+                String transferEncoding = this.headers.get("transfer-encoding");
+                if (transferEncoding != null) {
+                    if (!transferEncoding.trim().toLowerCase(Locale.US).endsWith("chunked")) {
+                        throw new ResponseException(Response.Status.NOT_IMPLEMENTED, "NOT IMPLEMENTED: transfer-encoding " + transferEncoding);
+                    }
+                    this.bodyLength = -1;
+                    requestBody = new ChunkedInputStream(bodySource, getMaxChunkedBodySize());
+                } else {
+                    this.bodyLength = decodeContentLength(this.headers.get("content-length"));
+                    requestBody = new BoundedInputStream(bodySource, this.bodyLength);
+                }
+                this.body = (InputStream) requestBody;
+                decodeContentEncoding();
 
-                // TODO: long body_size = getBodySize();
-                // TODO: long pos_before_serve = this.inputStream.totalRead()
-                // (requires implementation for totalRead())
-                r = serve(this);
-                // TODO: this.inputStream.skip(body_size -
-                // (this.inputStream.totalRead() - pos_before_serve))
+                this.requestCount++;
+                String connection = this.headers.get("connection");
+                boolean keepAlive;
+                if ("HTTP/1.1".equals(protocolVersion)) {
+                    keepAlive = connection == null || !connection.matches("(?i).*close.*");
+                } else {
+                    // HTTP/1.0 keep-alive is opt-in, and the request body must have a known length
+                    keepAlive = "HTTP/1.0".equals(protocolVersion) && connection != null && connection.matches("(?i).*keep-alive.*")
+                            && transferEncoding == null;
+                }
+                keepAlive = keepAlive && keepAlivePolicy.allowsRequestAfter(this.requestCount);
+
+                ContinueHandler continueHandler = getContinueHandler();
+                Response rejection = continuation == null || continueHandler == null ? null : continueHandler.checkContinue(this);
+                if (rejection != null) {
+                    // the client may still send the body, so the connection cannot be reused
+                    keepAlive = false;
+                    r = rejection;
+                } else {
+                    // Ok, now do the serve()
+                    r = serve(this);
+                }
 
                 if (r == null) {
                     throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
@@ -959,38 +1262,98 @@ public abstract class NanoHTTPD {
                     this.cookies.unloadQueue(r);
                     r.setRequestMethod(this.method);
                     r.setGzipEncoding(useGzipWhenAccepted(r) && acceptEncoding != null && acceptEncoding.contains("gzip"));
+                    // the unread rest of the body must be discarded to reuse the connection
+                    keepAlive = keepAlive && requestBody.getRemaining() <= getBodyDrainLimit();
+                    // without a 100 Continue the client does not send the body there is to discard
+                    keepAlive = keepAlive && (continuation == null || continuation.isSent() || requestBody.getRemaining() == 0);
+                    // checked after serving, so a drain that began meanwhile closes the connection
+                    keepAlive = keepAlive && !isDraining();
+                    if (keepAlive && !"HTTP/1.1".equals(protocolVersion)) {
+                        // an HTTP/1.0 client finds the end of the response only by its length
+                        keepAlive = r.hasKnownLength(this.method);
+                        String keepAliveValue = keepAlivePolicy.headerValue(this.requestCount);
+                        if (keepAlive && !keepAliveValue.isEmpty() && r.getHeader("keep-alive") == null) {
+                            r.addHeader("Keep-Alive", keepAliveValue);
+                        }
+                    }
                     r.setKeepAlive(keepAlive);
                     r.send(this.outputStream, flushManager);
+                    if (r.getUpgrade() != null) {
+                        return runUpgrade(r.getUpgrade());
+                    }
                 }
-                if (!keepAlive || r.isCloseConnection()) {
-                    throw new SocketException("NanoHttpd Shutdown");
+                if (!keepAlive || r.isCloseConnection() || !requestBody.discardRemaining(getBodyDrainLimit())) {
+                    return ConnectionOutcome.CLOSE_REQUESTED;
                 }
+                return ConnectionOutcome.OPEN;
             } catch (SocketException e) {
                 // throw it out to close socket object (finalAccept)
                 throw e;
             } catch (SocketTimeoutException ste) {
-                // treat socket timeouts the same way we treat socket exceptions
-                // i.e. close the stream & finalAccept object by throwing the
-                // exception up the call stack.
-                throw ste;
+                // the client stopped sending in the middle of a request
+                return ConnectionOutcome.TIMEOUT;
             } catch (SSLException ssle) {
                 Response resp = newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SSL PROTOCOL FAILURE: " + ssle.getMessage());
                 resp.send(this.outputStream, flushManager);
                 safeClose(this.outputStream);
+                return ConnectionOutcome.ERROR;
+            } catch (RequestBodyException rbe) {
+                Response resp = newFixedLengthResponse(rbe.getStatus(), NanoHTTPD.MIME_PLAINTEXT, rbe.getMessage());
+                resp.send(this.outputStream, flushManager);
+                safeClose(this.outputStream);
+                return ConnectionOutcome.ERROR;
             } catch (IOException ioe) {
                 Response resp = newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
                 resp.send(this.outputStream, flushManager);
                 safeClose(this.outputStream);
+                return ConnectionOutcome.ERROR;
             } catch (ResponseException re) {
                 Response resp = newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
                 resp.send(this.outputStream, flushManager);
                 safeClose(this.outputStream);
+                return ConnectionOutcome.ERROR;
             } finally {
                 safeClose(r);
+                releaseBody();
                 this.tempFileManager.clear();
             }
         }
 
+        /**
+         * Hands the connection over to the protocol named in a 101 response.
+         * The connection is closed when the upgraded protocol is done with it.
+         */
+        private ConnectionOutcome runUpgrade(ConnectionUpgrade upgrade) {
+            try {
+                upgrade.run(this.inputStream, this.outputStream);
+                return ConnectionOutcome.CLOSE_REQUESTED;
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.FINE, "upgraded connection ended abnormally", e);
+            } catch (RuntimeException e) {
+                NanoHTTPD.LOG.log(Level.SEVERE, "bug in upgraded connection handler", e);
+            }
+            return ConnectionOutcome.ERROR;
+        }
+
+        /**
+         * Serves the connection as HTTP/2 until it is closed.
+         *
+         * @param prefaceBytesRead
+         *            number of bytes of the client connection preface that
+         *            have already been consumed
+         */
+        ConnectionOutcome runHttp2(int prefaceBytesRead) {
+            try {
+                new Http2Connection(NanoHTTPD.this, this.inputStream, this.outputStream, this.remoteIp, this.remoteHostname, this.remoteAddress).run(prefaceBytesRead);
+                return ConnectionOutcome.CLOSE_REQUESTED;
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.FINE, "HTTP/2 connection ended abnormally", e);
+            } catch (RuntimeException e) {
+                NanoHTTPD.LOG.log(Level.SEVERE, "bug in HTTP/2 connection handling", e);
+            }
+            return ConnectionOutcome.ERROR;
+        }
+
         /**
          * Find byte index separating header from body. It must be the last byte
          * of the first two sequential new lines.
@@ -1013,52 +1376,6 @@ public abstract class NanoHTTPD {
             return 0;
         }
 
-        /**
-         * Find the byte positions where multipart boundaries start. This reads
-         * a large block at a time and uses a temporary buffer to optimize
-         * (memory mapped) file access.
-         */
-        private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
-            int[] res = new int[0];
-            if (b.remaining() < boundary.length) {
-                return res;
-            }
-
-            int search_window_pos = 0;
-            byte[] search_window = new byte[4 * 1024 + boundary.length];
-
-            int first_fill = (b.remaining() < search_window.length) ? b.remaining() : search_window.length;
-            b.get(search_window, 0, first_fill);
-            int new_bytes = first_fill - boundary.length;
-
-            do {
-                // Search the search_window
-                for (int j = 0; j < new_bytes; j++) {
-                    for (int i = 0; i < boundary.length; i++) {
-                        if (search_window[j + i] != boundary[i])
-                            break;
-                        if (i == boundary.length - 1) {
-                            // Match found, add it to results
-                            int[] new_res = new int[res.length + 1];
-                            System.arraycopy(res, 0, new_res, 0, res.length);
-                            new_res[res.length] = search_window_pos + j;
-                            res = new_res;
-                        }
-                    }
-                }
-                search_window_pos += new_bytes;
-
-                // Copy the end of the buffer to the start
-                System.arraycopy(search_window, search_window.length - boundary.length, search_window, 0, boundary.length);
-
-                // Refill search_window
-                new_bytes = search_window.length - boundary.length;
-                new_bytes = (b.remaining() < new_bytes) ? b.remaining() : new_bytes;
-                b.get(search_window, boundary.length, new_bytes);
-            } while (new_bytes > 0);
-            return res;
-        }
-
         @Override
         public CookieHandler getCookies() {
             return this.cookies;
@@ -1069,9 +1386,12 @@ public abstract class NanoHTTPD {
             return this.headers;
         }
 
+        /**
+         * Returns the request body. The stream ends where the body ends.
+         */
         @Override
         public final InputStream getInputStream() {
-            return this.inputStream;
+            return this.body;
         }
 
         @Override
@@ -1103,124 +1423,113 @@ public abstract class NanoHTTPD {
             return this.queryParameterString;
         }
 
-        private RandomAccessFile getTmpBucket() {
-            try {
-                TempFile tempFile = this.tempFileManager.createTempFile(null);
-                return new RandomAccessFile(tempFile.getName(), "rw");
-            } catch (Exception e) {
-                throw new Error(e); // we won't recover, so throw an error
-            }
-        }
-
         @Override
         public final String getUri() {
             return this.uri;
         }
 
         /**
-         * Deduce body length in bytes. Either from "content-length" header or
-         * read bytes.
+         * Body length in bytes, from the "content-length" header. A request
+         * without the header has no body, unless it uses chunked transfer
+         * encoding or HTTP/2; then -1 is returned because the body lasts until
+         * the end of the stream.
          */
         public long getBodySize() {
-            if (this.headers.containsKey("content-length")) {
-                return Long.parseLong(this.headers.get("content-length"));
-            } else if (this.splitbyte < this.rlen) {
-                return this.rlen - this.splitbyte;
-            }
-            return 0;
+            return this.bodyLength;
         }
 
-        @Override
-        public void parseBody(Map<String, String> files) throws IOException, ResponseException {
-            RandomAccessFile randomAccessFile = null;
+        private long decodeContentLength(String contentLength) throws ResponseException {
+            if (contentLength == null) {
+                return 0;
+            }
             try {
-                long size = getBodySize();
-                ByteArrayOutputStream baos = null;
-                DataOutput requestDataOutput = null;
-
-                // Store the request in memory or a file, depending on size
-                if (size < MEMORY_STORE_LIMIT) {
-                    baos = new ByteArrayOutputStream();
-                    requestDataOutput = new DataOutputStream(baos);
-                } else {
-                    randomAccessFile = getTmpBucket();
-                    requestDataOutput = randomAccessFile;
+                long length = Long.parseLong(contentLength.trim());
+                if (length >= 0) {
+                    return length;
                 }
+            } catch (NumberFormatException ignore) {
+                // fall through
+            }
+            throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: invalid content-length " + contentLength);
+        }
 
-                // Read all the body and write it to request_data_output
-                byte[] buf = new byte[REQUEST_BUFFER_LEN];
-                while (this.rlen >= 0 && size > 0) {
-                    this.rlen = this.inputStream.read(buf, 0, (int) Math.min(size, REQUEST_BUFFER_LEN));
-                    size -= this.rlen;
-                    if (this.rlen > 0) {
-                        requestDataOutput.write(buf, 0, this.rlen);
+        @Override
+        public void parseBody(Map<String, String> files) throws IOException, ResponseException {
+            if (Method.POST.equals(this.method)) {
+                ContentType contentType = new ContentType(this.headers.get("content-type"));
+                if (contentType.isMultipart()) {
+                    if (contentType.getBoundary() == null) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST,
+                                "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
                     }
+                    decodeMultipartFormData(contentType, this.body, this.parms, files);
+                    return;
                 }
-
-                ByteBuffer fbuf = null;
-                if (baos != null) {
-                    fbuf = ByteBuffer.wrap(baos.toByteArray(), 0, baos.size());
-                } else {
-                    fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
-                    randomAccessFile.seek(0);
+            } else if (Method.PUT.equals(this.method)) {
+                try {
+                    files.put("content", saveTmpFile(this.body, null));
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new Error(e); // we won't recover, so throw an error
+                }
+                return;
+            }
+            long maxSize = getMaxBufferedBodySize();
+            if (maxSize >= 0 && getBodySize() > maxSize) {
+                throw new RequestBodyException(Response.Status.PAYLOAD_TOO_LARGE, "request body exceeds " + maxSize + " bytes");
+            }
+            // Store the request in memory while the server-wide budget allows, otherwise in a file
+            SpoolingOutputStream spool = new SpoolingOutputStream(NanoHTTPD.this.bodyMemoryBudget, this.tempFileManager, maxSize);
+            try {
+                byte[] buf = new byte[REQUEST_BUFFER_LEN];
+                int read;
+                while ((read = this.body.read(buf, 0, REQUEST_BUFFER_LEN)) > 0) {
+                    spool.write(buf, 0, read);
                 }
 
                 // If the method is POST, there may be parameters
                 // in data section, too, read it:
                 if (Method.POST.equals(this.method)) {
                     ContentType contentType = new ContentType(this.headers.get("content-type"));
-                    if (contentType.isMultipart()) {
-                        String boundary = contentType.getBoundary();
-                        if (boundary == null) {
-                            throw new ResponseException(Response.Status.BAD_REQUEST,
-                                    "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
-                        }
-                        decodeMultipartFormData(contentType, fbuf, this.parms, files);
-                    } else {
-                        byte[] postBytes = new byte[fbuf.remaining()];
-                        fbuf.get(postBytes);
-                        String postLine = new String(postBytes, contentType.getEncoding()).trim();
-                        // Handle application/x-www-form-urlencoded
-                        if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
-                            decodeParms(postLine, this.parms);
-                        } else if (postLine.length() != 0) {
-                            // Special case for raw POST data => create a
-                            // special files entry "postData" with raw content
-                            // data
-                            files.put("postData", postLine);
-                        }
+                    byte[] postBytes = spool.toByteArray();
+                    String postLine = new String(postBytes, contentType.getEncoding()).trim();
+                    // Handle application/x-www-form-urlencoded
+                    if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
+                        decodeParms(postLine, this.parms);
+                    } else if (postLine.length() != 0) {
+                        // Special case for raw POST data => create a
+                        // special files entry "postData" with raw content
+                        // data
+                        files.put("postData", postLine);
                     }
-                } else if (Method.PUT.equals(this.method)) {
-                    files.put("content", saveTmpFile(fbuf, 0, fbuf.limit(), null));
                 }
             } finally {
-                safeClose(randomAccessFile);
+                safeClose(spool);
             }
         }
 
         /**
-         * Retrieves the content of a sent file and saves it to a temporary
-         * file. The full path to the saved file is returned.
+         * Copies a stream to a temporary file. The full path to the saved
+         * file is returned, or an empty string if the stream is empty.
          */
-        private String saveTmpFile(ByteBuffer b, int offset, int len, String filename_hint) {
-            String path = "";
-            if (len > 0) {
-                FileOutputStream fileOutputStream = null;
-                try {
-                    TempFile tempFile = this.tempFileManager.createTempFile(filename_hint);
-                    ByteBuffer src = b.duplicate();
-                    fileOutputStream = new FileOutputStream(tempFile.getName());
-                    FileChannel dest = fileOutputStream.getChannel();
-                    src.position(offset).limit(offset + len);
-                    dest.write(src.slice());
-                    path = tempFile.getName();
-                } catch (Exception e) { // Catch exception if any
-                    throw new Error(e); // we won't recover, so throw an error
-                } finally {
-                    safeClose(fileOutputStream);
-                }
+        private String saveTmpFile(InputStream data, String filename_hint) throws Exception {
+            byte[] buf = new byte[BUFSIZE];
+            int n = data.read(buf);
+            if (n < 0) {
+                return "";
             }
-            return path;
+            TempFile tempFile = this.tempFileManager.createTempFile(filename_hint);
+            // written through the temp file so that its factory sees the writes
+            OutputStream out = tempFile.open();
+            try {
+                do {
+                    out.write(buf, 0, n);
+                } while ((n = data.read(buf)) >= 0);
+            } finally {
+                safeClose(out);
+            }
+            return new File(tempFile.getName()).getAbsolutePath();
         }
 
         @Override
@@ -1230,6 +1539,9 @@ public abstract class NanoHTTPD {
 
         @Override
         public String getRemoteHostName() {
+            if (this.remoteHostname == null && this.remoteAddress != null) {
+                this.remoteHostname = NanoHTTPD.this.hostNameCache.getHostName(this.remoteAddress);
+            }
             return this.remoteHostname;
         }
     }
@@ -1277,6 +1589,35 @@ public abstract class NanoHTTPD {
          */
         void parseBody(Map<String, String> files) throws IOException, ResponseException;
 
+        /**
+         * Returns a parser that reads a multipart/form-data request body part
+         * by part, as the handler consumes it. Use this instead of
+         * {@link #parseBody(Map)} to process uploads without buffering them.
+         */
+        default MultipartStream parseMultipart() throws IOException, ResponseException {
+            ContentType contentType = new ContentType(getHeaders().get("content-type"));
+            if (!contentType.isMultipart() || contentType.getBoundary() == null) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is not multipart/form-data with a boundary.");
+            }
+            return new MultipartStream(getInputStream(), contentType.getBoundary(), Charset.forName(contentType.getEncoding()));
+        }
+
+        /**
+         * Writes the unread part of the request body to a file, replacing its
+         * content. The body is copied once, in large blocks, and its size and
+         * digest are computed on the way. Use this instead of
+         * {@link #parseBody(Map)} to store large uploads.
+         *
+         * @param destination
+         *            file to write
+         * @param digestAlgorithm
+         *            name of a {@link java.security.MessageDigest} algorithm,
+         *            such as "SHA-256", or null to skip the digest
+         */
+        default ReceivedFile receiveBody(File destination, String digestAlgorithm) throws IOException {
+            return ReceivedFile.receive(getInputStream(), destination, digestAlgorithm);
+        }
+
         /**
          * Get the remote ip address of the requester.
          *
@@ -1293,8 +1634,224 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * HTTP Request methods, with the ability to decode a <code>String</code>
-     * back to its enum value.
+     * How a client connection ended, or {@link #OPEN} while it can serve
+     * another request.
+     */
+    public enum ConnectionOutcome {
+        /**
+         * The connection stays open for another request.
+         */
+        OPEN,
+        /**
+         * The client closed the connection.
+         */
+        EOF,
+        /**
+         * The client sent nothing for longer than the socket timeout.
+         */
+        TIMEOUT,
+        /**
+         * The server closed the connection after a response, because of
+         * {@code Connection: close}, a protocol without keep-alive, an
+         * undrained request body or the end of an upgraded or HTTP/2
+         * connection.
+         */
+        CLOSE_REQUESTED,
+        /**
+         * The connection was closed because of an error.
+         */
+        ERROR,
+        /**
+         * The connection was refused by the {@link AdmissionControl}, when it
+         * was accepted or when a request arrived.
+         */
+        REJECTED
+    }
+
+    /**
+     * Limits on how long a client connection is reused.
+     */
+    public static final class KeepAlivePolicy {
+
+        /**
+         * No request limit; idle connections time out after the socket read
+         * timeout.
+         */
+        public static final KeepAlivePolicy DEFAULT = new KeepAlivePolicy(0, 0);
+
+        private final int maxRequests;
+
+        private final int idleTimeout;
+
+        /**
+         * @param maxRequests
+         *            number of requests served on one connection before it is
+         *            closed, or 0 for no limit
+         * @param idleTimeout
+         *            milliseconds to wait for the next request on a connection
+         *            that is kept alive, or 0 to use the socket read timeout
+         */
+        public KeepAlivePolicy(int maxRequests, int idleTimeout) {
+            this.maxRequests = maxRequests;
+            this.idleTimeout = idleTimeout;
+        }
+
+        public int getMaxRequests() {
+            return maxRequests;
+        }
+
+        public int getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        boolean allowsRequestAfter(int requestCount) {
+            return maxRequests <= 0 || requestCount < maxRequests;
+        }
+
+        /**
+         * @return value of the Keep-Alive response header sent to HTTP/1.0
+         *         clients
+         */
+        String headerValue(int requestCount) {
+            StringBuilder value = new StringBuilder();
+            if (idleTimeout > 0) {
+                value.append("timeout=").append(Math.max(1, idleTimeout / 1000));
+            }
+            if (maxRequests > 0) {
+                value.append(value.length() > 0 ? ", " : "").append("max=").append(maxRequests - requestCount);
+            }
+            return value.toString();
+        }
+    }
+
+    /**
+     * Outcome of {@link #drain(long, TimeUnit)}.
+     */
+    public static final class DrainResult {
+
+        private final int drained;
+
+        private final int killed;
+
+        public DrainResult(int drained, int killed) {
+            this.drained = drained;
+            this.killed = killed;
+        }
+
+        /**
+         * @return number of connections that finished their exchanges and
+         *         closed, or were closed while idle, before the deadline
+         */
+        public int getDrained() {
+            return drained;
+        }
+
+        /**
+         * @return number of connections that were closed forcibly at the
+         *         deadline
+         */
+        public int getKilled() {
+            return killed;
+        }
+
+        @Override
+        public String toString() {
+            return "DrainResult{drained=" + drained + ", killed=" + killed + "}";
+        }
+    }
+
+    /**
+     * State of an open client connection, for diagnostics.
+     */
+    public static final class ConnectionInfo {
+
+        private final SocketAddress remoteAddress;
+
+        private final long startTime;
+
+        private final int requestCount;
+
+        private final boolean idle;
+
+        ConnectionInfo(SocketAddress remoteAddress, long startTime, int requestCount, boolean idle) {
+            this.remoteAddress = remoteAddress;
+            this.startTime = startTime;
+            this.requestCount = requestCount;
+            this.idle = idle;
+        }
+
+        /**
+         * @return address of the client, or null if unknown
+         */
+        public SocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        /**
+         * @return time the connection was accepted, in milliseconds since the
+         *         epoch
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return number of requests read from the connection so far
+         */
+        public int getRequestCount() {
+            return requestCount;
+        }
+
+        /**
+         * @return true if the connection is waiting for another request
+         */
+        public boolean isIdle() {
+            return idle;
+        }
+
+        @Override
+        public String toString() {
+            return "ConnectionInfo{remoteAddress=" + remoteAddress + ", startTime=" + startTime + ", requestCount=" + requestCount + ", idle=" + idle + "}";
+        }
+    }
+
+    /**
+     * Decides whether a request sent with {@code Expect: 100-continue} may
+     * send its body. It is consulted after the request header has been read
+     * and before the handler runs; it should look at the headers only.
+     */
+    public interface ContinueHandler {
+
+        /**
+         * @return null to let the client send the body, or a final response
+         *         that rejects the request, such as 413 or 401, in which case
+         *         the body is never read and the connection is closed
+         */
+        Response checkContinue(IHTTPSession session);
+    }
+
+    /**
+     * Protocol that takes over a connection after a 101 Switching Protocols
+     * response has been sent. It runs on the thread that served the request.
+     */
+    public interface ConnectionUpgrade {
+
+        /**
+         * Speaks the upgraded protocol until the connection is finished with.
+         * The connection is closed when this method returns.
+         *
+         * @param inputStream
+         *            connection input; may contain bytes already buffered
+         *            after the request header
+         * @param outputStream
+         *            connection output
+         */
+        void run(InputStream inputStream, OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * HTTP Request methods, with the ability to decode a <code>String</code>
+     * back to its enum value.
      */
     public enum Method {
         GET,
@@ -1493,6 +2050,17 @@ public abstract class NanoHTTPD {
 
         private boolean keepAlive;
 
+        /**
+         * Protocol to switch to after a 101 response is sent, may be null.
+         */
+        private ConnectionUpgrade upgrade;
+
+        /**
+         * Tag of the flush ticket held while this response is sent, may be
+         * null.
+         */
+        private String flushTag;
+
         /**
          * Creates a fixed length response if totalBytes>=0, otherwise chunked.
          */
@@ -1613,6 +2181,43 @@ public abstract class NanoHTTPD {
             this.keepAlive = useKeepAlive;
         }
 
+        public ConnectionUpgrade getUpgrade() {
+            return this.upgrade;
+        }
+
+        /**
+         * Sets the protocol that takes over the connection once this
+         * response has been sent. Only meaningful for a 101 response.
+         */
+        public void setUpgrade(ConnectionUpgrade upgrade) {
+            this.upgrade = upgrade;
+        }
+
+        public String getFlushTag() {
+            return this.flushTag;
+        }
+
+        /**
+         * Tags the response, typically with the route that produced it, so
+         * that {@link NanoHTTPD#flush(String, long, TimeUnit)} can wait for
+         * it without waiting for responses with other tags.
+         */
+        public void setFlushTag(String flushTag) {
+            this.flushTag = flushTag;
+        }
+
+        List<Map.Entry<String, String>> getHeaderEntries() {
+            return Collections.unmodifiableList(this.headersList);
+        }
+
+        long getContentLength() {
+            return this.contentLength;
+        }
+
+        boolean isChunkedTransfer() {
+            return this.chunkedTransfer;
+        }
+
         /**
          * Sends given response to the socket.
          */
@@ -1620,7 +2225,7 @@ public abstract class NanoHTTPD {
             SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
             gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
 
-            try (FlushTicket ignore = flushManager.open()) {
+            try (FlushTicket ignore = flushManager.open(this.flushTag)) {
                 if (this.status == null) {
                     throw new Error("sendResponse(): Status can't be null.");
                 }
@@ -1646,7 +2251,10 @@ public abstract class NanoHTTPD {
                     setChunkedTransfer(true);
                 }
                 long pending = this.data != null ? this.contentLength : 0;
-                if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
+                if (this.status.getRequestStatus() == Status.SWITCH_PROTOCOL.getRequestStatus()) {
+                    // a 101 response has no body; the next bytes belong to the new protocol
+                    pending = 0;
+                } else if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
                     printHeader(pw, "Transfer-Encoding", "chunked");
                 } else if (!encodeAsGzip) {
                     pending = sendContentLengthHeaderIfNotAlreadyPresent(pw, pending);
@@ -1734,6 +2342,17 @@ public abstract class NanoHTTPD {
             this.chunkedTransfer = chunkedTransfer;
         }
 
+        /**
+         * @return whether the response body will be sent with a
+         *         content-length header rather than chunked
+         */
+        boolean hasKnownLength(Method requestMethod) {
+            if (getHeader("content-length") != null || requestMethod == Method.HEAD) {
+                return true;
+            }
+            return !this.chunkedTransfer && !this.encodeAsGzip;
+        }
+
         public void setData(InputStream data) {
             this.data = data;
         }
@@ -1773,41 +2392,99 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * The runnable that will be used for the main listening thread.
+     * Thrown while reading a request body that cannot be accepted, such as
+     * malformed chunked encoding or a body over the size limit. The status
+     * is sent to the client if no response has been started.
+     */
+    public static final class RequestBodyException extends IOException {
+
+        private static final long serialVersionUID = -4096817224569253364L;
+
+        private final Response.Status status;
+
+        public RequestBodyException(Response.Status status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public Response.Status getStatus() {
+            return this.status;
+        }
+    }
+
+    /**
+     * The runnable that will be used for the main listening thread. The
+     * socket is bound before the thread starts.
      */
     public class ServerRunnable implements Runnable {
 
         private final int timeout;
 
-        private IOException bindException;
+        /**
+         * Socket of an additional listener that shares the port of the main
+         * one, or null for the main listener.
+         */
+        private final ServerSocket serverSocket;
 
-        private boolean hasBinded = false;
+        private final AtomicLong accepted = new AtomicLong();
 
         public ServerRunnable(int timeout) {
+            this(timeout, null);
+        }
+
+        ServerRunnable(int timeout, ServerSocket serverSocket) {
             this.timeout = timeout;
+            this.serverSocket = serverSocket;
+        }
+
+        ServerSocket getServerSocket() {
+            return serverSocket != null ? serverSocket : myServerSocket;
+        }
+
+        /**
+         * @return number of connections accepted by this listener
+         */
+        public long getAcceptedCount() {
+            return accepted.get();
         }
 
         @Override
         public void run() {
-            try {
-                myServerSocket.bind(hostname != null ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
-                hasBinded = true;
-            } catch (IOException e) {
-                this.bindException = e;
-                return;
-            }
+            final ServerSocket listenSocket = getServerSocket();
             do {
                 try {
-                    final Socket finalAccept = NanoHTTPD.this.myServerSocket.accept();
-                    if (this.timeout > 0) {
-                        finalAccept.setSoTimeout(this.timeout);
+                    final Socket finalAccept = listenSocket.accept();
+                    accepted.incrementAndGet();
+                    AdmissionControl admissionControl = getAdmissionControl();
+                    String client = null;
+                    if (admissionControl != null) {
+                        client = remoteIp(finalAccept.getInetAddress());
+                        if (!admissionControl.tryAcquireConnection(client)) {
+                            rejectConnection(finalAccept);
+                            continue;
+                        }
+                    }
+                    ClientHandler clientHandler;
+                    try {
+                        if (this.timeout > 0) {
+                            finalAccept.setSoTimeout(this.timeout);
+                        }
+                        getSocketOptions().applyTo(finalAccept);
+                        final InputStream inputStream = finalAccept.getInputStream();
+                        clientHandler = createClientHandler(finalAccept, inputStream);
+                    } catch (IOException e) {
+                        if (admissionControl != null) {
+                            admissionControl.releaseConnection(client);
+                        }
+                        throw e;
                     }
-                    final InputStream inputStream = finalAccept.getInputStream();
-                    NanoHTTPD.this.asyncRunner.exec(createClientHandler(finalAccept, inputStream));
+                    clientHandler.admissionControl = admissionControl;
+                    clientHandler.admittedClient = client;
+                    execClientHandler(clientHandler);
                 } catch (IOException e) {
                     NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
                 }
-            } while (!NanoHTTPD.this.myServerSocket.isClosed());
+            } while (!listenSocket.isClosed());
         }
     }
 
@@ -1867,6 +2544,35 @@ public abstract class NanoHTTPD {
      */
     public static final int SOCKET_READ_TIMEOUT = 5000;
 
+    /**
+     * Interval at which {@link #drain(long, TimeUnit)} checks for connections
+     * that have closed.
+     */
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    /**
+     * Default maximum number of unread request body bytes that are discarded
+     * to keep a connection alive.
+     */
+    public static final long DEFAULT_BODY_DRAIN_LIMIT = 64 * 1024;
+
+    /**
+     * Default number of bytes that buffered request bodies may occupy in
+     * memory across all requests.
+     */
+    public static final long DEFAULT_BODY_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    /**
+     * Default maximum size of a request body after content decoding.
+     */
+    public static final long DEFAULT_MAX_DECODED_BODY_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Default maximum number of threads serving HTTP/2 streams, over all
+     * connections.
+     */
+    public static final int DEFAULT_MAX_HTTP2_STREAM_THREADS = 256;
+
     /**
      * Common MIME type for dynamic content: plain text
      */
@@ -2001,7 +2707,7 @@ public abstract class NanoHTTPD {
         return mime == null ? "application/octet-stream" : mime;
     }
 
-    private static final void safeClose(Object closeable) {
+    static final void safeClose(Object closeable) {
         try {
             if (closeable != null) {
                 if (closeable instanceof Closeable) {
@@ -2029,6 +2735,30 @@ public abstract class NanoHTTPD {
 
     private Thread myThread;
 
+    /**
+     * All listeners, starting with the main one; there are more than one when
+     * {@link SocketOptions#getAcceptors()} asks for several and the platform
+     * supports SO_REUSEPORT.
+     */
+    private volatile List<ServerRunnable> listeners = Collections.emptyList();
+
+    private volatile List<Thread> listenerThreads = Collections.emptyList();
+
+    private volatile Path unixSocketPath;
+
+    private volatile boolean tcpListenerEnabled = true;
+
+    /**
+     * Open client connections, from accept until the handler ends.
+     */
+    private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean draining;
+
+    private volatile UnixSocketListener unixListener;
+
+    private Thread unixListenerThread;
+
     /**
      * Pluggable strategy for asynchronously executing requests.
      */
@@ -2042,7 +2772,51 @@ public abstract class NanoHTTPD {
     /**
      * Flush manager.
      */
-    private final FlushManager flushManager;
+    private final TaggedFlushManager flushManager;
+
+    private volatile boolean http2Enabled;
+
+    private volatile int maxHttp2StreamThreads = DEFAULT_MAX_HTTP2_STREAM_THREADS;
+
+    private volatile long bodyDrainLimit = DEFAULT_BODY_DRAIN_LIMIT;
+
+    private volatile long maxChunkedBodySize = -1;
+
+    private volatile long maxBufferedBodySize = -1;
+
+    private volatile boolean requestBodyDecoding;
+
+    private volatile ContinueHandler continueHandler;
+
+    private volatile boolean hostNamePrefetch;
+
+    private volatile KeepAlivePolicy keepAlivePolicy = KeepAlivePolicy.DEFAULT;
+
+    private volatile SocketOptions socketOptions = SocketOptions.DEFAULT;
+
+    private volatile AdmissionControl admissionControl;
+
+    /**
+     * Number of closed connections, indexed by {@link ConnectionOutcome}.
+     */
+    private final AtomicLongArray connectionOutcomes = new AtomicLongArray(ConnectionOutcome.values().length);
+
+    private final HostNameCache hostNameCache = new HostNameCache(HostNameCache.DEFAULT_MAX_ENTRIES, HostNameCache.DEFAULT_TTL_MILLIS);
+
+    private volatile long maxDecodedBodySize = DEFAULT_MAX_DECODED_BODY_SIZE;
+
+    private final InflaterPool inflaterPool = new InflaterPool(InflaterPool.DEFAULT_MAX_POOLED);
+
+    /**
+     * Memory shared by the request bodies that {@link IHTTPSession#parseBody}
+     * buffers.
+     */
+    private final MemoryBudget bodyMemoryBudget = new MemoryBudget(DEFAULT_BODY_MEMORY_BUDGET);
+
+    /**
+     * Serves HTTP/2 streams; created when the first HTTP/2 connection opens.
+     */
+    private ExecutorService http2Executor;
 
     /**
      * Constructs an HTTP server on given port.
@@ -2065,8 +2839,8 @@ public abstract class NanoHTTPD {
     public NanoHTTPD(String hostname, int port) {
         this.hostname = hostname;
         this.myPort = port;
-        flushManager = new PhaserFlushManager();
-        setTempFileManagerFactory(new DefaultTempFileManagerFactory());
+        flushManager = new TaggedFlushManager();
+        setTempFileManagerFactory(new PooledTempFileManagerFactory());
         setAsyncRunner(new DefaultAsyncRunner());
     }
 
@@ -2074,6 +2848,348 @@ public abstract class NanoHTTPD {
         flushManager.flush();
     }
 
+    /**
+     * Waits until the responses being sent when this method is called have
+     * been sent, or until the timeout elapses.
+     *
+     * @return true if the responses were sent
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        return flushManager.flush(timeout, unit);
+    }
+
+    /**
+     * Waits until the responses with the given flush tag that are being sent
+     * when this method is called have been sent, or until the timeout
+     * elapses. Responses with other tags are not waited for.
+     *
+     * @return true if the responses were sent
+     * @see Response#setFlushTag(String)
+     */
+    public boolean flush(String flushTag, long timeout, TimeUnit unit) throws InterruptedException {
+        return flushManager.flush(flushTag, timeout, unit);
+    }
+
+    /**
+     * Waits until no response with the given flush tag is being sent, or until
+     * the timeout elapses.
+     *
+     * @return true if no response with the tag was being sent
+     */
+    public boolean awaitQuiescence(String flushTag, long timeout, TimeUnit unit) throws InterruptedException {
+        return flushManager.awaitQuiescence(flushTag, timeout, unit);
+    }
+
+    /**
+     * @return number of responses with the given flush tag being sent
+     */
+    public long getInFlightCount(String flushTag) {
+        return flushManager.getOpenCount(flushTag);
+    }
+
+    /**
+     * @return numbers of responses being sent, by flush tag; untagged
+     *         responses and tags without responses in flight are omitted
+     */
+    public SortedMap<String, Long> getInFlightCounts() {
+        return flushManager.getOpenCounts();
+    }
+
+    FlushManager getFlushManager() {
+        return flushManager;
+    }
+
+    public long getBodyDrainLimit() {
+        return bodyDrainLimit;
+    }
+
+    /**
+     * Sets the maximum number of request body bytes left unread by a
+     * handler that are read and discarded so the connection can serve
+     * another request. The connection is closed instead if more is left.
+     */
+    public void setBodyDrainLimit(long bodyDrainLimit) {
+        this.bodyDrainLimit = bodyDrainLimit;
+    }
+
+    public long getMaxChunkedBodySize() {
+        return maxChunkedBodySize;
+    }
+
+    /**
+     * Sets the maximum size of a request body sent with chunked transfer
+     * encoding. Reading past the limit fails with a 413 status. The default
+     * of -1 means no limit.
+     */
+    public void setMaxChunkedBodySize(long maxChunkedBodySize) {
+        this.maxChunkedBodySize = maxChunkedBodySize;
+    }
+
+    public long getMaxBufferedBodySize() {
+        return maxBufferedBodySize;
+    }
+
+    /**
+     * Sets the maximum size of a request body that
+     * {@link IHTTPSession#parseBody} buffers, in memory or on disk. Larger
+     * bodies are rejected with a 413 status. The default of -1 means no
+     * limit. PUT bodies and multipart file parts are streamed and not
+     * subject to it; the values of the other multipart fields together are.
+     */
+    public void setMaxBufferedBodySize(long maxBufferedBodySize) {
+        this.maxBufferedBodySize = maxBufferedBodySize;
+    }
+
+    public long getBodyMemoryBudget() {
+        return bodyMemoryBudget.getLimit();
+    }
+
+    /**
+     * Sets the number of bytes that request bodies buffered by
+     * {@link IHTTPSession#parseBody} may occupy in memory, summed over all
+     * concurrent requests. Bodies are spooled to temporary files once the
+     * budget is used up; a request whose body has to be loaded into memory
+     * when the budget cannot cover it is rejected with a 503 status.
+     */
+    public void setBodyMemoryBudget(long bytes) {
+        bodyMemoryBudget.setLimit(bytes);
+    }
+
+    /**
+     * @return bytes of request bodies currently buffered in memory
+     */
+    public long getBufferedBodyBytes() {
+        return bodyMemoryBudget.getUsed();
+    }
+
+    /**
+     * @return number of client connections that have ended with the given
+     *         outcome since the server was created
+     */
+    public long getConnectionCount(ConnectionOutcome outcome) {
+        return connectionOutcomes.get(outcome.ordinal());
+    }
+
+    /**
+     * @return number of sockets listening on the port
+     */
+    public int getListenerCount() {
+        return listeners.size();
+    }
+
+    /**
+     * @return number of connections accepted by all listeners
+     */
+    public long getAcceptedCount() {
+        long total = 0;
+        for (ServerRunnable listener : listeners) {
+            total += listener.getAcceptedCount();
+        }
+        UnixSocketListener unixListener = this.unixListener;
+        if (unixListener != null) {
+            total += unixListener.getAcceptedCount();
+        }
+        return total;
+    }
+
+    public SocketOptions getSocketOptions() {
+        return socketOptions;
+    }
+
+    /**
+     * Sets options for the listening socket and accepted connections. Set
+     * them before the server is started.
+     */
+    public void setSocketOptions(SocketOptions socketOptions) {
+        this.socketOptions = Objects.requireNonNull(socketOptions, "socketOptions");
+    }
+
+    /**
+     * @return the admission control, or null if clients are not limited
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * Limits the connections and request rate of each client. Connections
+     * on a Unix domain socket are not counted against the connection limit,
+     * and the requests of HTTP/2 streams are not rate limited.
+     *
+     * @param admissionControl
+     *            the admission control, or null to not limit clients
+     */
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * Answers a connection refused by the admission control with 503 and
+     * closes it. A TLS connection is closed without a response, because
+     * answering would require a handshake.
+     */
+    private void rejectConnection(Socket socket) {
+        connectionOutcomes.incrementAndGet(ConnectionOutcome.REJECTED.ordinal());
+        if (!(socket instanceof SSLSocket)) {
+            try {
+                socket.getOutputStream().write(AdmissionControl.SERVICE_UNAVAILABLE);
+            } catch (IOException e) {
+                NanoHTTPD.LOG.log(Level.FINE, "Could not answer a rejected connection", e);
+            }
+        }
+        safeClose(socket);
+    }
+
+    /**
+     * Address of a client as reported by
+     * {@link IHTTPSession#getRemoteIpAddress()}.
+     */
+    static String remoteIp(InetAddress inetAddress) {
+        return inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress();
+    }
+
+    public KeepAlivePolicy getKeepAlivePolicy() {
+        return keepAlivePolicy;
+    }
+
+    /**
+     * Sets how long client connections are reused. Applies to HTTP/1.1
+     * connections and to HTTP/1.0 connections whose client asks for
+     * keep-alive.
+     */
+    public void setKeepAlivePolicy(KeepAlivePolicy keepAlivePolicy) {
+        this.keepAlivePolicy = Objects.requireNonNull(keepAlivePolicy, "keepAlivePolicy");
+    }
+
+    public Path getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    /**
+     * Sets a path at which the server also listens on a Unix domain socket,
+     * for clients on the same host. The file is created when the server
+     * starts and deleted when it stops. Requires Java 16 or later. Read
+     * timeouts do not apply to connections on this socket.
+     *
+     * @param unixSocketPath
+     *            the socket file, or null for no Unix domain socket
+     */
+    public void setUnixSocketPath(Path unixSocketPath) {
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    public boolean isTcpListenerEnabled() {
+        return tcpListenerEnabled;
+    }
+
+    /**
+     * Sets whether the server listens on its TCP port. Disable it to serve
+     * only on the Unix domain socket.
+     */
+    public void setTcpListenerEnabled(boolean tcpListenerEnabled) {
+        this.tcpListenerEnabled = tcpListenerEnabled;
+    }
+
+    public boolean isHostNamePrefetch() {
+        return hostNamePrefetch;
+    }
+
+    /**
+     * Starts a background reverse lookup of the remote address of each
+     * accepted connection, so {@link IHTTPSession#getRemoteHostName()}
+     * usually finds the name cached. Without prefetching, the name is looked
+     * up when it is first asked for. Either way, names are cached for all
+     * connections for a few minutes.
+     */
+    public void setHostNamePrefetch(boolean hostNamePrefetch) {
+        this.hostNamePrefetch = hostNamePrefetch;
+    }
+
+    public ContinueHandler getContinueHandler() {
+        return continueHandler;
+    }
+
+    /**
+     * Sets the handler that decides whether requests sent with
+     * {@code Expect: 100-continue} get the interim response. The interim
+     * response is sent when the request body is first read; without a
+     * handler every such request is allowed to continue.
+     */
+    public void setContinueHandler(ContinueHandler continueHandler) {
+        this.continueHandler = continueHandler;
+    }
+
+    public boolean isRequestBodyDecoding() {
+        return requestBodyDecoding;
+    }
+
+    /**
+     * Enables decoding of request bodies sent with
+     * {@code Content-Encoding: gzip} or {@code deflate}. Handlers then read
+     * the decoded body from {@link IHTTPSession#getInputStream()} and
+     * {@link IHTTPSession#parseBody}, and the content-encoding header is
+     * removed. Decoding happens as the body is read.
+     */
+    public void setRequestBodyDecoding(boolean requestBodyDecoding) {
+        this.requestBodyDecoding = requestBodyDecoding;
+    }
+
+    public long getMaxDecodedBodySize() {
+        return maxDecodedBodySize;
+    }
+
+    /**
+     * Sets the maximum size of a decoded request body. Reading past the limit
+     * fails with a 413 status, which stops compressed bodies that expand to
+     * far more than was sent. -1 means no limit.
+     */
+    public void setMaxDecodedBodySize(long maxDecodedBodySize) {
+        this.maxDecodedBodySize = maxDecodedBodySize;
+    }
+
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    /**
+     * Enables HTTP/2. Cleartext connections may then start with the HTTP/2
+     * connection preface (prior knowledge), and secure server sockets offer
+     * {@code h2} through ALPN. Takes effect for connections accepted after
+     * the call; ALPN is configured when the server is started.
+     */
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    synchronized ExecutorService getHttp2Executor() {
+        if (http2Executor == null) {
+            // streams beyond the limit are refused with REFUSED_STREAM
+            http2Executor = new ThreadPoolExecutor(0, maxHttp2StreamThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "NanoHttpd HTTP/2 Stream");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return http2Executor;
+    }
+
+    public int getMaxHttp2StreamThreads() {
+        return maxHttp2StreamThreads;
+    }
+
+    /**
+     * Sets the maximum number of threads serving HTTP/2 streams, over all
+     * connections. A stream that arrives while all of them are busy is
+     * refused, and the client may retry it. Set it before the first HTTP/2
+     * connection opens.
+     */
+    public void setMaxHttp2StreamThreads(int maxHttp2StreamThreads) {
+        if (maxHttp2StreamThreads < 1) {
+            throw new IllegalArgumentException("maxHttp2StreamThreads " + maxHttp2StreamThreads);
+        }
+        this.maxHttp2StreamThreads = maxHttp2StreamThreads;
+    }
+
     /**
      * Forcibly closes all connections that are open.
      */
@@ -2188,6 +3304,9 @@ public abstract class NanoHTTPD {
     }
 
     public final boolean isAlive() {
+        if (this.myThread == null && this.unixListenerThread != null) {
+            return this.unixListenerThread.isAlive();
+        }
         return wasStarted() && !this.myServerSocket.isClosed() && this.myThread.isAlive();
     }
 
@@ -2274,6 +3393,8 @@ public abstract class NanoHTTPD {
         if (Method.PUT.equals(method) || Method.POST.equals(method)) {
             try {
                 session.parseBody(files);
+            } catch (RequestBodyException rbe) {
+                return newFixedLengthResponse(rbe.getStatus(), NanoHTTPD.MIME_PLAINTEXT, rbe.getMessage());
             } catch (IOException ioe) {
                 return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
             } catch (ResponseException re) {
@@ -2347,7 +3468,9 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * Start the server.
+     * Start the server. The listening sockets are bound before this method
+     * returns, so {@link #getListeningPort()} reports the port chosen for a
+     * server constructed with port 0.
      *
      * @param timeout
      *            timeout to use for socket connections.
@@ -2357,26 +3480,81 @@ public abstract class NanoHTTPD {
      *             if the socket is in use.
      */
     public void start(final int timeout, boolean daemon) throws IOException {
-        this.myServerSocket = this.getServerSocketFactory().create();
-        this.myServerSocket.setReuseAddress(true);
-
-        ServerRunnable serverRunnable = createServerRunnable(timeout);
-        this.myThread = new Thread(serverRunnable);
-        this.myThread.setDaemon(daemon);
-        this.myThread.setName("NanoHttpd Main Listener");
-        this.myThread.start();
-        while (!serverRunnable.hasBinded && serverRunnable.bindException == null) {
+        ServerSocketFactory serverSocketFactory = this.getServerSocketFactory();
+        if (http2Enabled && serverSocketFactory instanceof SecureServerSocketFactory && ((SecureServerSocketFactory) serverSocketFactory).getApplicationProtocols() == null) {
+            ((SecureServerSocketFactory) serverSocketFactory).setApplicationProtocols("h2", "http/1.1");
+        }
+        if (!this.tcpListenerEnabled && this.unixSocketPath == null) {
+            throw new IllegalStateException("neither a TCP nor a Unix domain socket listener is enabled");
+        }
+        this.draining = false;
+        if (this.tcpListenerEnabled) {
+            startTcpListeners(serverSocketFactory, timeout, daemon);
+        }
+        if (this.unixSocketPath != null) {
             try {
-                Thread.sleep(10L);
-            } catch (Throwable e) {
-                // on android this may not be allowed, that's why we
-                // catch throwable the wait should be very short because we are
-                // just waiting for the bind of the socket
+                this.unixListener = UnixSocketListener.bind(this, this.unixSocketPath, getSocketOptions().getBacklog());
+            } catch (IOException e) {
+                stop();
+                throw e;
             }
+            this.unixListenerThread = new Thread(this.unixListener);
+            this.unixListenerThread.setDaemon(daemon);
+            this.unixListenerThread.setName("NanoHttpd Unix Socket Listener");
+            this.unixListenerThread.start();
         }
-        if (serverRunnable.bindException != null) {
-            throw serverRunnable.bindException;
+    }
+
+    private void startTcpListeners(ServerSocketFactory serverSocketFactory, final int timeout, boolean daemon) throws IOException {
+        int acceptors = getSocketOptions().getAcceptors();
+        this.myServerSocket = serverSocketFactory.create();
+        List<ServerRunnable> runnables = new ArrayList<ServerRunnable>(acceptors);
+        try {
+            this.myServerSocket.setReuseAddress(true);
+            if (acceptors > 1 && !SocketOptions.enableReusePort(this.myServerSocket)) {
+                NanoHTTPD.LOG.log(Level.INFO, "SO_REUSEPORT is not supported; using a single listener");
+                acceptors = 1;
+            }
+            getSocketOptions().applyTo(this.myServerSocket);
+            // binding here rather than on the listener thread reports a port
+            // in use to the caller and, for port 0, lets it read the chosen port
+            bind(this.myServerSocket, this.myPort);
+            runnables.add(createServerRunnable(timeout));
+            for (int i = 1; i < acceptors; i++) {
+                ServerSocket serverSocket = serverSocketFactory.create();
+                runnables.add(new ServerRunnable(timeout, serverSocket));
+                serverSocket.setReuseAddress(true);
+                SocketOptions.enableReusePort(serverSocket);
+                getSocketOptions().applyTo(serverSocket);
+                bind(serverSocket, this.myServerSocket.getLocalPort());
+            }
+        } catch (IOException e) {
+            safeClose(this.myServerSocket);
+            for (ServerRunnable runnable : runnables) {
+                safeClose(runnable.getServerSocket());
+            }
+            throw e;
         }
+        List<Thread> threads = new ArrayList<Thread>(acceptors);
+        this.myThread = startListener(runnables.get(0), daemon, "NanoHttpd Main Listener");
+        threads.add(this.myThread);
+        for (int i = 1; i < runnables.size(); i++) {
+            threads.add(startListener(runnables.get(i), daemon, "NanoHttpd Listener " + i));
+        }
+        this.listeners = Collections.unmodifiableList(runnables);
+        this.listenerThreads = Collections.unmodifiableList(threads);
+    }
+
+    private void bind(ServerSocket serverSocket, int port) throws IOException {
+        serverSocket.bind(hostname != null ? new InetSocketAddress(hostname, port) : new InetSocketAddress(port), getSocketOptions().getBacklog());
+    }
+
+    private static Thread startListener(ServerRunnable serverRunnable, boolean daemon, String name) {
+        Thread thread = new Thread(serverRunnable);
+        thread.setDaemon(daemon);
+        thread.setName(name);
+        thread.start();
+        return thread;
     }
 
     /**
@@ -2384,17 +3562,108 @@ public abstract class NanoHTTPD {
      */
     public void stop() {
         try {
-            safeClose(this.myServerSocket);
+            closeListeners();
             this.asyncRunner.closeAll();
-            if (this.myThread != null) {
-                this.myThread.join();
+            joinListeners();
+            synchronized (this) {
+                if (this.http2Executor != null) {
+                    this.http2Executor.shutdownNow();
+                    this.http2Executor = null;
+                }
+            }
+            if (this.tempFileManagerFactory instanceof Closeable) {
+                safeClose(this.tempFileManagerFactory);
             }
         } catch (Exception e) {
             NanoHTTPD.LOG.log(Level.SEVERE, "Could not stop all connections", e);
         }
     }
 
+    /**
+     * Stops the server gracefully. The server stops accepting connections,
+     * closes connections that are idle between requests, and asks clients to
+     * close the others by sending {@code Connection: close} with the next
+     * response. It waits for the exchanges in flight to complete until the
+     * timeout elapses, then closes the remaining connections and stops as
+     * {@link #stop()} does. HTTP/2 connections are not drained.
+     *
+     * @return counts of connections that closed in time and that were
+     *         closed forcibly
+     */
+    public DrainResult drain(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        this.draining = true;
+        closeListeners();
+        joinListeners();
+        int total = this.connections.size();
+        while (true) {
+            for (ClientHandler clientHandler : this.connections) {
+                if (clientHandler.isIdle()) {
+                    clientHandler.close();
+                }
+            }
+            long remaining = deadline - System.nanoTime();
+            if (this.connections.isEmpty() || remaining <= 0) {
+                break;
+            }
+            // responses in flight hold flush tickets; a connection that is
+            // still reading its request holds none, so check again shortly
+            long poll = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(DRAIN_POLL_MILLIS));
+            if (this.flushManager.flush(poll, TimeUnit.NANOSECONDS)) {
+                TimeUnit.NANOSECONDS.sleep(poll);
+            }
+        }
+        int killed = this.connections.size();
+        stop();
+        return new DrainResult(Math.max(0, total - killed), killed);
+    }
+
+    /**
+     * @return a snapshot of the open client connections
+     */
+    public List<ConnectionInfo> getConnections() {
+        List<ConnectionInfo> infos = new ArrayList<ConnectionInfo>(this.connections.size());
+        for (ClientHandler clientHandler : this.connections) {
+            infos.add(clientHandler.getInfo());
+        }
+        return infos;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Registers a new connection and hands it to the async runner.
+     */
+    void execClientHandler(ClientHandler clientHandler) {
+        this.connections.add(clientHandler);
+        this.asyncRunner.exec(clientHandler);
+    }
+
+    private void closeListeners() {
+        safeClose(this.myServerSocket);
+        for (ServerRunnable listener : this.listeners) {
+            safeClose(listener.getServerSocket());
+        }
+        if (this.unixListener != null) {
+            this.unixListener.close();
+        }
+    }
+
+    private void joinListeners() throws InterruptedException {
+        if (this.myThread != null) {
+            this.myThread.join();
+        }
+        for (Thread thread : this.listenerThreads) {
+            thread.join();
+        }
+        if (this.unixListenerThread != null) {
+            this.unixListenerThread.join();
+        }
+    }
+
     public final boolean wasStarted() {
-        return this.myServerSocket != null && this.myThread != null;
+        return this.myServerSocket != null && this.myThread != null || this.unixListener != null;
     }
 }
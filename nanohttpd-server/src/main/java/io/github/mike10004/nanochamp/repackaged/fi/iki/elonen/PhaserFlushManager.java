@@ -1,10 +1,19 @@
 package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
 
 import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class PhaserFlushManager implements FlushManager {
 
-    private final Phaser phaser = new Phaser();
+    private final Phaser phaser = new Phaser() {
+        @Override
+        protected boolean onAdvance(int phase, int registeredParties) {
+            // the default terminates the phaser when the last ticket closes,
+            // after which new tickets are not counted
+            return false;
+        }
+    };
 
     @Override
     public FlushTicket open() {
@@ -14,9 +23,26 @@ public class PhaserFlushManager implements FlushManager {
     @Override
     public void flush() throws InterruptedException {
         int phase = phaser.getPhase();
+        if (phaser.getRegisteredParties() == 0) {
+            return;
+        }
         phaser.awaitAdvanceInterruptibly(phase);
     }
 
+    @Override
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        int phase = phaser.getPhase();
+        if (phaser.getRegisteredParties() == 0) {
+            return true;
+        }
+        try {
+            phaser.awaitAdvanceInterruptibly(phase, timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
     private class PhaserPartyTicket implements FlushTicket {
 
         public PhaserPartyTicket() {
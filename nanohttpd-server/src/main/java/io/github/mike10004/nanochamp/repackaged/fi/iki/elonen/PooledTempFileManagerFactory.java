@@ -0,0 +1,254 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFile;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFileManager;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFileManagerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Temp file strategy that keeps file system work off the request thread.
+ * <p>
+ * Managers are cheap to create: the directory is checked once, by the
+ * factory, and a temp file is not opened until {@link TempFile#open()} is
+ * called. Files released by {@link TempFileManager#clear()} are handed to a
+ * background reaper, which truncates them and keeps up to a fixed number of
+ * them for reuse, deleting the rest. The reaper thread exits when idle.
+ * </p>
+ * <p>
+ * Paths handed out by a manager must not be used after the manager has been
+ * cleared, because the file may then belong to another request.
+ * </p>
+ */
+public class PooledTempFileManagerFactory implements TempFileManagerFactory, Closeable {
+
+    public static final int DEFAULT_POOL_SIZE = 16;
+
+    private static final Logger LOG = Logger.getLogger(PooledTempFileManagerFactory.class.getName());
+
+    private final File tmpdir;
+
+    private final int poolSize;
+
+    private final ConcurrentLinkedQueue<File> pool = new ConcurrentLinkedQueue<File>();
+
+    /**
+     * Number of files in the pool.
+     */
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Number of pool slots taken, including those of files the reaper is
+     * still truncating.
+     */
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    private final ExecutorService reaper;
+
+    /**
+     * Set by {@link #close()}; released files are then deleted rather than
+     * pooled.
+     */
+    private volatile boolean closed;
+
+    public PooledTempFileManagerFactory() {
+        this(new File(System.getProperty("java.io.tmpdir")), DEFAULT_POOL_SIZE, 0);
+    }
+
+    /**
+     * @param tmpdir
+     *            directory in which files are created
+     * @param poolSize
+     *            maximum number of released files kept for reuse
+     * @param preallocated
+     *            number of files created in the background up front
+     */
+    public PooledTempFileManagerFactory(File tmpdir, int poolSize, final int preallocated) {
+        this.tmpdir = tmpdir;
+        this.poolSize = poolSize;
+        if (!tmpdir.exists()) {
+            tmpdir.mkdirs();
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "NanoHttpd Temp File Reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.reaper = executor;
+        if (preallocated > 0) {
+            reaper.execute(() -> {
+                for (int i = 0; i < Math.min(preallocated, this.poolSize); i++) {
+                    try {
+                        recycle(File.createTempFile("NanoHTTPD-", "", this.tmpdir));
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "could not preallocate temporary file", e);
+                        return;
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public TempFileManager create() {
+        return new PooledTempFileManager();
+    }
+
+    /**
+     * @return number of files currently kept for reuse
+     */
+    public int getPooledCount() {
+        return Math.max(0, pooled.get());
+    }
+
+    /**
+     * Deletes the files kept for reuse. The factory remains usable, but files
+     * released afterwards, including by managers cleared while the server is
+     * stopping, are deleted instead of pooled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        File file;
+        while ((file = take()) != null) {
+            delete(file);
+        }
+    }
+
+    private File take() {
+        File file = pool.poll();
+        if (file != null) {
+            pooled.decrementAndGet();
+            reserved.decrementAndGet();
+        }
+        return file;
+    }
+
+    private File acquire() throws IOException {
+        File file = take();
+        return file != null ? file : File.createTempFile("NanoHTTPD-", "", tmpdir);
+    }
+
+    private void release(final List<PooledTempFile> files) {
+        reaper.execute(() -> {
+            for (PooledTempFile file : files) {
+                NanoHTTPD.safeClose(file.stream);
+                recycle(file.file);
+            }
+        });
+    }
+
+    /**
+     * Empties a file and adds it to the pool, or deletes it if the pool is
+     * full. Runs on the reaper thread.
+     */
+    private void recycle(File file) {
+        if (closed) {
+            delete(file);
+            return;
+        }
+        if (reserved.incrementAndGet() > poolSize) {
+            reserved.decrementAndGet();
+            delete(file);
+            return;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            reserved.decrementAndGet();
+            delete(file);
+            return;
+        }
+        pool.add(file);
+        pooled.incrementAndGet();
+        if (closed && pool.remove(file)) {
+            // close() drained the pool while the file was being truncated
+            pooled.decrementAndGet();
+            reserved.decrementAndGet();
+            delete(file);
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            LOG.log(Level.WARNING, "could not delete temporary file: " + file.getAbsolutePath());
+        }
+    }
+
+    private class PooledTempFileManager implements TempFileManager {
+
+        private List<PooledTempFile> tempFiles;
+
+        @Override
+        public void clear() {
+            if (tempFiles != null && !tempFiles.isEmpty()) {
+                release(tempFiles);
+                tempFiles = null;
+            }
+        }
+
+        @Override
+        public TempFile createTempFile(String filename_hint) throws Exception {
+            PooledTempFile tempFile = new PooledTempFile(acquire());
+            if (tempFiles == null) {
+                tempFiles = new ArrayList<PooledTempFile>();
+            }
+            tempFiles.add(tempFile);
+            return tempFile;
+        }
+    }
+
+    private static class PooledTempFile implements TempFile {
+
+        private final File file;
+
+        private OutputStream stream;
+
+        PooledTempFile(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Closes the stream, if it was opened. The file itself is reclaimed
+         * when its manager is cleared.
+         */
+        @Override
+        public void delete() {
+            NanoHTTPD.safeClose(stream);
+        }
+
+        @Override
+        public String getName() {
+            return file.getAbsolutePath();
+        }
+
+        @Override
+        public OutputStream open() throws Exception {
+            if (stream == null) {
+                stream = new FileOutputStream(file);
+            }
+            return stream;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Request body that has been written to a file by
+ * {@link NanoHTTPD.IHTTPSession#receiveBody(File, String)}. The size and
+ * digest are computed while the body is copied, so the file does not have to
+ * be read again to obtain them.
+ */
+public final class ReceivedFile {
+
+    /**
+     * Size of the blocks in which the body is written to the file.
+     */
+    static final int TRANSFER_BLOCK_SIZE = 64 * 1024;
+
+    private final File file;
+
+    private final long size;
+
+    private final String digestAlgorithm;
+
+    private final byte[] digest;
+
+    private ReceivedFile(File file, long size, String digestAlgorithm, byte[] digest) {
+        this.file = file;
+        this.size = size;
+        this.digestAlgorithm = digestAlgorithm;
+        this.digest = digest;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of bytes written to the file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the digest algorithm, or null if no digest was computed
+     */
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * @return the digest of the content, or null if no digest was computed
+     */
+    public byte[] getDigest() {
+        return digest == null ? null : digest.clone();
+    }
+
+    /**
+     * @return the digest as lower case hexadecimal, or null if no digest was
+     *         computed
+     */
+    public String getDigestHex() {
+        if (digest == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Copies a stream to the end of its content into a file, replacing any
+     * existing content of the file. File input is moved with
+     * {@link FileChannel#transferFrom} when no digest is wanted; other input
+     * is written in blocks of {@link #TRANSFER_BLOCK_SIZE} bytes.
+     *
+     * @param digestAlgorithm
+     *            name of a {@link MessageDigest} algorithm, or null
+     */
+    static ReceivedFile receive(InputStream in, File destination, String digestAlgorithm) throws IOException {
+        MessageDigest md = null;
+        if (digestAlgorithm != null) {
+            try {
+                md = MessageDigest.getInstance(digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("unsupported digest algorithm " + digestAlgorithm, e);
+            }
+        }
+        long size = 0;
+        try (FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (md == null && in instanceof FileInputStream) {
+                FileChannel src = ((FileInputStream) in).getChannel();
+                long n;
+                while ((n = out.transferFrom(src, size, TRANSFER_BLOCK_SIZE * 16L)) > 0) {
+                    size += n;
+                }
+            } else {
+                byte[] buf = new byte[TRANSFER_BLOCK_SIZE];
+                int n;
+                while ((n = fill(in, buf)) > 0) {
+                    if (md != null) {
+                        md.update(buf, 0, n);
+                    }
+                    ByteBuffer block = ByteBuffer.wrap(buf, 0, n);
+                    while (block.hasRemaining()) {
+                        out.write(block);
+                    }
+                    size += n;
+                }
+            }
+        }
+        return new ReceivedFile(destination, size, digestAlgorithm, md == null ? null : md.digest());
+    }
+
+    /**
+     * Reads until the buffer is full or the input ends, so that each write
+     * covers a whole block rather than whatever one socket read returned.
+     *
+     * @return number of bytes read; 0 at the end of the input
+     */
+    private static int fill(InputStream in, byte[] buf) throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            int n = in.read(buf, total, buf.length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,25 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.io.IOException;
+
+/**
+ * Request body framing on an HTTP/1 connection. Whatever part of the body a
+ * handler leaves unread must be discarded before the next request on the
+ * connection can be parsed.
+ */
+interface RequestBody {
+
+    /**
+     * @return number of body bytes not yet read, or -1 if unknown until the
+     *         body has been read to its end
+     */
+    long getRemaining();
+
+    /**
+     * Reads and discards the rest of the body, unless that would mean more
+     * than {@code limit} bytes.
+     *
+     * @return true if the body was read to its end
+     */
+    boolean discardRemaining(long limit) throws IOException;
+}
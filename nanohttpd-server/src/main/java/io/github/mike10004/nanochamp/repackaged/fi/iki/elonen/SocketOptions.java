@@ -0,0 +1,236 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.util.Set;
+
+/**
+ * Options for the listening socket and the accepted connections. They apply
+ * to any {@link NanoHTTPD.ServerSocketFactory}, plain or secure. Unset
+ * options keep the platform defaults.
+ */
+public final class SocketOptions {
+
+    public static final SocketOptions DEFAULT = builder().build();
+
+    private final int backlog;
+
+    private final int receiveBufferSize;
+
+    private final int sendBufferSize;
+
+    private final Boolean tcpNoDelay;
+
+    private final Boolean keepAlive;
+
+    private final int linger;
+
+    private final int headerReadTimeout;
+
+    private final int acceptors;
+
+    private SocketOptions(Builder b) {
+        this.backlog = b.backlog;
+        this.receiveBufferSize = b.receiveBufferSize;
+        this.sendBufferSize = b.sendBufferSize;
+        this.tcpNoDelay = b.tcpNoDelay;
+        this.keepAlive = b.keepAlive;
+        this.linger = b.linger;
+        this.headerReadTimeout = b.headerReadTimeout;
+        this.acceptors = b.acceptors;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return maximum length of the queue of pending connections, or 0 for
+     *         the platform default
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return SO_RCVBUF size, or 0 for the platform default
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @return SO_SNDBUF size, or 0 for the platform default
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * @return TCP_NODELAY setting, or null for the platform default
+     */
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return SO_KEEPALIVE setting, or null for the platform default
+     */
+    public Boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return SO_LINGER timeout in seconds, or -1 for the platform default
+     */
+    public int getLinger() {
+        return linger;
+    }
+
+    /**
+     * @return milliseconds allowed for reading a request header, or 0 to use
+     *         the socket read timeout
+     */
+    public int getHeaderReadTimeout() {
+        return headerReadTimeout;
+    }
+
+    /**
+     * @return number of listening sockets that share the port, each with its
+     *         own accept thread
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Applies the options that must be set before the socket is bound.
+     */
+    void applyTo(ServerSocket serverSocket) throws IOException {
+        if (receiveBufferSize > 0) {
+            // accepted sockets inherit it; windows over 64K must be set before listening
+            serverSocket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    void applyTo(Socket socket) throws IOException {
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (tcpNoDelay != null) {
+            socket.setTcpNoDelay(tcpNoDelay);
+        }
+        if (keepAlive != null) {
+            socket.setKeepAlive(keepAlive);
+        }
+        if (linger >= 0) {
+            socket.setSoLinger(true, linger);
+        }
+    }
+
+    /**
+     * Enables SO_REUSEPORT, which lets several sockets listen on one port
+     * and has the kernel spread incoming connections among them. The option
+     * is looked up reflectively because it only exists on Java 9 and later.
+     *
+     * @return false if the platform does not support the option
+     */
+    static boolean enableReusePort(ServerSocket serverSocket) {
+        try {
+            Object option = StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            Set<?> supported = (Set<?>) ServerSocket.class.getMethod("supportedOptions").invoke(serverSocket);
+            if (!supported.contains(option)) {
+                return false;
+            }
+            ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(serverSocket, option, Boolean.TRUE);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    public static final class Builder {
+
+        private int backlog;
+
+        private int receiveBufferSize;
+
+        private int sendBufferSize;
+
+        private Boolean tcpNoDelay;
+
+        private Boolean keepAlive;
+
+        private int linger = -1;
+
+        private int headerReadTimeout;
+
+        private int acceptors = 1;
+
+        private Builder() {
+        }
+
+        public Builder backlog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        public Builder receiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        public Builder sendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public Builder keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * Sets SO_LINGER, so that closing a connection waits up to the given
+         * number of seconds for unsent data; 0 resets the connection.
+         */
+        public Builder linger(int seconds) {
+            this.linger = seconds;
+            return this;
+        }
+
+        /**
+         * Sets the time allowed for reading a request header, separately
+         * from the read timeout that applies to request bodies.
+         */
+        public Builder headerReadTimeout(int millis) {
+            this.headerReadTimeout = millis;
+            return this;
+        }
+
+        /**
+         * Sets the number of listening sockets bound to the port with
+         * SO_REUSEPORT. Where the option is unsupported, a single socket
+         * is used.
+         */
+        public Builder acceptors(int acceptors) {
+            if (acceptors < 1) {
+                throw new IllegalArgumentException("acceptors " + acceptors);
+            }
+            this.acceptors = acceptors;
+            return this;
+        }
+
+        public SocketOptions build() {
+            return new SocketOptions(this);
+        }
+    }
+}
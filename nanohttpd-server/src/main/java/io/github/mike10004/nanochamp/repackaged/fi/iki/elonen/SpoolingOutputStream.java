@@ -0,0 +1,179 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.RequestBodyException;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.Response;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFile;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFileManager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers a request body in memory while the server's {@link MemoryBudget}
+ * allows it and in a temporary file once the budget is used up. Memory is
+ * reserved in fixed-size blocks and given back by {@link #close()}.
+ */
+class SpoolingOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 8192;
+
+    private final MemoryBudget budget;
+
+    private final TempFileManager tempFileManager;
+
+    private final long maxSize;
+
+    private final List<byte[]> blocks = new ArrayList<byte[]>();
+
+    /**
+     * Bytes reserved from the budget and not yet released.
+     */
+    private long reserved;
+
+    /**
+     * Number of bytes used in the last block.
+     */
+    private int blockCount = BLOCK_SIZE;
+
+    private long size;
+
+    private TempFile tempFile;
+
+    private OutputStream fileStream;
+
+    /**
+     * @param maxSize
+     *            maximum number of bytes accepted, or -1 for no limit; writing
+     *            more fails with a 413 status
+     */
+    SpoolingOutputStream(MemoryBudget budget, TempFileManager tempFileManager, long maxSize) {
+        this.budget = budget;
+        this.tempFileManager = tempFileManager;
+        this.maxSize = maxSize;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return whether the content has been spooled to disk
+     */
+    boolean isSpooled() {
+        return fileStream != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (maxSize >= 0 && size + len > maxSize) {
+            throw new RequestBodyException(Response.Status.PAYLOAD_TOO_LARGE, "request body exceeds " + maxSize + " bytes");
+        }
+        size += len;
+        while (len > 0 && fileStream == null) {
+            if (blockCount == BLOCK_SIZE) {
+                if (!budget.tryReserve(BLOCK_SIZE)) {
+                    spool();
+                    break;
+                }
+                reserved += BLOCK_SIZE;
+                blocks.add(new byte[BLOCK_SIZE]);
+                blockCount = 0;
+            }
+            int n = Math.min(len, BLOCK_SIZE - blockCount);
+            System.arraycopy(b, off, blocks.get(blocks.size() - 1), blockCount, n);
+            blockCount += n;
+            off += n;
+            len -= n;
+        }
+        if (len > 0) {
+            fileStream.write(b, off, len);
+        }
+    }
+
+    /**
+     * Moves the buffered blocks to a temporary file and gives their memory
+     * back to the budget.
+     */
+    private void spool() throws IOException {
+        try {
+            tempFile = tempFileManager.createTempFile(null);
+            // written through the temp file so that its factory sees the writes
+            fileStream = tempFile.open();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            fileStream.write(blocks.get(i), 0, i == blocks.size() - 1 ? blockCount : BLOCK_SIZE);
+        }
+        blocks.clear();
+        blockCount = BLOCK_SIZE;
+        budget.release(reserved);
+        reserved = 0;
+    }
+
+    /**
+     * Returns the content as one array. The array is counted against the
+     * budget until this stream is closed; if the budget cannot cover it, the
+     * request fails with a 503 status. Content held in memory is copied out
+     * of blocks that are already counted, so only the difference is
+     * reserved for the copy.
+     */
+    byte[] toByteArray() throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new RequestBodyException(Response.Status.PAYLOAD_TOO_LARGE, "request body too large to buffer: " + size + " bytes");
+        }
+        long blockBytes = (long) blocks.size() * BLOCK_SIZE;
+        long needed = Math.max(0, size - blockBytes);
+        if (!budget.tryReserve(needed)) {
+            throw new RequestBodyException(Response.Status.SERVICE_UNAVAILABLE, "not enough memory to buffer a request body of " + size + " bytes");
+        }
+        reserved += needed;
+        byte[] data = new byte[(int) size];
+        if (fileStream != null) {
+            fileStream.flush();
+            RandomAccessFile file = new RandomAccessFile(tempFile.getName(), "r");
+            try {
+                file.readFully(data);
+            } finally {
+                NanoHTTPD.safeClose(file);
+            }
+        } else {
+            int pos = 0;
+            for (int i = 0; i < blocks.size(); i++) {
+                int n = i == blocks.size() - 1 ? blockCount : BLOCK_SIZE;
+                System.arraycopy(blocks.get(i), 0, data, pos, n);
+                pos += n;
+            }
+            blocks.clear();
+            blockCount = BLOCK_SIZE;
+            // keep exactly the size of the array reserved
+            budget.release(blockBytes + needed - size);
+            reserved -= blockBytes + needed - size;
+        }
+        return data;
+    }
+
+    /**
+     * Releases the memory reserved by this stream. A temporary file is
+     * deleted by its {@link TempFileManager}.
+     */
+    @Override
+    public void close() throws IOException {
+        blocks.clear();
+        budget.release(reserved);
+        reserved = 0;
+        if (fileStream != null) {
+            fileStream.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Flush manager that counts open tickets in striped counters rather than as
+ * parties of a {@link java.util.concurrent.Phaser}, so it has no limit on the
+ * number of open tickets and concurrent senders mostly update different
+ * counters.
+ * <p>
+ * Tickets are counted in one of two generations. A flush switches new tickets
+ * to the other generation and waits for the counters of the previous one to
+ * drain, so it waits for the tickets that were open when it was called and
+ * not for tickets opened afterwards, which cannot keep it waiting under
+ * steady load. Flushes are serialized.
+ * </p>
+ */
+public class StripedFlushManager implements FlushManager {
+
+    /**
+     * Counters are spaced this many longs apart so that each stripe has a
+     * cache line of its own.
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * Longest time a flush sleeps before it checks the counters again, in
+     * case a wakeup was missed.
+     */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int mask;
+
+    private final AtomicLongArray counters;
+
+    private volatile int generation;
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private volatile Thread waiter;
+
+    public StripedFlushManager() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param stripes
+     *            number of counters per generation; rounded up to a power of
+     *            two
+     */
+    public StripedFlushManager(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.mask = size - 1;
+        this.counters = new AtomicLongArray(2 * size * PADDING);
+    }
+
+    @Override
+    public FlushTicket open() {
+        int stripe = stripe();
+        while (true) {
+            int gen = this.generation;
+            int index = index(gen, stripe);
+            this.counters.incrementAndGet(index);
+            if (gen == this.generation) {
+                return new StripedTicket(gen, index);
+            }
+            // a flush switched generations meanwhile; count the ticket in
+            // the new one so the flush does not wait for it
+            release(gen, index);
+        }
+    }
+
+    @Override
+    public void flush() throws InterruptedException {
+        flush(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        if (!this.flushLock.tryLock(timeout, unit)) {
+            return false;
+        }
+        try {
+            this.waiter = Thread.currentThread();
+            int gen = this.generation;
+            // tickets left over from a flush that timed out are counted in
+            // the generation that new tickets are about to be switched to
+            if (!awaitDrained(gen + 1, deadline)) {
+                return false;
+            }
+            this.generation = gen + 1;
+            return awaitDrained(gen, deadline);
+        } finally {
+            this.waiter = null;
+            this.flushLock.unlock();
+        }
+    }
+
+    private boolean awaitDrained(int gen, long deadline) throws InterruptedException {
+        while (count(gen) != 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until no ticket is open, including tickets opened after this
+     * method is called, or until the timeout elapses. Unlike a flush, this
+     * may wait indefinitely under steady load.
+     *
+     * @return true if no ticket was open
+     */
+    public boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        while (getOpenCount() != 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of tickets currently open
+     */
+    public long getOpenCount() {
+        return count(0) + count(1);
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & this.mask;
+    }
+
+    private int index(int gen, int stripe) {
+        return ((gen & 1) * (this.mask + 1) + stripe) * PADDING;
+    }
+
+    private long count(int gen) {
+        long sum = 0;
+        for (int stripe = 0; stripe <= this.mask; stripe++) {
+            sum += this.counters.get(index(gen, stripe));
+        }
+        return sum;
+    }
+
+    private void release(int gen, int index) {
+        this.counters.decrementAndGet(index);
+        if (gen != this.generation) {
+            Thread waiter = this.waiter;
+            if (waiter != null && count(gen) == 0) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    private class StripedTicket implements FlushTicket {
+
+        private final int gen;
+
+        private final int index;
+
+        private boolean closed;
+
+        StripedTicket(int gen, int index) {
+            this.gen = gen;
+            this.index = index;
+        }
+
+        @Override
+        public void close() {
+            if (!this.closed) {
+                this.closed = true;
+                release(this.gen, this.index);
+            }
+        }
+    }
+}
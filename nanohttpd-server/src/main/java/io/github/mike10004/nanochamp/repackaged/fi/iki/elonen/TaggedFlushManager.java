@@ -0,0 +1,118 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flush manager that also counts tickets by tag, so that the responses of one
+ * route can be flushed or awaited without waiting for long-lived responses of
+ * other routes. Every ticket, tagged or not, is counted by {@link #flush()};
+ * a tagged ticket is counted by the flushes of its tag as well.
+ */
+public class TaggedFlushManager implements FlushManager {
+
+    private final int stripes;
+
+    private final StripedFlushManager all;
+
+    private final ConcurrentMap<String, StripedFlushManager> tagged = new ConcurrentHashMap<>();
+
+    public TaggedFlushManager() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param stripes
+     *            number of counters per generation of each tag
+     */
+    public TaggedFlushManager(int stripes) {
+        this.stripes = stripes;
+        this.all = new StripedFlushManager(stripes);
+    }
+
+    @Override
+    public FlushTicket open() {
+        return this.all.open();
+    }
+
+    @Override
+    public FlushTicket open(String tag) {
+        if (tag == null) {
+            return open();
+        }
+        FlushTicket ticket = this.all.open();
+        FlushTicket tagTicket = this.tagged.computeIfAbsent(tag, t -> new StripedFlushManager(this.stripes)).open();
+        return () -> {
+            tagTicket.close();
+            ticket.close();
+        };
+    }
+
+    @Override
+    public void flush() throws InterruptedException {
+        this.all.flush();
+    }
+
+    @Override
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.all.flush(timeout, unit);
+    }
+
+    /**
+     * Waits until the tickets with the given tag that are open at the time of
+     * the call are closed, or until the timeout elapses.
+     *
+     * @return true if the tickets were closed
+     */
+    public boolean flush(String tag, long timeout, TimeUnit unit) throws InterruptedException {
+        StripedFlushManager manager = this.tagged.get(tag);
+        return manager == null || manager.flush(timeout, unit);
+    }
+
+    /**
+     * Waits until no ticket with the given tag is open, or until the timeout
+     * elapses.
+     *
+     * @return true if no ticket with the tag was open
+     * @see StripedFlushManager#awaitQuiescence(long, TimeUnit)
+     */
+    public boolean awaitQuiescence(String tag, long timeout, TimeUnit unit) throws InterruptedException {
+        StripedFlushManager manager = this.tagged.get(tag);
+        return manager == null || manager.awaitQuiescence(timeout, unit);
+    }
+
+    /**
+     * @return number of tickets currently open
+     */
+    public long getOpenCount() {
+        return this.all.getOpenCount();
+    }
+
+    /**
+     * @return number of tickets with the given tag currently open
+     */
+    public long getOpenCount(String tag) {
+        StripedFlushManager manager = this.tagged.get(tag);
+        return manager == null ? 0 : manager.getOpenCount();
+    }
+
+    /**
+     * @return numbers of tickets currently open, by tag; tags without open
+     *         tickets are omitted
+     */
+    public SortedMap<String, Long> getOpenCounts() {
+        SortedMap<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, StripedFlushManager> entry : this.tagged.entrySet()) {
+            long count = entry.getValue().getOpenCount();
+            if (count > 0) {
+                counts.put(entry.getKey(), count);
+            }
+        }
+        return Collections.unmodifiableSortedMap(counts);
+    }
+}
@@ -0,0 +1,282 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFile;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFileManager;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFileManagerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Temp file strategy that puts files in a fast directory, such as a tmpfs
+ * mount like {@code /dev/shm}, while the files there take up less than a
+ * given number of bytes, and falls back to another factory beyond that.
+ * <p>
+ * Bytes are reserved from the capacity as they are written through
+ * {@link TempFile#open()}. When a write does not fit, the file is moved to
+ * the fallback factory and writing continues there, so {@link TempFile#getName()}
+ * is only final once the file has been written. Bytes written to the path
+ * directly are not counted.
+ * </p>
+ */
+public class TieredTempFileManagerFactory implements TempFileManagerFactory, Closeable {
+
+    /**
+     * Shared memory directory present on most Linux hosts.
+     */
+    public static final File SHM_DIR = new File("/dev/shm");
+
+    private final PooledTempFileManagerFactory fast;
+
+    private final TempFileManagerFactory fallback;
+
+    private final long capacity;
+
+    /**
+     * Bytes reserved by files in use in the fast directory.
+     */
+    private final AtomicLong fastBytes = new AtomicLong();
+
+    /**
+     * @param fastDir
+     *            directory on fast storage
+     * @param capacity
+     *            bytes the files in {@code fastDir} may occupy
+     * @param fallback
+     *            factory used once the capacity is used up
+     */
+    public TieredTempFileManagerFactory(File fastDir, long capacity, TempFileManagerFactory fallback) {
+        this.fast = new PooledTempFileManagerFactory(fastDir, PooledTempFileManagerFactory.DEFAULT_POOL_SIZE, 0);
+        this.capacity = capacity;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Creates a factory that uses {@link #SHM_DIR} if it is a writable
+     * directory, and otherwise only the default temp directory.
+     */
+    public static TempFileManagerFactory shm(long capacity) {
+        if (SHM_DIR.isDirectory() && SHM_DIR.canWrite()) {
+            return new TieredTempFileManagerFactory(new File(SHM_DIR, "nanohttpd"), capacity, new PooledTempFileManagerFactory());
+        }
+        return new PooledTempFileManagerFactory();
+    }
+
+    @Override
+    public TempFileManager create() {
+        return new TieredTempFileManager();
+    }
+
+    /**
+     * @return bytes currently taken up by files in use in the fast directory
+     */
+    public long getFastBytes() {
+        return fastBytes.get();
+    }
+
+    @Override
+    public void close() {
+        fast.close();
+        if (fallback instanceof Closeable) {
+            NanoHTTPD.safeClose(fallback);
+        }
+    }
+
+    private boolean tryReserve(long bytes) {
+        while (true) {
+            long current = fastBytes.get();
+            if (current + bytes > capacity) {
+                return false;
+            }
+            if (fastBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private class TieredTempFileManager implements TempFileManager {
+
+        private TempFileManager fastManager;
+
+        private TempFileManager fallbackManager;
+
+        private List<TieredTempFile> owned;
+
+        @Override
+        public void clear() {
+            if (owned != null) {
+                for (TieredTempFile file : owned) {
+                    file.releaseReservation();
+                }
+                owned = null;
+            }
+            if (fastManager != null) {
+                fastManager.clear();
+            }
+            if (fallbackManager != null) {
+                fallbackManager.clear();
+            }
+        }
+
+        @Override
+        public TempFile createTempFile(String filename_hint) throws Exception {
+            if (fastBytes.get() < capacity) {
+                if (fastManager == null) {
+                    fastManager = fast.create();
+                }
+                TieredTempFile tempFile = new TieredTempFile(fastManager.createTempFile(filename_hint), filename_hint);
+                if (owned == null) {
+                    owned = new ArrayList<TieredTempFile>();
+                }
+                owned.add(tempFile);
+                return tempFile;
+            }
+            return createFallbackFile(filename_hint);
+        }
+
+        private TempFile createFallbackFile(String filename_hint) throws Exception {
+            if (fallbackManager == null) {
+                fallbackManager = fallback.create();
+            }
+            return fallbackManager.createTempFile(filename_hint);
+        }
+
+        /**
+         * File that starts in the fast directory and moves to the fallback
+         * factory when a write does not fit in the capacity.
+         */
+        private class TieredTempFile implements TempFile {
+
+            private final String filenameHint;
+
+            private TempFile current;
+
+            private OutputStream stream;
+
+            /**
+             * Bytes of the capacity held by this file; none once it has
+             * moved.
+             */
+            private long reserved;
+
+            private boolean moved;
+
+            TieredTempFile(TempFile fastFile, String filenameHint) {
+                this.current = fastFile;
+                this.filenameHint = filenameHint;
+            }
+
+            @Override
+            public void delete() throws Exception {
+                current.delete();
+            }
+
+            @Override
+            public String getName() {
+                return current.getName();
+            }
+
+            @Override
+            public OutputStream open() throws Exception {
+                if (stream == null) {
+                    stream = new ReservingOutputStream(current.open());
+                }
+                return stream;
+            }
+
+            void releaseReservation() {
+                fastBytes.addAndGet(-reserved);
+                reserved = 0;
+            }
+
+            /**
+             * Copies the content to a fallback file, empties the fast file
+             * and gives its bytes back to the capacity.
+             */
+            private OutputStream moveToFallback(OutputStream fastStream) throws IOException {
+                fastStream.flush();
+                TempFile fallbackFile;
+                OutputStream fallbackStream;
+                try {
+                    fallbackFile = createFallbackFile(filenameHint);
+                    fallbackStream = fallbackFile.open();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                InputStream in = new FileInputStream(current.getName());
+                try {
+                    byte[] buf = new byte[8192];
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        fallbackStream.write(buf, 0, n);
+                    }
+                } finally {
+                    NanoHTTPD.safeClose(in);
+                }
+                NanoHTTPD.safeClose(fastStream);
+                RandomAccessFile raf = new RandomAccessFile(current.getName(), "rw");
+                try {
+                    raf.setLength(0);
+                } finally {
+                    raf.close();
+                }
+                releaseReservation();
+                current = fallbackFile;
+                moved = true;
+                return fallbackStream;
+            }
+
+            private class ReservingOutputStream extends OutputStream {
+
+                private OutputStream out;
+
+                ReservingOutputStream(OutputStream out) {
+                    this.out = out;
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    reserve(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    reserve(len);
+                    out.write(b, off, len);
+                }
+
+                private void reserve(int len) throws IOException {
+                    if (moved) {
+                        return;
+                    }
+                    if (tryReserve(len)) {
+                        reserved += len;
+                    } else {
+                        out = moveToFallback(out);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            }
+        }
+    }
+}
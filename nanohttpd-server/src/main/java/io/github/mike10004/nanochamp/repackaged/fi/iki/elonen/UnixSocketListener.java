@@ -0,0 +1,189 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepts connections on a Unix domain socket and serves them through the
+ * same {@link NanoHTTPD.ClientHandler} as TCP connections. Unix domain
+ * socket channels were added in Java 16, so they are opened reflectively;
+ * on older runtimes {@link #bind} fails with an exception.
+ * <p>
+ * Channels have no read timeout, so the socket read timeout, header read
+ * timeout and keep-alive idle timeout do not apply to these connections.
+ * </p>
+ */
+class UnixSocketListener implements Runnable, Closeable {
+
+    private static final Logger LOG = Logger.getLogger(UnixSocketListener.class.getName());
+
+    private final NanoHTTPD httpd;
+
+    private final Path path;
+
+    private final ServerSocketChannel channel;
+
+    private final AtomicLong accepted = new AtomicLong();
+
+    private UnixSocketListener(NanoHTTPD httpd, Path path, ServerSocketChannel channel) {
+        this.httpd = httpd;
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates the socket file and starts listening on it. The file must not
+     * exist yet.
+     */
+    static UnixSocketListener bind(NanoHTTPD httpd, Path path, int backlog) throws IOException {
+        ServerSocketChannel channel = open();
+        try {
+            channel.bind(address(path), backlog);
+        } catch (IOException e) {
+            NanoHTTPD.safeClose(channel);
+            throw e;
+        }
+        return new UnixSocketListener(httpd, path, channel);
+    }
+
+    private static ServerSocketChannel open() throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("could not open Unix domain socket", e.getCause());
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets require Java 16 or later", e);
+        }
+    }
+
+    private static SocketAddress address(Path path) throws IOException {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class).invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets require Java 16 or later", e);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    @Override
+    public void run() {
+        while (channel.isOpen()) {
+            try {
+                SocketChannel client = channel.accept();
+                accepted.incrementAndGet();
+                httpd.execClientHandler(httpd.new ClientHandler(new ChannelInputStream(client), new ChannelOutputStream(client), client));
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Communication with the client broken", e);
+            }
+        }
+    }
+
+    /**
+     * Stops listening and removes the socket file.
+     */
+    @Override
+    public void close() {
+        NanoHTTPD.safeClose(channel);
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Could not delete " + path, e);
+        }
+    }
+
+    /**
+     * Reads from a channel without the lock that the streams of
+     * {@link java.nio.channels.Channels} share between reading and writing,
+     * so that one thread can write while another is blocked reading.
+     */
+    static class ChannelInputStream extends InputStream {
+
+        private final SocketChannel channel;
+
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n;
+            do {
+                n = read(b, 0, 1);
+            } while (n == 0);
+            return n < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes to a channel without the lock shared with reading; see
+     * {@link ChannelInputStream}.
+     */
+    static class ChannelOutputStream extends OutputStream {
+
+        private final SocketChannel channel;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -2,13 +2,21 @@ package io.github.mike10004.nanochamp.server;
 
 import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD;
 import io.github.mike10004.nanochamp.server.NanoServer.RequestHandler;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -19,25 +27,134 @@ import static java.util.Objects.requireNonNull;
 public class NanoControl implements Closeable {
 
     private final NanoHTTPD server;
+    @Nullable
+    private final Runnable detachAction;
+    @Nullable
+    private final Runnable stopListener;
+    private final long drainTimeoutMillis;
+    @Nullable
+    private final RequestHandler sharedDefaultRequestHandler;
     private final List<? extends RequestHandler> requestHandlers;
     private final AtomicLong numRequestsMatched = new AtomicLong(0L);
     private final AtomicLong numRequestsHeard = new AtomicLong(0L);
+    private static final AtomicLong numSharedInstances = new AtomicLong(0L);
+    /**
+     * Prefix of the flush tags of this instance's routes. Empty unless the server is
+     * shared, in which case it keeps the routes of different instances apart.
+     */
+    private final String flushTagPrefix;
 
     NanoControl(int port, Iterable<? extends RequestHandler> requestHandlers, RequestHandler defaultRequestHandler) throws IOException {
         this(port, requestHandlers, defaultRequestHandler, null);
     }
 
     NanoControl(int port, Iterable<? extends RequestHandler> requestHandlers, RequestHandler defaultRequestHandler, HttpdImplFactory httpdFactory) throws IOException {
-        checkArgument( port > 0 && port < 65536, "port " + port);
-        this.requestHandlers = Collections.unmodifiableList(StreamSupport.stream(requestHandlers.spliterator(), false)
-                .collect(Collectors.toList()));
+        this(port, requestHandlers, defaultRequestHandler, httpdFactory, Collections.emptyList());
+    }
+
+    NanoControl(int port, Iterable<? extends RequestHandler> requestHandlers, RequestHandler defaultRequestHandler, HttpdImplFactory httpdFactory, Iterable<? extends Consumer<? super NanoHTTPD>> serverConfigurers) throws IOException {
+        this(port, requestHandlers, defaultRequestHandler, httpdFactory, serverConfigurers, 0, null);
+    }
+
+    /**
+     * @param drainTimeoutMillis how long {@link #close()} lets exchanges in flight complete;
+     *                           0 to stop the server at once
+     * @param stopListener action invoked once the server has been stopped by {@link #close()}
+     *                     or {@link #drain(long, TimeUnit)}
+     */
+    NanoControl(int port, Iterable<? extends RequestHandler> requestHandlers, RequestHandler defaultRequestHandler, HttpdImplFactory httpdFactory, Iterable<? extends Consumer<? super NanoHTTPD>> serverConfigurers, long drainTimeoutMillis, @Nullable Runnable stopListener) throws IOException {
+        checkArgument( port >= 0 && port < 65536, "port " + port);
+        checkArgument(drainTimeoutMillis >= 0, "drain timeout " + drainTimeoutMillis);
+        this.requestHandlers = copyOf(requestHandlers);
+        this.detachAction = null;
+        this.stopListener = stopListener;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.sharedDefaultRequestHandler = null;
+        this.flushTagPrefix = "";
         if (httpdFactory == null) {
             httpdFactory = createDefaultFactory();
         }
         server = httpdFactory.construct(this, port, defaultRequestHandler);
+        for (Consumer<? super NanoHTTPD> configurer : serverConfigurers) {
+            configurer.accept(server);
+        }
         server.start();
     }
 
+    /**
+     * Constructs an instance whose requests are served by a server that it shares
+     * with others and does not start or stop.
+     * The shared server passes requests to {@link #serveShared(NanoHTTPD.IHTTPSession)}.
+     * @param sharedServer the started server
+     * @param detachAction action that stops routing requests to this instance; invoked on close
+     */
+    NanoControl(NanoHTTPD sharedServer, Iterable<? extends RequestHandler> requestHandlers, RequestHandler defaultRequestHandler, Runnable detachAction) {
+        this.server = requireNonNull(sharedServer);
+        this.requestHandlers = copyOf(requestHandlers);
+        this.sharedDefaultRequestHandler = requireNonNull(defaultRequestHandler);
+        this.detachAction = requireNonNull(detachAction);
+        this.stopListener = null;
+        this.drainTimeoutMillis = 0;
+        this.flushTagPrefix = numSharedInstances.incrementAndGet() + " ";
+    }
+
+    NanoHTTPD.Response serveShared(NanoHTTPD.IHTTPSession session) {
+        checkState(sharedDefaultRequestHandler != null, "server is not shared");
+        return dispatch(session, sharedDefaultRequestHandler);
+    }
+
+    @Nullable
+    NanoHTTPD.Response checkContinueShared(NanoHTTPD.IHTTPSession session) {
+        checkState(sharedDefaultRequestHandler != null, "server is not shared");
+        return checkContinue(session, sharedDefaultRequestHandler);
+    }
+
+    private static List<RequestHandler> copyOf(Iterable<? extends RequestHandler> requestHandlers) {
+        return Collections.unmodifiableList(StreamSupport.stream(requestHandlers.spliterator(), false)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Passes the request to each request handler in turn and returns the first response.
+     * A response from a handler of a named route is tagged with the route name.
+     * @param session the request
+     * @param defaultRequestHandler handler to use if no other handler responds
+     * @return the response
+     */
+    NanoHTTPD.Response dispatch(NanoHTTPD.IHTTPSession session, RequestHandler defaultRequestHandler) {
+        numRequestsHeard.incrementAndGet();
+        for (RequestHandler handler : requestHandlers) {
+            NanoHTTPD.Response response = handler.serve(session);
+            if (response != null) {
+                numRequestsMatched.incrementAndGet();
+                String route = handler.getRoute();
+                if (route != null && response.getFlushTag() == null) {
+                    response.setFlushTag(flushTagPrefix + route);
+                }
+                return response;
+            }
+        }
+        return defaultRequestHandler.serve(session);
+    }
+
+    /**
+     * Asks each request handler in turn whether a request sent with
+     * {@code Expect: 100-continue} may send its body.
+     * @param session the request
+     * @param defaultRequestHandler handler asked last
+     * @return the first rejection, or null if the body may be sent
+     */
+    @Nullable
+    NanoHTTPD.Response checkContinue(NanoHTTPD.IHTTPSession session, RequestHandler defaultRequestHandler) {
+        for (RequestHandler handler : requestHandlers) {
+            NanoHTTPD.Response rejection = handler.checkContinue(session);
+            if (rejection != null) {
+                return rejection;
+            }
+        }
+        return defaultRequestHandler.checkContinue(session);
+    }
+
     private static HttpdImplFactory createDefaultFactory() {
         return new HttpdImplFactory() {
             @Override
@@ -58,18 +175,11 @@ public class NanoControl implements Closeable {
         public NanoHttpdImpl(int port, RequestHandler defaultRequestHandler) {
             super(port);
             this.defaultRequestHandler = requireNonNull(defaultRequestHandler);
+            setContinueHandler(session -> checkContinue(session, this.defaultRequestHandler));
         }
         @Override
         public Response serve(IHTTPSession session) {
-            numRequestsHeard.incrementAndGet();
-            for (RequestHandler handler : NanoControl.this.requestHandlers) {
-                Response response = handler.serve(session);
-                if (response != null) {
-                    numRequestsMatched.incrementAndGet();
-                    return response;
-                }
-            }
-            return defaultRequestHandler.serve(session);
+            return dispatch(session, defaultRequestHandler);
         }
 
         /**
@@ -87,7 +197,7 @@ public class NanoControl implements Closeable {
          */
         @Override
         protected boolean useGzipWhenAccepted(Response r) {
-            return super.useGzipWhenAccepted(r) && !isAnyContentEncodingSpecified(r);
+            return super.useGzipWhenAccepted(r) && !isAnyContentEncodingSpecified(r) && !isEventStream(r);
         }
 
 
@@ -103,12 +213,72 @@ public class NanoControl implements Closeable {
         return !GuavaShim.isNullOrEmpty(contentEncoding);
     }
 
+    /**
+     * Checks whether the response is a Server-Sent Events stream. Event streams must
+     * not be gzip encoded because the compressor would hold events back until its
+     * buffer fills.
+     * @param response the response
+     * @return true iff the response content type is {@code text/event-stream}
+     */
+    static boolean isEventStream(NanoHTTPD.Response response) {
+        String mimeType = response.getMimeType();
+        return mimeType != null && mimeType.toLowerCase().startsWith(SseBroadcaster.MIME_TYPE);
+    }
+
     private static final String CONTENT_ENCODING = "content-encoding";
 
+    /**
+     * Stops the server, or drains it if a drain timeout has been configured with
+     * {@link NanoServer.Builder#drainOnClose(long, TimeUnit)}.
+     */
     @Override
     public void close() throws IOException {
-        if (server.wasStarted()) {
-            server.stop();
+        if (detachAction != null) {
+            detachAction.run();
+        } else if (server.wasStarted()) {
+            try {
+                if (drainTimeoutMillis > 0) {
+                    try {
+                        NanoHTTPD.DrainResult result = server.drain(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+                        LoggerFactory.getLogger(NanoControl.class).debug("closed server on port {}: {}", getListeningPort(), result);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        server.stop();
+                    }
+                } else {
+                    server.stop();
+                }
+            } finally {
+                stopped();
+            }
+        }
+    }
+
+    /**
+     * Stops the server after letting exchanges in flight complete. New connections
+     * are refused at once; connections still open when the timeout elapses are
+     * closed forcibly. A server shared with other virtual hosts is not drained;
+     * this instance is detached from it instead.
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return the numbers of connections that were drained and that were closed forcibly
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public NanoHTTPD.DrainResult drain(long timeout, TimeUnit unit) throws InterruptedException {
+        if (detachAction != null) {
+            detachAction.run();
+            return new NanoHTTPD.DrainResult(0, 0);
+        }
+        try {
+            return server.drain(timeout, unit);
+        } finally {
+            stopped();
+        }
+    }
+
+    private void stopped() {
+        if (stopListener != null) {
+            stopListener.run();
         }
     }
 
@@ -150,7 +320,109 @@ public class NanoControl implements Closeable {
         return numRequestsMatched.get();
     }
 
+    /**
+     * Gets the path of the Unix domain socket the server listens on.
+     * @return the socket file, or null if the server does not listen on one
+     */
+    @Nullable
+    public Path getUnixSocketPath() {
+        return server.getUnixSocketPath();
+    }
+
+    /**
+     * Gets the number of connections accepted. When several listeners share the
+     * port, this is the total over all of them.
+     * @return the number of connections accepted
+     */
+    public long getNumConnectionsAccepted() {
+        return server.getAcceptedCount();
+    }
+
     public void flush() throws InterruptedException {
         server.flush();
     }
+
+    /**
+     * Waits until the responses being sent when this method is called have been
+     * sent, or until the timeout elapses.
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the responses were sent before the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        return server.flush(timeout, unit);
+    }
+
+    /**
+     * Waits until the responses of a route being sent when this method is called
+     * have been sent, or until the timeout elapses. Responses of other routes,
+     * such as long-lived event streams, are not waited for.
+     * @param route the route name
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the responses were sent before the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     * @see NanoServer.Builder#route(String, RequestHandler)
+     */
+    public boolean flush(String route, long timeout, TimeUnit unit) throws InterruptedException {
+        return server.flush(flushTagPrefix + requireNonNull(route), timeout, unit);
+    }
+
+    /**
+     * Waits until the responses of some routes being sent when this method is called
+     * have been sent, or until the timeout elapses.
+     * @param routes the route names
+     * @param timeout the maximum time to wait for all of the routes
+     * @param unit the unit of the timeout
+     * @return true if the responses were sent before the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean flush(Collection<String> routes, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        for (String route : routes) {
+            if (!flush(route, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until no response of a route is being sent, or until the timeout elapses.
+     * Unlike {@link #flush(String, long, TimeUnit)}, this also waits for responses
+     * that start being sent while waiting.
+     * @param route the route name
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the route became quiescent before the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitQuiescence(String route, long timeout, TimeUnit unit) throws InterruptedException {
+        return server.awaitQuiescence(flushTagPrefix + requireNonNull(route), timeout, unit);
+    }
+
+    /**
+     * Gets the number of responses of a route that are being sent.
+     * @param route the route name
+     * @return the number of responses in flight
+     */
+    public long getInFlightCount(String route) {
+        return server.getInFlightCount(flushTagPrefix + requireNonNull(route));
+    }
+
+    /**
+     * Gets the numbers of responses being sent, by route. Responses of unnamed
+     * routes are not counted, and routes without responses in flight are omitted.
+     * @return the numbers of responses in flight, by route name
+     */
+    public Map<String, Long> getInFlightCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        server.getInFlightCounts().forEach((tag, count) -> {
+            if (tag.startsWith(flushTagPrefix)) {
+                counts.put(tag.substring(flushTagPrefix.length()), count);
+            }
+        });
+        return Collections.unmodifiableMap(counts);
+    }
 }
@@ -0,0 +1,239 @@
+package io.github.mike10004.nanochamp.server;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.ClientHandler;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.Response;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static io.github.mike10004.nanochamp.server.GuavaShim.checkArgument;
+import static io.github.mike10004.nanochamp.server.GuavaShim.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Runtime that hosts many servers on one pool of worker threads. A server started
+ * with {@link #start(NanoServer)} listens on a port of its own and keeps only an
+ * accept thread of its own. Servers started with {@link #startVirtualHost(NanoServer, String)}
+ * share a single port and accept thread, and requests are routed among them by the
+ * {@code Host} header. In both cases connections are served by worker threads that
+ * are created as load requires and reused across servers, so the number of threads
+ * grows with the number of open connections rather than the number of servers.
+ *
+ * <p>Each server is controlled by its own {@link NanoControl}. Closing the control
+ * stops that server only; closing the runtime stops all of them.
+ */
+public class NanoRuntime implements Closeable {
+
+    private final AtomicLong numWorkers = new AtomicLong(0L);
+    private final ExecutorService workers;
+    private final List<NanoControl> controls = new CopyOnWriteArrayList<>();
+    private final Map<String, NanoControl> virtualHosts = new ConcurrentHashMap<>();
+    @Nullable
+    private VirtualHostServer virtualHostServer;
+    private volatile boolean closed;
+
+    public NanoRuntime() {
+        workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "NanoRuntime Worker #" + numWorkers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts a server on a port chosen by the system.
+     * @param server the server
+     * @return the control for the server
+     * @throws IOException if the server cannot listen
+     */
+    public NanoControl start(NanoServer server) throws IOException {
+        return start(server, 0);
+    }
+
+    /**
+     * Starts a server on the given port.
+     * @param server the server
+     * @param port the port, or 0 for a port chosen by the system
+     * @return the control for the server
+     * @throws IOException if the server cannot listen
+     */
+    public NanoControl start(NanoServer server, int port) throws IOException {
+        checkState(!closed, "runtime is closed");
+        AtomicReference<NanoControl> controlRef = new AtomicReference<>();
+        NanoControl control = server.startServer(port, httpd -> httpd.setAsyncRunner(new WorkerRunner()), () -> controls.remove(controlRef.get()));
+        controlRef.set(control);
+        controls.add(control);
+        return control;
+    }
+
+    /**
+     * Starts a server that shares the virtual host port with the other virtual hosts of
+     * this runtime. Requests whose {@code Host} header names the given host, with any
+     * port ignored, are routed to the server; requests for unknown hosts are answered
+     * with 404. The control reports the shared port, so clients of its
+     * {@link NanoControl#baseUri()} must set the {@code Host} header themselves.
+     * Configurers and the httpd factory of the server are not used.
+     * @param server the server
+     * @param hostName the host name
+     * @return the control for the server
+     * @throws IOException if the virtual host port cannot be opened
+     */
+    public synchronized NanoControl startVirtualHost(NanoServer server, String hostName) throws IOException {
+        checkState(!closed, "runtime is closed");
+        String key = normalizeHost(requireNonNull(hostName));
+        checkArgument(!key.isEmpty(), "host name is empty");
+        checkArgument(!virtualHosts.containsKey(key), "host already served: " + hostName);
+        if (virtualHostServer == null) {
+            VirtualHostServer httpd = new VirtualHostServer();
+            httpd.setAsyncRunner(new WorkerRunner());
+            httpd.start();
+            virtualHostServer = httpd;
+        }
+        AtomicReference<NanoControl> controlRef = new AtomicReference<>();
+        NanoControl control = server.attach(virtualHostServer, () -> virtualHosts.remove(key, controlRef.get()));
+        controlRef.set(control);
+        virtualHosts.put(key, control);
+        return control;
+    }
+
+    /**
+     * Gets the port shared by the virtual hosts.
+     * @return the port, or -1 if no virtual host has been started
+     */
+    public synchronized int getVirtualHostPort() {
+        return virtualHostServer == null ? -1 : virtualHostServer.getListeningPort();
+    }
+
+    /**
+     * Gets the number of servers with ports of their own that have not been closed.
+     */
+    int getNumServers() {
+        return controls.size();
+    }
+
+    /**
+     * Gets the number of worker threads that have been created. Idle workers are
+     * discarded after a minute.
+     * @return the number of worker threads created
+     */
+    public long getNumWorkersCreated() {
+        return numWorkers.get();
+    }
+
+    /**
+     * Host name of a {@code Host} header value, without the port and in lower case.
+     */
+    static String normalizeHost(@Nullable String host) {
+        if (host == null) {
+            return "";
+        }
+        host = host.trim();
+        int end = host.length();
+        if (host.startsWith("[")) {
+            int bracket = host.indexOf(']');
+            if (bracket > 0) {
+                end = bracket + 1;
+            }
+        } else {
+            int colon = host.indexOf(':');
+            if (colon >= 0 && colon == host.lastIndexOf(':')) {
+                end = colon;
+            }
+        }
+        return host.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (NanoControl control : controls) {
+            try {
+                control.close();
+            } catch (IOException | RuntimeException e) {
+                LoggerFactory.getLogger(NanoRuntime.class).info("failed to close server", e);
+            }
+        }
+        controls.clear();
+        synchronized (this) {
+            virtualHosts.clear();
+            if (virtualHostServer != null) {
+                virtualHostServer.stop();
+                virtualHostServer = null;
+            }
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Runs the connections of one server on the shared workers. Each server has its
+     * own instance, so stopping a server closes only that server's connections.
+     */
+    private class WorkerRunner implements NanoHTTPD.AsyncRunner {
+
+        private final Set<ClientHandler> running = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void closeAll() {
+            for (ClientHandler clientHandler : new ArrayList<>(running)) {
+                clientHandler.close();
+            }
+        }
+
+        @Override
+        public void closed(ClientHandler clientHandler) {
+            running.remove(clientHandler);
+        }
+
+        @Override
+        public void exec(ClientHandler clientHandler) {
+            running.add(clientHandler);
+            try {
+                workers.execute(clientHandler);
+            } catch (RejectedExecutionException e) {
+                running.remove(clientHandler);
+                clientHandler.close();
+            }
+        }
+    }
+
+    private class VirtualHostServer extends NanoHTTPD {
+
+        public VirtualHostServer() {
+            super(0);
+            setContinueHandler(session -> {
+                NanoControl control = virtualHosts.get(normalizeHost(session.getHeaders().get("host")));
+                return control == null ? null : control.checkContinueShared(session);
+            });
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            NanoControl control = virtualHosts.get(normalizeHost(session.getHeaders().get("host")));
+            if (control == null) {
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT, "Unknown Host");
+            }
+            return control.serveShared(session);
+        }
+
+        @Override
+        protected boolean useGzipWhenAccepted(Response r) {
+            return super.useGzipWhenAccepted(r) && !NanoControl.isAnyContentEncodingSpecified(r) && !NanoControl.isEventStream(r);
+        }
+    }
+}
@@ -1,27 +1,32 @@
 package io.github.mike10004.nanochamp.server;
 
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.AdmissionControl;
 import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD;
 import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.IHTTPSession;
 import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.Method;
 import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.Response;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.SocketOptions;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
-import java.net.ServerSocket;
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import static io.github.mike10004.nanochamp.server.GuavaShim.checkArgument;
 import static java.util.Objects.requireNonNull;
 
 public class NanoServer {
@@ -30,16 +35,21 @@ public class NanoServer {
     private final RequestHandler defaultRequestHandler;
     @Nullable
     private NanoControl.HttpdImplFactory httpdFactory;
+    private List<Consumer<? super NanoHTTPD>> serverConfigurers;
+    private long drainTimeoutMillis;
 
     private NanoServer(Builder b) {
         this(b.requestHandlers, b.defaultRequestHandler);
         httpdFactory = b.httpdImplFactory;
+        serverConfigurers = Collections.unmodifiableList(new ArrayList<>(b.serverConfigurers));
+        drainTimeoutMillis = b.drainTimeoutMillis;
     }
 
     public NanoServer(Iterable<RequestHandler> requestHandlers, RequestHandler defaultRequestHandler) {
         this.requestHandlers = Collections.unmodifiableList(StreamSupport.stream(requestHandlers.spliterator(), false).collect(Collectors.toList()));
         this.defaultRequestHandler = requireNonNull(defaultRequestHandler);
         this.httpdFactory = null;
+        this.serverConfigurers = Collections.emptyList();
     }
 
     /**
@@ -55,6 +65,60 @@ public class NanoServer {
         @Nullable
         NanoHTTPD.Response serve(NanoHTTPD.IHTTPSession session);
 
+        /**
+         * Gets the name of the route this handler serves. Responses of a named route
+         * can be flushed and counted apart from other responses; see
+         * {@link NanoControl#flush(String, long, TimeUnit)}.
+         * @return the route name, or null if the route is unnamed
+         */
+        @Nullable
+        default String getRoute() {
+            return null;
+        }
+
+        /**
+         * Decides whether a request sent with {@code Expect: 100-continue} may send its
+         * body. Every handler is asked, in order, after the request header has been read
+         * and before any handler serves the request, so a handler should look at the
+         * headers only and return null for requests it does not handle.
+         * @param session the session
+         * @return null to let the client send the body, or a final response, such as 413
+         * or 401, that rejects the request without reading the body
+         */
+        @Nullable
+        default NanoHTTPD.Response checkContinue(NanoHTTPD.IHTTPSession session) {
+            return null;
+        }
+
+        /**
+         * Creates a handler that names the route of another handler.
+         * @param route the route name
+         * @param handler the handler
+         * @return the named handler
+         */
+        static RequestHandler named(String route, RequestHandler handler) {
+            requireNonNull(route, "route");
+            requireNonNull(handler, "handler");
+            return new RequestHandler() {
+                @Nullable
+                @Override
+                public NanoHTTPD.Response serve(NanoHTTPD.IHTTPSession session) {
+                    return handler.serve(session);
+                }
+
+                @Override
+                public String getRoute() {
+                    return route;
+                }
+
+                @Nullable
+                @Override
+                public NanoHTTPD.Response checkContinue(NanoHTTPD.IHTTPSession session) {
+                    return handler.checkContinue(session);
+                }
+            };
+        }
+
         static RequestHandler getDefault() {
             return (session) -> {
                 LoggerFactory.getLogger(RequestHandler.class.getName() + ".default").debug("404 {} {}", session.getUri(), StringUtils.abbreviate(session.getQueryParameterString(), 128));
@@ -67,19 +131,37 @@ public class NanoServer {
         return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.NOT_FOUND, "text/plain; charset=us-ascii", "404 Not Found");
     }
 
-    static int findUnusedPort() throws IOException {
-        try (ServerSocket socket = new ServerSocket(0)) {
-            return socket.getLocalPort();
-        }
+    public NanoControl startServer(int port) throws IOException {
+        return new NanoControl(port, requestHandlers, defaultRequestHandler, httpdFactory, serverConfigurers, drainTimeoutMillis, null);
     }
 
-    public NanoControl startServer(int port) throws IOException {
-        return new NanoControl(port, requestHandlers, defaultRequestHandler, httpdFactory);
+    /**
+     * Starts a server whose configuration is preceded by an action of the runtime
+     * that hosts it, and that notifies the runtime when it is stopped.
+     */
+    NanoControl startServer(int port, Consumer<? super NanoHTTPD> runtimeConfigurer, Runnable stopListener) throws IOException {
+        List<Consumer<? super NanoHTTPD>> configurers = new ArrayList<>(serverConfigurers.size() + 1);
+        configurers.add(runtimeConfigurer);
+        configurers.addAll(serverConfigurers);
+        return new NanoControl(port, requestHandlers, defaultRequestHandler, httpdFactory, configurers, drainTimeoutMillis, requireNonNull(stopListener));
     }
 
+    /**
+     * Serves this server's routes through a server that is shared with others.
+     * Configurers and the httpd factory are not used, because the shared server is
+     * configured by its owner.
+     */
+    NanoControl attach(NanoHTTPD sharedServer, Runnable detachAction) {
+        return new NanoControl(sharedServer, requestHandlers, defaultRequestHandler, detachAction);
+    }
+
+    /**
+     * Starts the server on a port chosen by the system.
+     * @return the control for the started server
+     * @throws IOException if the server cannot listen
+     */
     public NanoControl startServer() throws IOException {
-        int port = findUnusedPort();
-        return startServer(port);
+        return startServer(0);
     }
 
     /**
@@ -94,6 +176,8 @@ public class NanoServer {
         private final List<RequestHandler> requestHandlers = new ArrayList<>();
         private RequestHandler defaultRequestHandler = RequestHandler.getDefault();
         private NanoControl.HttpdImplFactory httpdImplFactory = null;
+        private final List<Consumer<? super NanoHTTPD>> serverConfigurers = new ArrayList<>();
+        private long drainTimeoutMillis;
 
         private Builder() {}
 
@@ -102,20 +186,144 @@ public class NanoServer {
             return this;
         }
 
+        /**
+         * Adds an action that configures the underlying server instance before it is started.
+         * @param configurer the action
+         * @return this builder
+         */
+        public Builder configure(Consumer<? super NanoHTTPD> configurer) {
+            serverConfigurers.add(requireNonNull(configurer));
+            return this;
+        }
+
+        /**
+         * Enables HTTP/2, negotiated through ALPN on secure connections and
+         * by prior knowledge on cleartext connections.
+         * @return this builder
+         */
+        public Builder http2() {
+            return configure(httpd -> httpd.setHttp2Enabled(true));
+        }
+
+        /**
+         * Sets options for the listening socket and accepted connections,
+         * such as the accept backlog, buffer sizes and TCP_NODELAY.
+         * @param socketOptions the options
+         * @return this builder
+         */
+        public Builder socketOptions(SocketOptions socketOptions) {
+            requireNonNull(socketOptions);
+            return configure(httpd -> httpd.setSocketOptions(socketOptions));
+        }
+
+        /**
+         * Limits the connections and request rate of each client, so that one client
+         * cannot occupy every worker. Clients are told apart by remote IP address.
+         * @param admissionControl the admission control
+         * @return this builder
+         */
+        public Builder admissionControl(AdmissionControl admissionControl) {
+            requireNonNull(admissionControl);
+            return configure(httpd -> httpd.setAdmissionControl(admissionControl));
+        }
+
+        /**
+         * Makes {@link NanoControl#close()} stop the server gracefully: connections in
+         * the middle of an exchange get up to the given time to complete it.
+         * @param timeout the maximum time to wait
+         * @param unit the unit of the timeout
+         * @return this builder
+         * @see NanoControl#drain(long, TimeUnit)
+         */
+        public Builder drainOnClose(long timeout, TimeUnit unit) {
+            checkArgument(timeout >= 0, "timeout " + timeout);
+            drainTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Listens on a Unix domain socket in addition to the TCP port.
+         * Requires Java 16 or later.
+         * @param path the socket file, which must not exist yet
+         * @return this builder
+         */
+        public Builder unixSocket(Path path) {
+            requireNonNull(path);
+            return configure(httpd -> httpd.setUnixSocketPath(path));
+        }
+
+        /**
+         * Listens on a Unix domain socket instead of a TCP port.
+         * Requires Java 16 or later.
+         * @param path the socket file, which must not exist yet
+         * @return this builder
+         */
+        public Builder unixSocketOnly(Path path) {
+            requireNonNull(path);
+            return configure(httpd -> {
+                httpd.setUnixSocketPath(path);
+                httpd.setTcpListenerEnabled(false);
+            });
+        }
+
         public Builder get(ResponseProvider responseProvider) {
             return handle(request -> request.method == Method.GET, responseProvider);
         }
 
+        /**
+         * Registers a handler of GET requests for a path. The route is named by the path.
+         * @param path the path
+         * @param responseProvider the response provider
+         * @return this builder
+         */
         public Builder getPath(String path, ResponseProvider responseProvider) {
-            return getPath(path::equals, responseProvider);
+            requireNonNull(path);
+            return route(path, filter(request -> request.method == Method.GET && path.equals(request.uri.getPath()), responseProvider));
         }
 
         public Builder getPath(Predicate<? super String> pathPredicate, ResponseProvider responseProvider) {
             return handle(request -> request.method == Method.GET && pathPredicate.test(request.uri.getPath()), responseProvider);
         }
 
+        /**
+         * Registers a Server-Sent Events broadcaster as the handler of GET requests for a path.
+         * @param path the path
+         * @param broadcaster the broadcaster
+         * @return this builder
+         */
+        public Builder sse(String path, SseBroadcaster broadcaster) {
+            requireNonNull(broadcaster);
+            return getPath(path, request -> broadcaster.serve(request.session));
+        }
+
+        /**
+         * Registers a handler for WebSocket connections upgraded from GET requests for a path.
+         * @param path the path
+         * @param handler the handler
+         * @return this builder
+         */
+        public Builder websocket(String path, WebSocketHandler handler) {
+            return websocket(path, handler, WebSocket.DEFAULT_MAX_MESSAGE_SIZE);
+        }
+
+        /**
+         * Registers a handler for WebSocket connections upgraded from GET requests for a path.
+         * @param path the path
+         * @param handler the handler
+         * @param maxMessageSize maximum size of a reassembled incoming message, in bytes
+         * @return this builder
+         */
+        public Builder websocket(String path, WebSocketHandler handler, int maxMessageSize) {
+            requireNonNull(handler);
+            return getPath(path, request -> WebSocket.handshake(request.session, handler, maxMessageSize));
+        }
+
         public Builder handle(Predicate<? super ServiceRequest> decider, ResponseProvider responseProvider) {
-            return handle(new ResponseProvider() {
+            return handle(filter(decider, responseProvider));
+        }
+
+        private static ResponseProvider filter(Predicate<? super ServiceRequest> decider, ResponseProvider responseProvider) {
+            return new ResponseProvider() {
 
                 @Nullable
                 @Override
@@ -125,13 +333,52 @@ public class NanoServer {
                     }
                     return null;
                 }
-            });
+            };
         }
 
         public Builder handle(ResponseProvider requestHandler) {
             return session(requestHandler);
         }
 
+        /**
+         * Adds a check of requests sent with {@code Expect: 100-continue}. Requests
+         * accepted by the decider are rejected with the response of the provider, without
+         * their body being read, unless the provider returns null.
+         * @param decider selects the requests to check
+         * @param rejection produces the rejection, or null to let the client send the body
+         * @return this builder
+         * @see RequestHandler#checkContinue(IHTTPSession)
+         */
+        public Builder checkContinue(Predicate<? super ServiceRequest> decider, ResponseProvider rejection) {
+            requireNonNull(decider);
+            requireNonNull(rejection);
+            return session(new RequestHandler() {
+                @Nullable
+                @Override
+                public Response serve(IHTTPSession session) {
+                    return null;
+                }
+
+                @Nullable
+                @Override
+                public Response checkContinue(IHTTPSession session) {
+                    ServiceRequest request = ServiceRequest.fromSession(session);
+                    return decider.test(request) ? rejection.serve(request) : null;
+                }
+            });
+        }
+
+        /**
+         * Registers a handler for a named route. Responses of the route can be flushed
+         * and counted apart from other responses; see {@link NanoControl#flush(String, long, TimeUnit)}.
+         * @param route the route name
+         * @param requestHandler the handler
+         * @return this builder
+         */
+        public Builder route(String route, RequestHandler requestHandler) {
+            return session(RequestHandler.named(route, requestHandler));
+        }
+
         public Builder session(RequestHandler requestHandler) {
             requestHandlers.add(requireNonNull(requestHandler));
             return this;
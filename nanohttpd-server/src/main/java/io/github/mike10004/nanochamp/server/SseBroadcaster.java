@@ -0,0 +1,355 @@
+package io.github.mike10004.nanochamp.server;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import io.github.mike10004.nanochamp.server.NanoServer.RequestHandler;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.mike10004.nanochamp.server.GuavaShim.checkArgument;
+
+/**
+ * Request handler that serves a stream of Server-Sent Events to every subscriber.
+ * Each event is encoded once and the same bytes are queued for every subscriber.
+ * Subscribers have bounded queues; a subscriber whose queue is full when an event
+ * is published is evicted, which ends its response so the client can reconnect.
+ * Recently published events are kept in a ring buffer so that a reconnecting client
+ * that supplies a {@code Last-Event-ID} header receives the events it missed.
+ *
+ * <p>Subscribers are decoupled from connections: the blocking connection model
+ * drains a subscriber through the response body stream, but anything that can poll
+ * a {@link Subscriber} can deliver the events.
+ */
+public class SseBroadcaster implements RequestHandler, Closeable {
+
+    public static final String MIME_TYPE = "text/event-stream";
+
+    static final String LAST_EVENT_ID_HEADER = "last-event-id";
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int queueCapacity;
+    private final int replayCapacity;
+    private final long heartbeatIntervalMs;
+    private final Object publishLock = new Object();
+    private final ArrayDeque<EncodedEvent> replayBuffer;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicLong numEvicted = new AtomicLong(0L);
+    private long lastEventId;
+    private volatile boolean closed;
+
+    private SseBroadcaster(Builder b) {
+        queueCapacity = b.queueCapacity;
+        replayCapacity = b.replayCapacity;
+        heartbeatIntervalMs = b.heartbeatIntervalMs;
+        replayBuffer = new ArrayDeque<>(replayCapacity);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Publishes an unnamed event.
+     * @param data event data; may contain newlines
+     * @return the id assigned to the event
+     */
+    public long send(String data) {
+        return send(null, data);
+    }
+
+    /**
+     * Publishes an event to all current subscribers.
+     * @param eventType event type, or null for the default {@code message} type;
+     *                  must not contain line breaks
+     * @param data event data; may contain newlines
+     * @return the id assigned to the event
+     * @throws IllegalArgumentException if the event type contains a line break
+     */
+    public long send(@Nullable String eventType, String data) {
+        checkArgument(eventType == null || (eventType.indexOf('\r') < 0 && eventType.indexOf('\n') < 0), "event type contains a line break");
+        synchronized (publishLock) {
+            long id = ++lastEventId;
+            EncodedEvent event = new EncodedEvent(id, encode(id, eventType, data));
+            if (replayCapacity > 0) {
+                if (replayBuffer.size() == replayCapacity) {
+                    replayBuffer.removeFirst();
+                }
+                replayBuffer.addLast(event);
+            }
+            for (Subscriber subscriber : subscribers) {
+                if (!subscriber.queue.offer(event.bytes)) {
+                    evict(subscriber);
+                }
+            }
+            return id;
+        }
+    }
+
+    static byte[] encode(long id, @Nullable String eventType, String data) {
+        StringBuilder sb = new StringBuilder(data.length() + 32);
+        sb.append("id: ").append(id).append('\n');
+        if (eventType != null) {
+            sb.append("event: ").append(eventType).append('\n');
+        }
+        for (String line : data.split("\r\n|\r|\n", -1)) {
+            sb.append("data: ").append(line).append('\n');
+        }
+        sb.append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Registers a new subscriber. Events published after the given event id that are
+     * still in the replay buffer are queued for the subscriber before any new events.
+     * The subscriber's queue is enlarged to hold them, so that the replay never
+     * overflows it and leaves a gap in the event ids.
+     * @param lastEventId id of the last event the client received, or null
+     * @return the subscriber
+     */
+    public Subscriber subscribe(@Nullable Long lastEventId) {
+        synchronized (publishLock) {
+            List<EncodedEvent> missed = new ArrayList<>();
+            if (lastEventId != null) {
+                for (EncodedEvent event : replayBuffer) {
+                    if (event.id > lastEventId) {
+                        missed.add(event);
+                    }
+                }
+            }
+            Subscriber subscriber = new Subscriber(queueCapacity + missed.size());
+            if (closed) {
+                subscriber.evicted = true;
+                return subscriber;
+            }
+            for (EncodedEvent event : missed) {
+                subscriber.queue.add(event.bytes);
+            }
+            subscribers.add(subscriber);
+            return subscriber;
+        }
+    }
+
+    @Override
+    public NanoHTTPD.Response serve(IHTTPSession session) {
+        Subscriber subscriber = subscribe(parseLastEventId(session.getHeaders().get(LAST_EVENT_ID_HEADER)));
+        NanoHTTPD.Response response = NanoHTTPD.newChunkedResponse(NanoHTTPD.Response.Status.OK, MIME_TYPE + "; charset=utf-8", new SubscriberInputStream(subscriber));
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+
+    @Nullable
+    private static Long parseLastEventId(@Nullable String headerValue) {
+        if (headerValue == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(headerValue.trim());
+        } catch (NumberFormatException ignore) {
+            return null;
+        }
+    }
+
+    private void evict(Subscriber subscriber) {
+        if (subscriber.evict()) {
+            numEvicted.incrementAndGet();
+        }
+        subscribers.remove(subscriber);
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        subscriber.evict();
+        subscribers.remove(subscriber);
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return the number of subscribers evicted because they could not keep up
+     */
+    public long getEvictionCount() {
+        return numEvicted.get();
+    }
+
+    /**
+     * Ends every subscriber's stream and rejects future subscriptions.
+     */
+    @Override
+    public void close() {
+        synchronized (publishLock) {
+            closed = true;
+            List<Subscriber> current = new ArrayList<>(subscribers);
+            subscribers.clear();
+            current.forEach(Subscriber::evict);
+        }
+    }
+
+    private static class EncodedEvent {
+        public final long id;
+        public final byte[] bytes;
+
+        private EncodedEvent(long id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Subscriber to a broadcaster. Holds the bounded queue of encoded events
+     * waiting to be written to the client.
+     */
+    public static class Subscriber {
+
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> queue;
+        private volatile boolean evicted;
+
+        private Subscriber(int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        private synchronized boolean evict() {
+            if (evicted) {
+                return false;
+            }
+            evicted = true;
+            queue.clear();
+            queue.offer(END);
+            return true;
+        }
+
+        public boolean isEvicted() {
+            return evicted;
+        }
+
+        /**
+         * Waits for the next encoded event.
+         * @param timeout maximum time to wait
+         * @param unit time unit
+         * @return the encoded event, an empty array if the subscriber has been evicted,
+         * or null if the timeout elapsed
+         * @throws InterruptedException if interrupted while waiting
+         */
+        @Nullable
+        public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+            if (evicted && queue.isEmpty()) {
+                return END;
+            }
+            return queue.poll(timeout, unit);
+        }
+    }
+
+    private class SubscriberInputStream extends InputStream {
+
+        private final Subscriber subscriber;
+        private byte[] current;
+        private int position;
+        private boolean ended;
+
+        public SubscriberInputStream(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (current == null || position == current.length) {
+                if (ended || !next()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        private boolean next() {
+            byte[] bytes;
+            try {
+                bytes = subscriber.poll(heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                bytes = Subscriber.END;
+            }
+            if (bytes == null) {
+                bytes = HEARTBEAT;
+            }
+            if (bytes.length == 0) {
+                ended = true;
+                return false;
+            }
+            current = bytes;
+            position = 0;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            unsubscribe(subscriber);
+        }
+    }
+
+    public static class Builder {
+
+        private int queueCapacity = 256;
+        private int replayCapacity = 256;
+        private long heartbeatIntervalMs = 15000L;
+
+        private Builder() {}
+
+        /**
+         * Sets the maximum number of events queued per subscriber before the subscriber is evicted.
+         */
+        public Builder queueCapacity(int queueCapacity) {
+            checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets the number of recent events retained for {@code Last-Event-ID} replay.
+         */
+        public Builder replayCapacity(int replayCapacity) {
+            checkArgument(replayCapacity >= 0, "replayCapacity must be nonnegative");
+            this.replayCapacity = replayCapacity;
+            return this;
+        }
+
+        /**
+         * Sets the interval after which an idle stream receives a comment line. The heartbeat
+         * also lets the server notice subscribers whose connections have gone away.
+         */
+        public Builder heartbeatInterval(long duration, TimeUnit unit) {
+            checkArgument(duration > 0, "heartbeat interval must be positive");
+            this.heartbeatIntervalMs = unit.toMillis(duration);
+            return this;
+        }
+
+        public SseBroadcaster build() {
+            return new SseBroadcaster(this);
+        }
+    }
+}
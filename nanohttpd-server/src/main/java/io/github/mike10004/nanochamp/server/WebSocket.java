@@ -0,0 +1,499 @@
+package io.github.mike10004.nanochamp.server;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * WebSocket connection. Instances are created by the handshake response produced by
+ * {@link #handshake(IHTTPSession, WebSocketHandler, int)} and run on the thread that
+ * served the upgrade request.
+ *
+ * <p>Incoming payloads are read into buffers borrowed from a shared pool and unmasked
+ * in place. Outgoing frames are appended to a per-connection buffer; frames sent from
+ * inside a handler callback are written together when the callback returns, and frames
+ * sent from other threads are written immediately.
+ */
+public class WebSocket implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(WebSocket.class);
+
+    static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_GOING_AWAY = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_ABNORMAL = 1006;
+    public static final int CLOSE_INVALID_PAYLOAD = 1007;
+    public static final int CLOSE_MESSAGE_TOO_BIG = 1009;
+    public static final int CLOSE_INTERNAL_ERROR = 1011;
+
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    static final int OP_CONTINUATION = 0x0;
+    static final int OP_TEXT = 0x1;
+    static final int OP_BINARY = 0x2;
+    static final int OP_CLOSE = 0x8;
+    static final int OP_PING = 0x9;
+    static final int OP_PONG = 0xA;
+
+    private static final int MAX_HEADER_LENGTH = 10;
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+
+    private static final BufferPool bufferPool = new BufferPool(16 * 1024, 64);
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final WebSocketHandler handler;
+    private final int maxMessageSize;
+    private final Object writeLock = new Object();
+    private final byte[] outBuf = new byte[OUTPUT_BUFFER_SIZE];
+    private int outLen;
+    private final byte[] mask = new byte[4];
+    private final byte[] control = new byte[125];
+    private volatile Thread dispatchThread;
+    private volatile boolean closeSent;
+    private boolean closeNotified;
+
+    WebSocket(InputStream in, OutputStream out, WebSocketHandler handler, int maxMessageSize) {
+        this.in = requireNonNull(in);
+        this.out = requireNonNull(out);
+        this.handler = requireNonNull(handler);
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Produces the response to a WebSocket upgrade request. If the request is a valid
+     * handshake, the response switches protocols and the connection is handed to the
+     * given handler; otherwise the response is an error.
+     * @param session the session
+     * @param handler the handler
+     * @param maxMessageSize maximum size of a reassembled message, in bytes
+     * @return the response
+     */
+    public static NanoHTTPD.Response handshake(IHTTPSession session, WebSocketHandler handler, int maxMessageSize) {
+        requireNonNull(handler);
+        Map<String, String> headers = session.getHeaders();
+        String key = headers.get("sec-websocket-key");
+        if (session.getMethod() != NanoHTTPD.Method.GET
+                || !"websocket".equalsIgnoreCase(headers.get("upgrade"))
+                || !containsToken(headers.get("connection"), "upgrade")
+                || key == null) {
+            return NanoResponse.status(NanoHTTPD.Response.Status.BAD_REQUEST).plainTextUtf8("Not a WebSocket handshake");
+        }
+        if (!"13".equals(headers.get("sec-websocket-version"))) {
+            NanoHTTPD.Response response = NanoResponse.status(426).plainTextUtf8("Unsupported WebSocket version");
+            response.addHeader("Sec-WebSocket-Version", "13");
+            return response;
+        }
+        NanoHTTPD.Response response = NanoResponse.status(NanoHTTPD.Response.Status.SWITCH_PROTOCOL).build();
+        response.addHeader("Upgrade", "websocket");
+        response.addHeader("Connection", "Upgrade");
+        response.addHeader("Sec-WebSocket-Accept", computeAccept(key.trim()));
+        response.setUpgrade((inputStream, outputStream) -> new WebSocket(inputStream, outputStream, handler, maxMessageSize).run());
+        return response;
+    }
+
+    private static boolean containsToken(String headerValue, String token) {
+        if (headerValue == null) {
+            return false;
+        }
+        for (String element : headerValue.split(",")) {
+            if (token.equalsIgnoreCase(element.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String computeAccept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads frames until the connection closes, dispatching messages to the handler.
+     */
+    void run() throws IOException {
+        byte[] message = bufferPool.acquire();
+        int messageLength = 0;
+        int messageOpcode = -1;
+        int closeCode = CLOSE_ABNORMAL;
+        String closeReason = "";
+        try {
+            dispatch(() -> handler.onOpen(this));
+            while (true) {
+                int b0;
+                try {
+                    b0 = in.read();
+                } catch (SocketTimeoutException idle) {
+                    sendFrame(OP_PING, control, 0, 0);
+                    continue;
+                }
+                if (b0 < 0) {
+                    break;
+                }
+                int b1 = readByte();
+                boolean fin = (b0 & 0x80) != 0;
+                int opcode = b0 & 0x0F;
+                if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) {
+                    // reserved bits without a negotiated extension, or an unmasked client frame
+                    closeCode = fail(CLOSE_PROTOCOL_ERROR, "protocol error");
+                    break;
+                }
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = readUnsigned(2);
+                } else if (length == 127) {
+                    length = readUnsigned(8);
+                }
+                readFully(mask, 0, 4);
+                if (opcode >= OP_CLOSE) {
+                    if (opcode > OP_PONG) {
+                        closeCode = fail(CLOSE_PROTOCOL_ERROR, "reserved opcode");
+                        break;
+                    }
+                    if (length > control.length || !fin || (opcode == OP_CLOSE && length == 1)) {
+                        closeCode = fail(CLOSE_PROTOCOL_ERROR, "invalid control frame");
+                        break;
+                    }
+                    int len = (int) length;
+                    readFully(control, 0, len);
+                    unmask(control, 0, len, mask);
+                    if (opcode == OP_PING) {
+                        sendFrame(OP_PONG, control, 0, len);
+                    } else if (opcode == OP_CLOSE) {
+                        String reason = len > 2 ? decodeUtf8(control, 2, len - 2) : "";
+                        if (reason == null) {
+                            closeCode = fail(CLOSE_INVALID_PAYLOAD, "invalid UTF-8");
+                            break;
+                        }
+                        closeCode = len >= 2 ? ((control[0] & 0xFF) << 8) | (control[1] & 0xFF) : CLOSE_NORMAL;
+                        closeReason = reason;
+                        if (!closeSent) {
+                            sendFrame(OP_CLOSE, control, 0, Math.min(len, 2));
+                        }
+                        break;
+                    }
+                    continue;
+                }
+                if ((opcode == OP_CONTINUATION) == (messageOpcode < 0) || opcode > OP_BINARY) {
+                    closeCode = fail(CLOSE_PROTOCOL_ERROR, "unexpected frame");
+                    break;
+                }
+                if (messageLength + length > maxMessageSize) {
+                    closeCode = fail(CLOSE_MESSAGE_TOO_BIG, "message too big");
+                    break;
+                }
+                int len = (int) length;
+                if (messageLength + len > message.length) {
+                    message = bufferPool.grow(message, messageLength, messageLength + len);
+                }
+                readFully(message, messageLength, len);
+                unmask(message, messageLength, len, mask);
+                messageLength += len;
+                if (opcode != OP_CONTINUATION) {
+                    messageOpcode = opcode;
+                }
+                if (fin) {
+                    if (!deliver(messageOpcode, message, messageLength)) {
+                        closeCode = fail(CLOSE_INVALID_PAYLOAD, "invalid UTF-8");
+                        break;
+                    }
+                    messageLength = 0;
+                    messageOpcode = -1;
+                }
+            }
+        } catch (EOFException ignore) {
+            // peer went away mid-frame
+        } catch (IOException | RuntimeException e) {
+            closeCode = CLOSE_INTERNAL_ERROR;
+            closeReason = e.toString();
+            throw e;
+        } finally {
+            bufferPool.release(message);
+            notifyClose(closeCode, closeReason);
+        }
+    }
+
+    /**
+     * @return false if a text message is not valid UTF-8, in which case it is not delivered
+     */
+    private boolean deliver(int opcode, byte[] message, int length) throws IOException {
+        if (opcode == OP_TEXT) {
+            String text = decodeUtf8(message, 0, length);
+            if (text == null) {
+                return false;
+            }
+            dispatch(() -> handler.onText(this, text));
+        } else {
+            ByteBuffer data = ByteBuffer.wrap(message, 0, length).asReadOnlyBuffer();
+            dispatch(() -> handler.onBinary(this, data));
+        }
+        return true;
+    }
+
+    /**
+     * Decodes UTF-8 strictly.
+     * @return the text, or null if the bytes are not valid UTF-8
+     */
+    @Nullable
+    static String decodeUtf8(byte[] data, int offset, int length) {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(data, offset, length))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    private void dispatch(Runnable callback) throws IOException {
+        dispatchThread = Thread.currentThread();
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            log.warn("WebSocket handler threw exception", e);
+            close(CLOSE_INTERNAL_ERROR, "");
+        } finally {
+            dispatchThread = null;
+        }
+        flush();
+    }
+
+    private int fail(int code, String reason) throws IOException {
+        close(code, reason);
+        return code;
+    }
+
+    private void notifyClose(int code, String reason) {
+        if (closeNotified) {
+            return;
+        }
+        closeNotified = true;
+        try {
+            handler.onClose(this, code, reason);
+        } catch (RuntimeException e) {
+            log.warn("WebSocket handler threw exception on close", e);
+        }
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private long readUnsigned(int numBytes) throws IOException {
+        long value = 0;
+        for (int i = 0; i < numBytes; i++) {
+            value = (value << 8) | readByte();
+        }
+        if (value < 0) {
+            throw new IOException("frame length out of range");
+        }
+        return value;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int r = in.read(b, off, len);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            off += r;
+            len -= r;
+        }
+    }
+
+    static void unmask(byte[] data, int offset, int length, byte[] mask) {
+        for (int i = 0; i < length; i++) {
+            data[offset + i] ^= mask[i & 3];
+        }
+    }
+
+    /**
+     * Sends a text message.
+     * @param text the message
+     * @throws IOException if the connection is closed or the write fails
+     */
+    public void sendText(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        sendFrame(OP_TEXT, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Sends a binary message.
+     * @param data array containing the message
+     * @param offset offset of the message in the array
+     * @param length length of the message
+     * @throws IOException if the connection is closed or the write fails
+     */
+    public void sendBinary(byte[] data, int offset, int length) throws IOException {
+        sendFrame(OP_BINARY, data, offset, length);
+    }
+
+    public void sendBinary(byte[] data) throws IOException {
+        sendBinary(data, 0, data.length);
+    }
+
+    /**
+     * Starts the closing handshake. The connection ends when the peer echoes the close frame.
+     * @param code status code
+     * @param reason reason; must encode to at most 123 bytes
+     * @throws IOException if the write fails
+     */
+    public void close(int code, String reason) throws IOException {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        int len = Math.min(reasonBytes.length, 123);
+        byte[] payload = new byte[2 + len];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, payload, 2, len);
+        sendFrame(OP_CLOSE, payload, 0, payload.length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(CLOSE_NORMAL, "");
+    }
+
+    public boolean isCloseSent() {
+        return closeSent;
+    }
+
+    void sendFrame(int opcode, byte[] payload, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            if (closeSent) {
+                if (opcode == OP_CLOSE) {
+                    return;
+                }
+                throw new IOException("WebSocket close already sent");
+            }
+            if (opcode == OP_CLOSE) {
+                closeSent = true;
+            }
+            if (outLen + MAX_HEADER_LENGTH > outBuf.length) {
+                flushLocked();
+            }
+            outLen = encodeHeader(outBuf, outLen, opcode, length);
+            if (outLen + length <= outBuf.length) {
+                System.arraycopy(payload, offset, outBuf, outLen, length);
+                outLen += length;
+            } else {
+                flushLocked();
+                out.write(payload, offset, length);
+            }
+            if (Thread.currentThread() != dispatchThread) {
+                flushLocked();
+            }
+        }
+    }
+
+    static int encodeHeader(byte[] dest, int pos, int opcode, int length) {
+        dest[pos++] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            dest[pos++] = (byte) length;
+        } else if (length < 65536) {
+            dest[pos++] = 126;
+            dest[pos++] = (byte) (length >> 8);
+            dest[pos++] = (byte) length;
+        } else {
+            dest[pos++] = 127;
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                dest[pos++] = (byte) ((long) length >> shift);
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Writes any frames batched by the current handler callback.
+     * @throws IOException if the write fails
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() throws IOException {
+        if (outLen > 0) {
+            out.write(outBuf, 0, outLen);
+            outLen = 0;
+        }
+        out.flush();
+    }
+
+    /**
+     * Pool of receive buffers shared by all connections. Buffers larger than the
+     * standard size are allocated on demand and not retained.
+     */
+    static class BufferPool {
+
+        private final int bufferSize;
+        private final int maxPooled;
+        private final Queue<byte[]> pool = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        BufferPool(int bufferSize, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.maxPooled = maxPooled;
+        }
+
+        public byte[] acquire() {
+            byte[] b = pool.poll();
+            if (b == null) {
+                return new byte[bufferSize];
+            }
+            pooled.decrementAndGet();
+            return b;
+        }
+
+        public byte[] grow(byte[] buffer, int used, int required) {
+            byte[] bigger = new byte[Math.max(required, buffer.length * 2)];
+            System.arraycopy(buffer, 0, bigger, 0, used);
+            release(buffer);
+            return bigger;
+        }
+
+        public void release(byte[] buffer) {
+            if (buffer.length == bufferSize && pooled.incrementAndGet() <= maxPooled) {
+                pool.offer(buffer);
+            } else if (buffer.length == bufferSize) {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+}
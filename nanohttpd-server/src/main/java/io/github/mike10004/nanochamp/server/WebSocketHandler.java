@@ -0,0 +1,46 @@
+package io.github.mike10004.nanochamp.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface of handlers of WebSocket connections. One handler instance serves
+ * every connection on its route, so implementations must tell connections apart
+ * by the {@link WebSocket} argument. Callbacks for a given connection are invoked
+ * on that connection's thread, one at a time.
+ */
+public interface WebSocketHandler {
+
+    /**
+     * Invoked after the handshake completes.
+     * @param socket the connection
+     */
+    default void onOpen(WebSocket socket) {
+    }
+
+    /**
+     * Invoked when a complete text message has been received.
+     * @param socket the connection
+     * @param text the message
+     */
+    default void onText(WebSocket socket, String text) {
+    }
+
+    /**
+     * Invoked when a complete binary message has been received. The buffer is
+     * reused for subsequent messages, so it must not be retained after this
+     * method returns.
+     * @param socket the connection
+     * @param data the message
+     */
+    default void onBinary(WebSocket socket, ByteBuffer data) {
+    }
+
+    /**
+     * Invoked once when the connection ends.
+     * @param socket the connection
+     * @param code the close status code; {@link WebSocket#CLOSE_ABNORMAL} if the connection dropped
+     * @param reason the close reason, possibly empty
+     */
+    default void onClose(WebSocket socket, int code, String reason) {
+    }
+}
@@ -0,0 +1,54 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void connectionsAreCappedPerClient() {
+        AdmissionControl admissionControl = AdmissionControl.builder().maxConnectionsPerClient(2).build();
+        assertTrue(admissionControl.tryAcquireConnection("10.0.0.1"));
+        assertTrue(admissionControl.tryAcquireConnection("10.0.0.1"));
+        assertFalse("over the cap", admissionControl.tryAcquireConnection("10.0.0.1"));
+        assertTrue("other client", admissionControl.tryAcquireConnection("10.0.0.2"));
+        admissionControl.releaseConnection("10.0.0.1");
+        assertTrue("after release", admissionControl.tryAcquireConnection("10.0.0.1"));
+        assertEquals(2, admissionControl.getConnectionCount("10.0.0.1"));
+        assertEquals(1, admissionControl.getRejectedConnectionCount());
+        assertTrue("requests are not limited", admissionControl.tryAcquireRequest("10.0.0.1"));
+    }
+
+    @Test
+    public void requestsAreRateLimitedPerClient() throws Exception {
+        AdmissionControl admissionControl = AdmissionControl.builder().requestRate(20, 3).build();
+        for (int i = 0; i < 3; i++) {
+            assertTrue("burst " + i, admissionControl.tryAcquireRequest("10.0.0.1"));
+        }
+        assertFalse("beyond the burst", admissionControl.tryAcquireRequest("10.0.0.1"));
+        assertTrue("other client", admissionControl.tryAcquireRequest("10.0.0.2"));
+        Thread.sleep(100);
+        assertTrue("token regained", admissionControl.tryAcquireRequest("10.0.0.1"));
+        assertEquals(1, admissionControl.getRejectedRequestCount());
+        assertEquals(0, admissionControl.getMaxConnectionsPerClient());
+    }
+
+    @Test
+    public void rejectionReportsWait() {
+        AdmissionControl admissionControl = AdmissionControl.builder().requestRate(0.5, 2).build();
+        assertEquals(0, admissionControl.acquireRequest("10.0.0.1"));
+        assertEquals(0, admissionControl.acquireRequest("10.0.0.1"));
+        long wait = admissionControl.acquireRequest("10.0.0.1");
+        assertTrue("wait " + wait, wait > TimeUnit.SECONDS.toNanos(1) && wait <= TimeUnit.SECONDS.toNanos(2));
+        String response = new String(AdmissionControl.tooManyRequests(wait), StandardCharsets.US_ASCII);
+        assertTrue(response, response.contains("\r\nRetry-After: 2\r\n"));
+        response = new String(AdmissionControl.tooManyRequests(1), StandardCharsets.US_ASCII);
+        assertTrue(response, response.contains("\r\nRetry-After: 1\r\n"));
+    }
+}
@@ -0,0 +1,81 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import com.google.common.io.ByteStreams;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.RequestBodyException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class ChunkedInputStreamTest {
+
+    @Test
+    public void decode() throws Exception {
+        InputStream raw = new ByteArrayInputStream(("5;ext=1\r\nhello\r\n7\r\n, world\r\n0\r\nTrailer: x\r\n\r\nNEXT").getBytes(StandardCharsets.US_ASCII));
+        ChunkedInputStream chunked = new ChunkedInputStream(raw, -1);
+        assertEquals("hello, world", new String(ByteStreams.toByteArray(chunked), StandardCharsets.US_ASCII));
+        assertEquals(0, chunked.getRemaining());
+        assertEquals("NEXT", new String(ByteStreams.toByteArray(raw), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void exceedMaxBodySize() throws Exception {
+        InputStream raw = new ByteArrayInputStream(("5\r\nhello\r\n5\r\nworld\r\n0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        ChunkedInputStream chunked = new ChunkedInputStream(raw, 8);
+        try {
+            ByteStreams.toByteArray(chunked);
+            fail("expected exception");
+        } catch (RequestBodyException e) {
+            assertEquals(NanoHTTPD.Response.Status.PAYLOAD_TOO_LARGE, e.getStatus());
+        }
+        assertFalse(chunked.discardRemaining(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void streamedUpload() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        NanoHTTPD nano = new NanoHTTPD(port) {
+            @Override
+            public Response serve(IHTTPSession session) {
+                long length;
+                try {
+                    length = ByteStreams.exhaust(session.getInputStream());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return newFixedLengthResponse(String.valueOf(length));
+            }
+        };
+        nano.start();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setChunkedStreamingMode(1000);
+            byte[] block = new byte[4096];
+            try (OutputStream out = conn.getOutputStream()) {
+                for (int i = 0; i < 100; i++) {
+                    out.write(block);
+                }
+            }
+            try (InputStream in = conn.getInputStream()) {
+                assertEquals(String.valueOf(100 * block.length), new String(ByteStreams.toByteArray(in), StandardCharsets.US_ASCII));
+            }
+        } finally {
+            nano.stop();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HostNameCacheTest {
+
+    @Test
+    public void lookupIsShared() throws Exception {
+        HostNameCache cache = new HostNameCache(16, 60000);
+        InetAddress address = InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+        cache.prefetch(address);
+        assertEquals(1, cache.size());
+        String name = cache.getHostName(address);
+        assertNotNull(name);
+        assertSame("cached name", name, cache.getHostName(InetAddress.getByAddress(address.getAddress())));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void sizeIsBounded() throws Exception {
+        HostNameCache cache = new HostNameCache(2, 60000);
+        for (byte i = 1; i <= 4; i++) {
+            cache.getHostName(InetAddress.getByAddress(new byte[]{127, 0, 0, i}));
+        }
+        assertTrue("size " + cache.size(), cache.size() <= 2);
+    }
+
+    @Test
+    public void queuedPrefetchIsTakenOver() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        InetAddress queued = InetAddress.getByAddress(new byte[]{127, 0, 0, 3});
+        HostNameCache cache = new HostNameCache(16, 60000) {
+            @Override
+            String resolve(InetAddress address) {
+                if (!address.equals(queued)) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return "name-" + address.getAddress()[3];
+            }
+        };
+        try {
+            cache.prefetch(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
+            cache.prefetch(InetAddress.getByAddress(new byte[]{127, 0, 0, 2}));
+            cache.prefetch(queued);
+            long start = System.currentTimeMillis();
+            assertEquals("name-3", cache.getHostName(queued));
+            assertTrue("looked up inline", System.currentTimeMillis() - start < HostNameCache.MAX_WAIT_MILLIS);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void prefetchQueueIsBounded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HostNameCache cache = new HostNameCache(1024, 60000) {
+            @Override
+            String resolve(InetAddress address) {
+                if (address.getAddress()[2] == 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return "name-" + address.getAddress()[3];
+            }
+        };
+        try {
+            for (int i = 0; i < 200; i++) {
+                cache.prefetch(InetAddress.getByAddress(new byte[]{10, 0, (byte) (i / 100), (byte) (i % 100)}));
+            }
+            assertTrue("queued " + cache.getQueuedPrefetchCount(), cache.getQueuedPrefetchCount() <= HostNameCache.MAX_QUEUED_PREFETCHES);
+            assertEquals("dropped prefetch looked up inline", "name-99", cache.getHostName(InetAddress.getByAddress(new byte[]{10, 0, 1, 99})));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void failedLookupIsNotCached() throws Exception {
+        HostNameCache cache = new HostNameCache(16, 60000) {
+            @Override
+            String resolve(InetAddress address) {
+                throw new SecurityException("denied");
+            }
+        };
+        InetAddress address = InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+        assertEquals("127.0.0.1", cache.getHostName(address));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,329 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class Http2ConnectionTest {
+
+    @Test
+    public void decodeHuffman() throws Exception {
+        // example from RFC 7541 appendix C.4.1
+        byte[] encoded = BaseEncoding.base16().lowerCase().decode("f1e3c2e5f23a6ba0ab90f4ff");
+        assertEquals("www.example.com", Hpack.decodeHuffman(encoded, 0, encoded.length));
+    }
+
+    @Test
+    public void decodeRequestsWithDynamicTable() throws Exception {
+        // examples from RFC 7541 appendix C.4.1 and C.4.2
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        Map<String, String> first = decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff");
+        assertEquals("www.example.com", first.get(":authority"));
+        assertEquals("GET", first.get(":method"));
+        Map<String, String> second = decode(decoder, "828684be5886a8eb10649cbf");
+        assertEquals("www.example.com", second.get(":authority"));
+        assertEquals("no-cache", second.get("cache-control"));
+    }
+
+    @Test
+    public void encoderOutputIsDecodable() throws Exception {
+        List<Map.Entry<String, String>> headers = Arrays.asList(
+                new SimpleImmutableEntry<>(":status", "200"),
+                new SimpleImmutableEntry<>("content-type", "text/plain"),
+                new SimpleImmutableEntry<>("x-custom", "value"));
+        byte[] block = new Hpack.Encoder().encode(headers);
+        Map<String, String> decoded = new LinkedHashMap<>();
+        new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(block, 0, block.length, decoded::put);
+        assertEquals(new ArrayList<>(headers), new ArrayList<>(decoded.entrySet()));
+    }
+
+    @Test
+    public void priorKnowledge() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        NanoHTTPD nano = new NanoHTTPD(port) {
+            @Override
+            public Response serve(IHTTPSession session) {
+                String body;
+                try {
+                    body = new String(ByteStreams.toByteArray(session.getInputStream()), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                List<String> q = session.getParameters().get("q");
+                return newFixedLengthResponse(Response.Status.OK, "text/plain", session.getMethod() + " " + session.getUri() + " " + (q == null ? null : q.get(0)) + " " + body);
+            }
+        };
+        nano.setHttp2Enabled(true);
+        nano.start();
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(Http2Connection.PREFACE);
+            writeFrame(out, 0x4, 0, 0, new byte[0]);
+            writeFrame(out, 0x1, 0x4 | 0x1, 1, requestHeaders("GET", "/first?q=1"));
+            writeFrame(out, 0x1, 0x4, 3, requestHeaders("POST", "/second"));
+            writeFrame(out, 0x0, 0x1, 3, "posted".getBytes(StandardCharsets.UTF_8));
+            Map<Integer, ByteArrayOutputStream> bodies = new LinkedHashMap<>();
+            Map<Integer, Map<String, String>> heads = new LinkedHashMap<>();
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+            int ended = 0;
+            while (ended < 2) {
+                int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamId = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (type == 0x1) {
+                    Map<String, String> head = new LinkedHashMap<>();
+                    decoder.decode(payload, 0, payload.length, head::put);
+                    heads.put(streamId, head);
+                } else if (type == 0x0) {
+                    bodies.computeIfAbsent(streamId, id -> new ByteArrayOutputStream()).write(payload);
+                }
+                if ((type == 0x0 || type == 0x1) && (flags & 0x1) != 0) {
+                    ended++;
+                }
+            }
+            assertEquals("200", heads.get(1).get(":status"));
+            assertEquals("text/plain", heads.get(1).get("content-type"));
+            assertEquals("GET /first 1 ", bodies.get(1).toString("UTF-8"));
+            assertEquals("POST /second null posted", bodies.get(3).toString("UTF-8"));
+        } finally {
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void frameHeaderResumesAfterReadTimeout() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        NanoHTTPD nano = new BlockingNanoHTTPD(release);
+        nano.setHttp2Enabled(true);
+        nano.start(200, true);
+        try (Socket socket = new Socket("localhost", nano.getListeningPort())) {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(Http2Connection.PREFACE);
+            writeFrame(out, 0x4, 0, 0, new byte[0]);
+            writeFrame(out, 0x1, 0x4 | 0x1, 1, requestHeaders("GET", "/block"));
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            writeFrame(frame, 0x1, 0x4 | 0x1, 3, requestHeaders("GET", "/fast"));
+            byte[] bytes = frame.toByteArray();
+            out.write(bytes, 0, 4);
+            out.flush();
+            Thread.sleep(500);
+            out.write(bytes, 4, bytes.length - 4);
+            out.flush();
+            assertEquals("stream answered after the timeout", 3, awaitEndOfStream(in));
+            release.countDown();
+            assertEquals(1, awaitEndOfStream(in));
+        } finally {
+            release.countDown();
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void streamsBeyondThreadLimitAreRefused() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        NanoHTTPD nano = new BlockingNanoHTTPD(release);
+        nano.setHttp2Enabled(true);
+        nano.setMaxHttp2StreamThreads(1);
+        nano.start();
+        try (Socket socket = new Socket("localhost", nano.getListeningPort())) {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(Http2Connection.PREFACE);
+            writeFrame(out, 0x4, 0, 0, new byte[0]);
+            writeFrame(out, 0x1, 0x4 | 0x1, 1, requestHeaders("GET", "/block"));
+            Thread.sleep(100);
+            writeFrame(out, 0x1, 0x4 | 0x1, 3, requestHeaders("GET", "/fast"));
+            while (true) {
+                int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                in.readUnsignedByte();
+                int streamId = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (type == 0x3) {
+                    assertEquals(3, streamId);
+                    assertEquals("REFUSED_STREAM", Http2Connection.REFUSED_STREAM, ByteBuffer.wrap(payload).getInt());
+                    break;
+                }
+            }
+            release.countDown();
+            assertEquals(1, awaitEndOfStream(in));
+        } finally {
+            release.countDown();
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void oversizedHeaderListIsRefused() throws Exception {
+        CountDownLatch release = new CountDownLatch(0);
+        NanoHTTPD nano = new BlockingNanoHTTPD(release);
+        nano.setHttp2Enabled(true);
+        nano.start();
+        try (Socket socket = new Socket("localhost", nano.getListeningPort())) {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(Http2Connection.PREFACE);
+            writeFrame(out, 0x4, 0, 0, new byte[0]);
+            // one 4 KiB field added to the dynamic table, then referenced by
+            // one byte each until the block is 60 KB
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            block.write(requestHeaders("GET", "/big"));
+            byte[] value = new byte[4000];
+            Arrays.fill(value, (byte) 'v');
+            block.write(0x40);
+            block.write(5);
+            block.write("x-big".getBytes(StandardCharsets.US_ASCII));
+            writeHpackInteger(block, 0, 7, value.length);
+            block.write(value);
+            for (int i = 0; i < 56000; i++) {
+                block.write(0x80 | 62);
+            }
+            byte[] bytes = block.toByteArray();
+            for (int offset = 0; offset < bytes.length; offset += 16384) {
+                int length = Math.min(16384, bytes.length - offset);
+                int flags = (offset == 0 ? 0x1 : 0) | (offset + length == bytes.length ? 0x4 : 0);
+                writeFrame(out, offset == 0 ? 0x1 : 0x9, flags, 1, Arrays.copyOfRange(bytes, offset, offset + length));
+            }
+            int maxHeaderListSize = -1;
+            while (true) {
+                int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                in.readUnsignedByte();
+                int streamId = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (type == 0x4) {
+                    ByteBuffer settings = ByteBuffer.wrap(payload);
+                    while (settings.remaining() >= 6) {
+                        int id = settings.getShort();
+                        int setting = settings.getInt();
+                        if (id == 0x6) {
+                            maxHeaderListSize = setting;
+                        }
+                    }
+                }
+                if (type == 0x3) {
+                    assertEquals(1, streamId);
+                    assertEquals("PROTOCOL_ERROR", Http2Connection.PROTOCOL_ERROR, ByteBuffer.wrap(payload).getInt());
+                    break;
+                }
+                if (type == 0x7) {
+                    throw new AssertionError("connection closed");
+                }
+            }
+            assertEquals(Http2Connection.MAX_HEADER_LIST_SIZE, maxHeaderListSize);
+            writeFrame(out, 0x1, 0x4 | 0x1, 3, requestHeaders("GET", "/fast"));
+            assertEquals("connection still usable", 3, awaitEndOfStream(in));
+        } finally {
+            nano.stop();
+        }
+    }
+
+    private static void writeHpackInteger(ByteArrayOutputStream out, int prefixBits, int prefixLength, int value) {
+        int max = (1 << prefixLength) - 1;
+        if (value < max) {
+            out.write(prefixBits | value);
+            return;
+        }
+        out.write(prefixBits | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Serves {@code /block} once the latch is released and other paths at once.
+     */
+    private static class BlockingNanoHTTPD extends NanoHTTPD {
+
+        private final CountDownLatch release;
+
+        BlockingNanoHTTPD(CountDownLatch release) {
+            super(0);
+            this.release = release;
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            if ("/block".equals(session.getUri())) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return newFixedLengthResponse(Response.Status.OK, "text/plain", session.getUri());
+        }
+    }
+
+    /**
+     * Reads frames until one ends a stream.
+     * @return the id of the stream
+     */
+    private static int awaitEndOfStream(DataInputStream in) throws IOException {
+        while (true) {
+            int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int streamId = in.readInt();
+            in.readFully(new byte[length]);
+            if ((type == 0x0 || type == 0x1) && (flags & 0x1) != 0) {
+                return streamId;
+            }
+        }
+    }
+
+    private static byte[] requestHeaders(String method, String path) {
+        return new Hpack.Encoder().encode(Arrays.asList(
+                new SimpleImmutableEntry<>(":method", method),
+                new SimpleImmutableEntry<>(":scheme", "http"),
+                new SimpleImmutableEntry<>(":path", path),
+                new SimpleImmutableEntry<>(":authority", "localhost")));
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload) throws IOException {
+        out.write(new byte[]{
+                (byte) (payload.length >> 16), (byte) (payload.length >> 8), (byte) payload.length,
+                (byte) type, (byte) flags,
+                (byte) (streamId >> 24), (byte) (streamId >> 16), (byte) (streamId >> 8), (byte) streamId});
+        out.write(payload);
+        out.flush();
+    }
+
+    private static Map<String, String> decode(Hpack.Decoder decoder, String hex) throws Hpack.HpackException {
+        byte[] block = BaseEncoding.base16().lowerCase().decode(hex);
+        Map<String, String> fields = new LinkedHashMap<>();
+        decoder.decode(block, 0, block.length, fields::put);
+        return fields;
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import com.google.common.io.ByteStreams;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.RequestBodyException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class InflatingInputStreamTest {
+
+    private final InflaterPool pool = new InflaterPool(2);
+
+    @Test
+    public void gzipMembers() throws Exception {
+        byte[] first = randomText(50000), second = randomText(3000);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(gzip(first));
+        body.write(gzip(second));
+        InflatingInputStream in = new InflatingInputStream(new ByteArrayInputStream(body.toByteArray()), true, pool, -1);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(second);
+        assertArrayEquals(expected.toByteArray(), ByteStreams.toByteArray(in));
+    }
+
+    @Test
+    public void deflateZlibAndRaw() throws Exception {
+        byte[] content = randomText(20000);
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        try (OutputStream out = new DeflaterOutputStream(zlib)) {
+            out.write(content);
+        }
+        assertArrayEquals(content, ByteStreams.toByteArray(new InflatingInputStream(new ByteArrayInputStream(zlib.toByteArray()), false, pool, -1)));
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        try (OutputStream out = new DeflaterOutputStream(raw, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+            out.write(content);
+        }
+        assertArrayEquals(content, ByteStreams.toByteArray(new InflatingInputStream(new ByteArrayInputStream(raw.toByteArray()), false, pool, -1)));
+    }
+
+    @Test
+    public void exceedMaxSize() throws Exception {
+        byte[] bomb = gzip(new byte[1024 * 1024]);
+        try {
+            ByteStreams.exhaust(new InflatingInputStream(new ByteArrayInputStream(bomb), true, pool, 100000));
+            fail("expected exception");
+        } catch (RequestBodyException e) {
+            assertEquals(NanoHTTPD.Response.Status.PAYLOAD_TOO_LARGE, e.getStatus());
+        }
+    }
+
+    @Test
+    public void corruptTrailer() throws Exception {
+        byte[] body = gzip(randomText(1000));
+        body[body.length - 5] ^= 1;
+        try {
+            ByteStreams.exhaust(new InflatingInputStream(new ByteArrayInputStream(body), true, pool, -1));
+            fail("expected exception");
+        } catch (RequestBodyException e) {
+            assertEquals(NanoHTTPD.Response.Status.BAD_REQUEST, e.getStatus());
+        }
+    }
+
+    @Test
+    public void serverDecodesRequestBody() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        byte[] content = randomText(100000);
+        NanoHTTPD nano = new NanoHTTPD(port) {
+            @Override
+            public Response serve(IHTTPSession session) {
+                byte[] received;
+                try {
+                    received = ByteStreams.toByteArray(session.getInputStream());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return newFixedLengthResponse(received.length + " " + session.getHeaders().get("content-encoding"));
+            }
+        };
+        nano.setRequestBodyDecoding(true);
+        nano.start();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Encoding", "gzip");
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(gzip(content));
+            }
+            try (InputStream in = conn.getInputStream()) {
+                assertEquals(content.length + " null", new String(ByteStreams.toByteArray(in), StandardCharsets.US_ASCII));
+            }
+        } finally {
+            nano.stop();
+        }
+    }
+
+    private static byte[] randomText(int length) {
+        Random random = new Random(length);
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return text;
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(content);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,164 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MultipartStreamTest {
+
+    private static final String BOUNDARY = "----boundary42";
+
+    @Test
+    public void parseParts() throws Exception {
+        // CR, LF and hyphens in the content make partial delimiters occur in the data
+        String pattern = "\r\n----boundary4x";
+        byte[] fileContent = new byte[50000];
+        for (int i = 0; i < fileContent.length; i++) {
+            fileContent[i] = (byte) pattern.charAt(i % pattern.length());
+        }
+        byte[] body = multipartBody(fileContent);
+        for (int bufferSize : new int[]{16, 100, 8192}) {
+            MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(body), BOUNDARY, StandardCharsets.UTF_8, bufferSize, 1024);
+            MultipartStream.Part field = multipart.next();
+            assertEquals("field", field.getName());
+            assertNull(field.getFileName());
+            assertEquals("value", new String(ByteStreams.toByteArray(field.getInputStream()), StandardCharsets.UTF_8));
+            MultipartStream.Part skipped = multipart.next();
+            assertEquals("skipped", skipped.getName());
+            MultipartStream.Part file = multipart.next();
+            assertEquals("upload", file.getName());
+            assertEquals("data.bin", file.getFileName());
+            assertEquals("application/octet-stream", file.getContentType());
+            assertArrayEquals("buffer size " + bufferSize, fileContent, ByteStreams.toByteArray(file.getInputStream()));
+            assertNull(multipart.next());
+            assertNull(multipart.next());
+        }
+    }
+
+    @Test(expected = MultipartStream.MalformedStreamException.class)
+    public void missingClosingBoundary() throws Exception {
+        byte[] body = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nunterminated").getBytes(StandardCharsets.UTF_8);
+        MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(body), BOUNDARY, StandardCharsets.UTF_8);
+        ByteStreams.toByteArray(multipart.next().getInputStream());
+    }
+
+    @Test
+    public void parseBodyStreamsFileToDisk() throws Exception {
+        byte[] fileContent = new byte[200000];
+        for (int i = 0; i < fileContent.length; i++) {
+            fileContent[i] = (byte) i;
+        }
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Map<String, byte[]> received = new HashMap<>();
+        NanoHTTPD nano = new NanoHTTPD(port) {
+            @Override
+            public Response serve(IHTTPSession session) {
+                Map<String, String> files = new HashMap<>();
+                try {
+                    session.parseBody(files);
+                    received.put("upload", Files.readAllBytes(new File(files.get("upload")).toPath()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return newFixedLengthResponse(session.getParameters().get("field").get(0));
+            }
+        };
+        nano.start();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(multipartBody(fileContent));
+            }
+            try (InputStream in = conn.getInputStream()) {
+                assertEquals("value", new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+            }
+        } finally {
+            nano.stop();
+        }
+        assertArrayEquals(fileContent, received.get("upload"));
+    }
+
+    @Test
+    public void parseBodyLimitsFieldValues() throws Exception {
+        NanoHTTPD nano = new NanoHTTPD(0) {
+            @Override
+            public Response serve(IHTTPSession session) {
+                try {
+                    session.parseBody(new HashMap<>());
+                } catch (NanoHTTPD.RequestBodyException e) {
+                    return newFixedLengthResponse(e.getStatus(), MIME_PLAINTEXT, e.getMessage());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return newFixedLengthResponse(String.valueOf(session.getParameters().get("field").get(0).length()));
+            }
+        };
+        nano.setMaxBufferedBodySize(1000);
+        nano.start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
+        try {
+            char[] value = new char[600];
+            Arrays.fill(value, 'v');
+            String fields = "--" + BOUNDARY + "\r\n" +
+                    "Content-Disposition: form-data; name=\"field\"\r\n\r\n" +
+                    new String(value) + "\r\n--" + BOUNDARY + "\r\n" +
+                    "Content-Disposition: form-data; name=\"other\"\r\n\r\n" +
+                    new String(value) + "\r\n--" + BOUNDARY + "--\r\n";
+            assertEquals(413, post(nano.getListeningPort(), fields.getBytes(StandardCharsets.UTF_8)).getResponseCode());
+            HttpURLConnection conn = post(nano.getListeningPort(), multipartBody(new byte[5000]));
+            assertEquals("file parts are not limited", 200, conn.getResponseCode());
+            try (InputStream in = conn.getInputStream()) {
+                assertEquals("5", new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+            }
+        } finally {
+            nano.stop();
+        }
+    }
+
+    private static HttpURLConnection post(int port, byte[] body) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body);
+        }
+        return conn;
+    }
+
+    private static byte[] multipartBody(byte[] fileContent) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("preamble\r\n--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"field\"\r\n\r\n" +
+                "value\r\n--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"skipped\"\r\n\r\n" +
+                "ignored content\r\n--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"upload\"; filename=\"data.bin\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(fileContent);
+        body.write(("\r\n--" + BOUNDARY + "--\r\nepilogue").getBytes(StandardCharsets.UTF_8));
+        return body.toByteArray();
+    }
+}
@@ -1,19 +1,31 @@
 package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteStreams;
 import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.Response.IStatus;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
@@ -22,11 +34,15 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * This is a test that simulates the race condition where your HTTP client is operating
@@ -54,6 +70,27 @@ public class NanoHTTPDTest {
         assertEquals("content", dataStr, responseContent);
     }
 
+    @Test
+    public void startBindsBeforeReturning() throws Exception {
+        byte[] dataBytes = "hello".getBytes(StandardCharsets.US_ASCII);
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(0, newFixedLengthResponseFactory(NanoHTTPD.Response.Status.OK, "text/plain", dataBytes));
+        nano.start();
+        try {
+            int port = nano.getListeningPort();
+            assertTrue("port " + port, port > 0);
+            assertArrayEquals(dataBytes, readFully(new URL("http://localhost:" + port + "/")));
+            NanoHTTPD other = new SingleResponseNanoHTTPD(port, newFixedLengthResponseFactory(NanoHTTPD.Response.Status.OK, "text/plain", dataBytes));
+            try {
+                other.start();
+                other.stop();
+                fail("expected bind failure");
+            } catch (BindException expected) {
+            }
+        } finally {
+            nano.stop();
+        }
+    }
+
     private static byte[] readFully(URL url) throws IOException {
         System.out.format("fetching from %s%n", url);
         try (InputStream in = url.openStream()) {
@@ -176,6 +213,350 @@ public class NanoHTTPDTest {
         }
     }
 
+    @Test
+    public void unreadBodyIsDiscardedForKeepAlive() throws Exception {
+        int port = findUnusedPort();
+        byte[] bytes = "ok".getBytes(StandardCharsets.US_ASCII);
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(port, newFixedLengthResponseFactory(NanoHTTPD.Response.Status.OK, "text/plain", bytes));
+        nano.start();
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("POST /ignored HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\n0123456789" +
+                    "GET /next HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String first = readResponse(in);
+            assertTrue(first, first.startsWith("HTTP/1.1 200 ") && first.contains("Connection: keep-alive"));
+            String second = readResponse(in);
+            assertTrue(second, second.startsWith("HTTP/1.1 200 "));
+        } finally {
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void unreadBodyOverDrainLimitClosesConnection() throws Exception {
+        int port = findUnusedPort();
+        byte[] bytes = "ok".getBytes(StandardCharsets.US_ASCII);
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(port, newFixedLengthResponseFactory(NanoHTTPD.Response.Status.OK, "text/plain", bytes));
+        nano.setBodyDrainLimit(4);
+        nano.start();
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write("POST /ignored HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\n0123456789".getBytes(StandardCharsets.US_ASCII));
+            String response = new String(ByteStreams.toByteArray(socket.getInputStream()), StandardCharsets.US_ASCII);
+            assertTrue(response, response.startsWith("HTTP/1.1 200 ") && response.contains("Connection: close"));
+        } finally {
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void receiveBodyComputesSizeAndDigest() throws Exception {
+        int port = findUnusedPort();
+        byte[] content = new byte[300000];
+        new Random(content.length).nextBytes(content);
+        File destination = File.createTempFile("received", ".bin");
+        try {
+            NanoHTTPD nano = new SingleResponseNanoHTTPD(port, session -> {
+                try {
+                    ReceivedFile received = session.receiveBody(destination, "SHA-256");
+                    return NanoHTTPD.newFixedLengthResponse(received.getSize() + " " + received.getDigestHex());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            nano.start();
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/artifact").openConnection();
+                conn.setRequestMethod("PUT");
+                conn.setDoOutput(true);
+                try (OutputStream out = conn.getOutputStream()) {
+                    out.write(content);
+                }
+                String expectedDigest = BaseEncoding.base16().lowerCase().encode(Hashing.sha256().hashBytes(content).asBytes());
+                try (InputStream in = conn.getInputStream()) {
+                    assertEquals(content.length + " " + expectedDigest, new String(ByteStreams.toByteArray(in), StandardCharsets.US_ASCII));
+                }
+            } finally {
+                nano.stop();
+            }
+            assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        } finally {
+            destination.delete();
+        }
+    }
+
+    @Test
+    public void parseBodyStoresPutContent() throws Exception {
+        int port = findUnusedPort();
+        byte[] content = new byte[100000];
+        new Random(content.length).nextBytes(content);
+        List<byte[]> stored = new ArrayList<>();
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(port, session -> {
+            Map<String, String> files = new HashMap<>();
+            try {
+                session.parseBody(files);
+                stored.add(Files.readAllBytes(new File(files.get("content")).toPath()));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return NanoHTTPD.newFixedLengthResponse("stored");
+        });
+        nano.start();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+            conn.setRequestMethod("PUT");
+            conn.setDoOutput(true);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(content);
+            }
+            assertEquals(200, conn.getResponseCode());
+        } finally {
+            nano.stop();
+        }
+        assertArrayEquals(content, stored.get(0));
+    }
+
+    @Test
+    public void expectContinue() throws Exception {
+        int port = findUnusedPort();
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(port, session -> {
+            try {
+                return NanoHTTPD.newFixedLengthResponse(new String(ByteStreams.toByteArray(session.getInputStream()), StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        nano.setContinueHandler(session -> Long.parseLong(session.getHeaders().get("content-length")) > 10 ? NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.PAYLOAD_TOO_LARGE, NanoHTTPD.MIME_PLAINTEXT, "too large") : null);
+        nano.start();
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write("PUT /small HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\nExpect: 100-continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            byte[] interim = new byte["HTTP/1.1 100 Continue\r\n\r\n".length()];
+            ByteStreams.readFully(in, interim);
+            assertEquals("HTTP/1.1 100 Continue\r\n\r\n", new String(interim, StandardCharsets.US_ASCII));
+            out.write("hello".getBytes(StandardCharsets.US_ASCII));
+            String response = readResponse(in);
+            assertTrue(response, response.startsWith("HTTP/1.1 200 ") && response.endsWith("hello"));
+            out.write("PUT /large HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5000\r\nExpect: 100-continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            String rejection = new String(ByteStreams.toByteArray(in), StandardCharsets.US_ASCII);
+            assertTrue(rejection, rejection.startsWith("HTTP/1.1 413 ") && rejection.contains("Connection: close"));
+        } finally {
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void connectionOutcomesAreCounted() throws Exception {
+        int port = findUnusedPort();
+        byte[] bytes = "ok".getBytes(StandardCharsets.US_ASCII);
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(port, newFixedLengthResponseFactory(NanoHTTPD.Response.Status.OK, "text/plain", bytes));
+        nano.start();
+        try {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                ByteStreams.exhaust(socket.getInputStream());
+            }
+            awaitConnectionCount(nano, NanoHTTPD.ConnectionOutcome.CLOSE_REQUESTED, 1);
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                readResponse(socket.getInputStream());
+            }
+            awaitConnectionCount(nano, NanoHTTPD.ConnectionOutcome.EOF, 1);
+            assertEquals(0, nano.getConnectionCount(NanoHTTPD.ConnectionOutcome.ERROR));
+        } finally {
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void admissionControl() throws Exception {
+        byte[] bytes = "ok".getBytes(StandardCharsets.US_ASCII);
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(0, newFixedLengthResponseFactory(NanoHTTPD.Response.Status.OK, "text/plain", bytes));
+        AdmissionControl admissionControl = AdmissionControl.builder()
+                .maxConnectionsPerClient(1)
+                .requestRate(0.001, 2)
+                .build();
+        nano.setAdmissionControl(admissionControl);
+        nano.start();
+        try (Socket socket = new Socket("localhost", nano.getListeningPort())) {
+            byte[] request = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+            socket.getOutputStream().write(request);
+            String first = readResponse(socket.getInputStream());
+            assertTrue(first, first.startsWith("HTTP/1.1 200 "));
+            try (Socket second = new Socket("localhost", nano.getListeningPort())) {
+                String refused = new String(ByteStreams.toByteArray(second.getInputStream()), StandardCharsets.US_ASCII);
+                assertTrue(refused, refused.startsWith("HTTP/1.1 503 "));
+            }
+            socket.getOutputStream().write(request);
+            String within = readResponse(socket.getInputStream());
+            assertTrue(within, within.startsWith("HTTP/1.1 200 "));
+            socket.getOutputStream().write(request);
+            String limited = new String(ByteStreams.toByteArray(socket.getInputStream()), StandardCharsets.US_ASCII);
+            assertTrue(limited, limited.startsWith("HTTP/1.1 429 ") && limited.contains("Retry-After: 1000\r\n"));
+            awaitConnectionCount(nano, NanoHTTPD.ConnectionOutcome.REJECTED, 2);
+            assertEquals(1, admissionControl.getRejectedConnectionCount());
+            assertEquals(1, admissionControl.getRejectedRequestCount());
+            assertEquals(0, admissionControl.getConnectionCount("127.0.0.1"));
+        } finally {
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void http10KeepAlive() throws Exception {
+        int port = findUnusedPort();
+        byte[] bytes = "ok".getBytes(StandardCharsets.US_ASCII);
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(port, newFixedLengthResponseFactory(NanoHTTPD.Response.Status.OK, "text/plain", bytes));
+        nano.setKeepAlivePolicy(new NanoHTTPD.KeepAlivePolicy(2, 0));
+        nano.start();
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] request = "GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+            out.write(request);
+            String first = readResponse(in);
+            assertTrue(first, first.contains("Connection: keep-alive") && first.contains("Keep-Alive: max=1"));
+            out.write(request);
+            String second = readResponse(in);
+            assertTrue(second, second.contains("Connection: close"));
+            assertEquals(-1, in.read());
+        } finally {
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void idleTimeout() throws Exception {
+        int port = findUnusedPort();
+        byte[] bytes = "ok".getBytes(StandardCharsets.US_ASCII);
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(port, newFixedLengthResponseFactory(NanoHTTPD.Response.Status.OK, "text/plain", bytes));
+        nano.setKeepAlivePolicy(new NanoHTTPD.KeepAlivePolicy(0, 100));
+        nano.start();
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            readResponse(socket.getInputStream());
+            assertEquals(-1, socket.getInputStream().read());
+            awaitConnectionCount(nano, NanoHTTPD.ConnectionOutcome.TIMEOUT, 1);
+        } finally {
+            nano.stop();
+        }
+    }
+
+    @Test
+    public void drain() throws Exception {
+        byte[] bytes = "ok".getBytes(StandardCharsets.US_ASCII);
+        CountDownLatch slowRequestStarted = new CountDownLatch(1);
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(0, session -> {
+            if ("/slow".equals(session.getUri())) {
+                slowRequestStarted.countDown();
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "text/plain", new ByteArrayInputStream(bytes), bytes.length);
+        });
+        nano.start();
+        int port = nano.getListeningPort();
+        try (Socket idle = new Socket("localhost", port);
+             Socket busy = new Socket("localhost", port)) {
+            idle.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertTrue(readResponse(idle.getInputStream()).contains("Connection: keep-alive"));
+            busy.getOutputStream().write("GET /slow HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertTrue(slowRequestStarted.await(5, TimeUnit.SECONDS));
+            NanoHTTPD.DrainResult result = nano.drain(5, TimeUnit.SECONDS);
+            assertEquals("drained", 2, result.getDrained());
+            assertEquals("killed", 0, result.getKilled());
+            String response = readResponse(busy.getInputStream());
+            assertTrue(response, response.contains("Connection: close") && response.endsWith("ok"));
+            assertEquals(-1, idle.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void drainKillsAtDeadline() throws Exception {
+        CountDownLatch requestStarted = new CountDownLatch(1);
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(0, session -> {
+            requestStarted.countDown();
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException ignore) {
+            }
+            return NanoHTTPD.newFixedLengthResponse("late");
+        });
+        nano.start();
+        try (Socket socket = new Socket("localhost", nano.getListeningPort())) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertTrue(requestStarted.await(5, TimeUnit.SECONDS));
+            long start = System.nanoTime();
+            NanoHTTPD.DrainResult result = nano.drain(100, TimeUnit.MILLISECONDS);
+            assertTrue("returned at deadline", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+            assertEquals("drained", 0, result.getDrained());
+            assertEquals("killed", 1, result.getKilled());
+        }
+    }
+
+    @Test
+    public void connectionsAreListed() throws Exception {
+        byte[] bytes = "ok".getBytes(StandardCharsets.US_ASCII);
+        NanoHTTPD nano = new SingleResponseNanoHTTPD(0, newFixedLengthResponseFactory(NanoHTTPD.Response.Status.OK, "text/plain", bytes));
+        nano.start();
+        try (Socket socket = new Socket("localhost", nano.getListeningPort())) {
+            long before = System.currentTimeMillis();
+            for (int i = 0; i < 2; i++) {
+                socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                readResponse(socket.getInputStream());
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!(nano.getConnections().size() == 1 && nano.getConnections().get(0).isIdle()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            List<NanoHTTPD.ConnectionInfo> connections = nano.getConnections();
+            assertEquals(connections.toString(), 1, connections.size());
+            NanoHTTPD.ConnectionInfo info = connections.get(0);
+            assertTrue(info.toString(), info.isIdle());
+            assertEquals("requests", 2, info.getRequestCount());
+            assertEquals("remote port", socket.getLocalPort(), ((InetSocketAddress) info.getRemoteAddress()).getPort());
+            assertTrue("start time", info.getStartTime() >= before - 1000 && info.getStartTime() <= System.currentTimeMillis());
+            assertEquals("running", 1, ((NanoHTTPD.DefaultAsyncRunner) nano.asyncRunner).getRunning().size());
+        } finally {
+            nano.stop();
+        }
+    }
+
+    private static void awaitConnectionCount(NanoHTTPD nano, NanoHTTPD.ConnectionOutcome outcome, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (nano.getConnectionCount(outcome) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(outcome.toString(), expected, nano.getConnectionCount(outcome));
+    }
+
+    /**
+     * Reads one response with a content-length header.
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            head.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : 0;
+        }
+        String headString = new String(head.toByteArray(), StandardCharsets.US_ASCII);
+        Matcher m = Pattern.compile("(?i)content-length: (\\d+)").matcher(headString);
+        assertTrue(headString, m.find());
+        byte[] body = new byte[Integer.parseInt(m.group(1))];
+        ByteStreams.readFully(in, body);
+        return headString + new String(body, StandardCharsets.US_ASCII);
+    }
+
     private static int findUnusedPort() throws IOException {
         try (ServerSocket socket = new ServerSocket(0)) {
             return socket.getLocalPort();
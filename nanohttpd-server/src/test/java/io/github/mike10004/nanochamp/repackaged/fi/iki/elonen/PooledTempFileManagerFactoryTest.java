@@ -0,0 +1,74 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFile;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFileManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PooledTempFileManagerFactoryTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void releasedFilesAreRecycled() throws Exception {
+        File dir = temporaryFolder.newFolder();
+        PooledTempFileManagerFactory factory = new PooledTempFileManagerFactory(dir, 1, 0);
+        TempFileManager manager = factory.create();
+        assertEquals("no file is created before it is requested", 0, dir.list().length);
+        TempFile first = manager.createTempFile(null);
+        TempFile second = manager.createTempFile(null);
+        try (OutputStream out = first.open()) {
+            out.write(new byte[1000]);
+        }
+        manager.clear();
+        awaitPooledCount(factory, 1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dir.list().length > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        File[] remaining = dir.listFiles();
+        assertEquals("files beyond the pool size are deleted", 1, remaining.length);
+        assertEquals("recycled file is truncated", 0, remaining[0].length());
+        TempFile reused = factory.create().createTempFile(null);
+        assertTrue(reused.getName().equals(first.getName()) || reused.getName().equals(second.getName()));
+        assertEquals(0, factory.getPooledCount());
+    }
+
+    @Test
+    public void preallocateAndClose() throws Exception {
+        File dir = temporaryFolder.newFolder();
+        PooledTempFileManagerFactory factory = new PooledTempFileManagerFactory(dir, 4, 3);
+        awaitPooledCount(factory, 3);
+        assertEquals(3, dir.list().length);
+        factory.close();
+        assertEquals(0, factory.getPooledCount());
+        assertEquals(0, dir.list().length);
+        TempFileManager manager = factory.create();
+        TempFile tempFile = manager.createTempFile(null);
+        assertFalse(new File(tempFile.getName()).length() > 0);
+        manager.clear();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dir.list().length > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("files released after close are deleted", 0, dir.list().length);
+        assertEquals(0, factory.getPooledCount());
+    }
+
+    private static void awaitPooledCount(PooledTempFileManagerFactory factory, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (factory.getPooledCount() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("pooled count", expected, factory.getPooledCount());
+    }
+}
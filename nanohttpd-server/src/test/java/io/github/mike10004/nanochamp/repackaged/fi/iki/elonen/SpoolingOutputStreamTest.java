@@ -0,0 +1,90 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.RequestBodyException;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpoolingOutputStreamTest {
+
+    @Test
+    public void spoolToDiskWhenBudgetIsUsedUp() throws Exception {
+        byte[] content = new byte[40000];
+        new Random(content.length).nextBytes(content);
+        MemoryBudget budget = new MemoryBudget(100000);
+        NanoHTTPD.DefaultTempFileManager tempFileManager = new NanoHTTPD.DefaultTempFileManager();
+        try {
+            SpoolingOutputStream other = new SpoolingOutputStream(budget, tempFileManager, -1);
+            other.write(new byte[70000]);
+            assertFalse(other.isSpooled());
+            SpoolingOutputStream spool = new SpoolingOutputStream(budget, tempFileManager, -1);
+            spool.write(content, 0, 100);
+            spool.write(content, 100, content.length - 100);
+            assertTrue(spool.isSpooled());
+            other.close();
+            assertEquals(0, budget.getUsed());
+            assertArrayEquals(content, spool.toByteArray());
+            assertEquals(content.length, budget.getUsed());
+            spool.close();
+            assertEquals(0, budget.getUsed());
+        } finally {
+            tempFileManager.clear();
+        }
+    }
+
+    @Test
+    public void inMemoryBodyOverHalfTheBudget() throws Exception {
+        byte[] content = new byte[70000];
+        new Random(content.length).nextBytes(content);
+        MemoryBudget budget = new MemoryBudget(100000);
+        NanoHTTPD.DefaultTempFileManager tempFileManager = new NanoHTTPD.DefaultTempFileManager();
+        try (SpoolingOutputStream spool = new SpoolingOutputStream(budget, tempFileManager, -1)) {
+            spool.write(content);
+            assertFalse(spool.isSpooled());
+            assertArrayEquals(content, spool.toByteArray());
+            assertEquals(content.length, budget.getUsed());
+        } finally {
+            tempFileManager.clear();
+        }
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void rejectWhenBudgetCannotCoverBody() throws Exception {
+        MemoryBudget budget = new MemoryBudget(20000);
+        NanoHTTPD.DefaultTempFileManager tempFileManager = new NanoHTTPD.DefaultTempFileManager();
+        try (SpoolingOutputStream spool = new SpoolingOutputStream(budget, tempFileManager, -1)) {
+            spool.write(new byte[30000]);
+            try {
+                spool.toByteArray();
+                fail("expected exception");
+            } catch (RequestBodyException e) {
+                assertEquals(NanoHTTPD.Response.Status.SERVICE_UNAVAILABLE, e.getStatus());
+            }
+        } finally {
+            tempFileManager.clear();
+        }
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void rejectBodyOverMaxSize() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100000);
+        try (SpoolingOutputStream spool = new SpoolingOutputStream(budget, new NanoHTTPD.DefaultTempFileManager(), 1000)) {
+            spool.write(new byte[600]);
+            try {
+                spool.write(new byte[600]);
+                fail("expected exception");
+            } catch (RequestBodyException e) {
+                assertEquals(NanoHTTPD.Response.Status.PAYLOAD_TOO_LARGE, e.getStatus());
+            }
+        }
+        assertEquals(0, budget.getUsed());
+    }
+}
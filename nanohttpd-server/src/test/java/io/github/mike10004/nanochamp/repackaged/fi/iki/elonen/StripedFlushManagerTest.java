@@ -0,0 +1,72 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.FlushManager.FlushTicket;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StripedFlushManagerTest {
+
+    @Test
+    public void moreTicketsThanPhaserParties() throws Exception {
+        StripedFlushManager flushManager = new StripedFlushManager(4);
+        List<FlushTicket> tickets = new ArrayList<>();
+        for (int i = 0; i < 70000; i++) {
+            tickets.add(flushManager.open());
+        }
+        assertEquals(70000, flushManager.getOpenCount());
+        assertFalse("open tickets", flushManager.flush(10, TimeUnit.MILLISECONDS));
+        tickets.forEach(FlushTicket::close);
+        assertTrue("closed tickets", flushManager.flush(1, TimeUnit.SECONDS));
+        assertEquals(0, flushManager.getOpenCount());
+    }
+
+    @Test
+    public void flushIgnoresLaterTickets() throws Exception {
+        StripedFlushManager flushManager = new StripedFlushManager(4);
+        FlushTicket early = flushManager.open();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> flushed = executor.submit(() -> flushManager.flush(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            FlushTicket late = flushManager.open();
+            assertFalse("waits for the early ticket", flushed.isDone());
+            early.close();
+            assertTrue("flushed while the late ticket is open", flushed.get(5, TimeUnit.SECONDS));
+            assertFalse("late ticket pending", flushManager.flush(10, TimeUnit.MILLISECONDS));
+            late.close();
+            flushManager.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void defaultTimedFlush() throws Exception {
+        StripedFlushManager striped = new StripedFlushManager(4);
+        FlushManager flushManager = new FlushManager() {
+            @Override
+            public FlushTicket open() {
+                return striped.open();
+            }
+
+            @Override
+            public void flush() throws InterruptedException {
+                striped.flush();
+            }
+        };
+        FlushTicket ticket = flushManager.open();
+        assertFalse("open ticket", flushManager.flush(20, TimeUnit.MILLISECONDS));
+        ticket.close();
+        assertTrue("closed ticket", flushManager.flush(5, TimeUnit.SECONDS));
+    }
+}
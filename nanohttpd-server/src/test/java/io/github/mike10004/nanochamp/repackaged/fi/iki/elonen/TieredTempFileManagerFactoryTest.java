@@ -0,0 +1,66 @@
+package io.github.mike10004.nanochamp.repackaged.fi.iki.elonen;
+
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFile;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD.TempFileManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TieredTempFileManagerFactoryTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void fallBackWhenCapacityIsUsedUp() throws Exception {
+        File fastDir = temporaryFolder.newFolder();
+        File diskDir = temporaryFolder.newFolder();
+        TieredTempFileManagerFactory factory = new TieredTempFileManagerFactory(fastDir, 1000, new PooledTempFileManagerFactory(diskDir, 0, 0));
+        TempFileManager manager = factory.create();
+        TempFile first = manager.createTempFile(null);
+        assertEquals(fastDir, new File(first.getName()).getParentFile());
+        try (OutputStream out = first.open()) {
+            out.write(new byte[1000]);
+        }
+        assertEquals(1000, factory.getFastBytes());
+        TempFile second = manager.createTempFile(null);
+        assertEquals(diskDir, new File(second.getName()).getParentFile());
+        manager.clear();
+        assertEquals(0, factory.getFastBytes());
+        TempFile third = factory.create().createTempFile(null);
+        assertEquals(fastDir, new File(third.getName()).getParentFile());
+        factory.close();
+    }
+
+    @Test
+    public void moveToFallbackWhenWriteExceedsCapacity() throws Exception {
+        File fastDir = temporaryFolder.newFolder();
+        File diskDir = temporaryFolder.newFolder();
+        TieredTempFileManagerFactory factory = new TieredTempFileManagerFactory(fastDir, 1000, new PooledTempFileManagerFactory(diskDir, 0, 0));
+        TempFileManager manager = factory.create();
+        TempFile file = manager.createTempFile(null);
+        File fastFile = new File(file.getName());
+        byte[] content = new byte[1200];
+        Arrays.fill(content, (byte) 'x');
+        try (OutputStream out = file.open()) {
+            out.write(content, 0, 600);
+            assertEquals(600, factory.getFastBytes());
+            out.write(content, 600, 600);
+        }
+        assertEquals("reservation given back", 0, factory.getFastBytes());
+        assertEquals(diskDir, new File(file.getName()).getParentFile());
+        assertArrayEquals(content, Files.readAllBytes(new File(file.getName()).toPath()));
+        assertEquals("fast file emptied", 0, fastFile.length());
+        manager.clear();
+        assertEquals(0, factory.getFastBytes());
+        factory.close();
+    }
+}
@@ -7,8 +7,15 @@ import io.github.mike10004.nanochamp.server.NanoServer.RequestHandler;
 import org.apache.http.HttpHeaders;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
@@ -76,4 +83,108 @@ public class NanoControlTest {
         assertEquals(expectedcontent, content);
         assertEquals("num calls", 1, stopCalls.get());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void flushRoute() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        NanoServer server = NanoServer.builder()
+                .route("slow", session -> !"/slow".equals(session.getUri()) ? null : NanoHTTPD.newChunkedResponse(Response.Status.OK, "text/plain", new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        return -1;
+                    }
+                }))
+                .getPath("/fast", request -> NanoResponse.status(200).plainTextUtf8("fast"))
+                .build();
+        try (NanoControl control = server.startServer();
+             Socket socket = new Socket("localhost", control.getListeningPort())) {
+            socket.getOutputStream().write("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (control.getInFlightCount("slow") == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("slow in flight", 1, control.getInFlightCount("slow"));
+            try (InputStream in = control.baseUri().resolve("/fast").toURL().openStream()) {
+                assertEquals("fast", new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+            }
+            assertTrue("fast flushed", control.flush("/fast", 1, TimeUnit.SECONDS));
+            assertTrue("routes flushed", control.flush(Arrays.asList("/fast", "unknown"), 1, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonMap("slow", 1L), control.getInFlightCounts());
+            assertFalse("slow pending", control.flush("slow", 20, TimeUnit.MILLISECONDS));
+            assertFalse("all pending", control.flush(20, TimeUnit.MILLISECONDS));
+            assertFalse("slow busy", control.awaitQuiescence("slow", 20, TimeUnit.MILLISECONDS));
+            release.countDown();
+            assertTrue("slow quiescent", control.awaitQuiescence("slow", 5, TimeUnit.SECONDS));
+            assertEquals(0, control.getInFlightCount("slow"));
+            assertEquals(Collections.emptyMap(), control.getInFlightCounts());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void drainOnClose() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        NanoServer server = NanoServer.builder()
+                .get(session -> {
+                    entered.countDown();
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return NanoResponse.status(200).plainTextUtf8("done");
+                })
+                .drainOnClose(5, TimeUnit.SECONDS)
+                .build();
+        NanoControl control = server.startServer();
+        try (Socket socket = new Socket("localhost", control.getListeningPort())) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            control.close();
+            String response = new String(ByteStreams.toByteArray(socket.getInputStream()), StandardCharsets.US_ASCII);
+            assertTrue(response, response.startsWith("HTTP/1.1 200 ") && response.endsWith("done"));
+        } finally {
+            control.close();
+        }
+    }
+
+    @Test
+    public void checkContinue() throws Exception {
+        NanoServer server = NanoServer.builder()
+                .checkContinue(request -> "/upload".equals(request.uri.getPath()),
+                        request -> Long.parseLong(request.headers.apply("content-length")) > 10 ? NanoResponse.status(413).plainTextUtf8("too big") : null)
+                .handle(request -> "/upload".equals(request.uri.getPath()), request -> {
+                    try {
+                        return NanoResponse.status(200).plainTextUtf8(new String(ByteStreams.toByteArray(request.session.getInputStream()), StandardCharsets.US_ASCII));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                })
+                .build();
+        try (NanoControl control = server.startServer()) {
+            try (Socket socket = new Socket("localhost", control.getListeningPort())) {
+                socket.getOutputStream().write("POST /upload HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\nContent-Length: 100\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                String response = new String(ByteStreams.toByteArray(socket.getInputStream()), StandardCharsets.US_ASCII);
+                assertTrue(response, response.startsWith("HTTP/1.1 413 ") && response.endsWith("too big"));
+            }
+            try (Socket socket = new Socket("localhost", control.getListeningPort())) {
+                socket.getOutputStream().write("POST /upload HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\nContent-Length: 5\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                InputStream in = socket.getInputStream();
+                byte[] interim = new byte["HTTP/1.1 100 Continue\r\n\r\n".length()];
+                ByteStreams.readFully(in, interim);
+                assertEquals("HTTP/1.1 100 Continue\r\n\r\n", new String(interim, StandardCharsets.US_ASCII));
+                socket.getOutputStream().write("hello".getBytes(StandardCharsets.US_ASCII));
+                String response = new String(ByteStreams.toByteArray(in), StandardCharsets.US_ASCII);
+                assertTrue(response, response.startsWith("HTTP/1.1 200 ") && response.endsWith("hello"));
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.mike10004.nanochamp.server;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NanoRuntimeTest {
+
+    @Test
+    public void serversShareWorkers() throws Exception {
+        try (NanoRuntime runtime = new NanoRuntime();
+             CloseableHttpClient client = HttpClients.createSystem()) {
+            NanoControl alpha = runtime.startVirtualHost(threadNameServer("alpha"), "alpha.test");
+            NanoControl beta = runtime.startVirtualHost(threadNameServer("beta"), "Beta.Test");
+            NanoControl gamma = runtime.start(threadNameServer("gamma"));
+            assertEquals("shared port", runtime.getVirtualHostPort(), alpha.getListeningPort());
+            assertEquals("shared port", alpha.getListeningPort(), beta.getListeningPort());
+            assertTrue("own port", gamma.getListeningPort() != alpha.getListeningPort());
+            String alphaBody = fetch(client, alpha.baseUri(), "alpha.test:" + alpha.getListeningPort());
+            assertTrue(alphaBody, alphaBody.startsWith("alpha NanoRuntime Worker #"));
+            String betaBody = fetch(client, beta.baseUri(), "beta.test");
+            assertTrue(betaBody, betaBody.startsWith("beta NanoRuntime Worker #"));
+            String gammaBody = fetch(client, gamma.baseUri(), null);
+            assertTrue(gammaBody, gammaBody.startsWith("gamma NanoRuntime Worker #"));
+            assertEquals("requests heard", 1, alpha.getNumRequestsHeard());
+            alpha.close();
+            assertEquals("Unknown Host", fetch(client, beta.baseUri(), "alpha.test"));
+            assertEquals("beta still served", betaBody.substring(0, 5), fetch(client, beta.baseUri(), "beta.test").substring(0, 5));
+        }
+    }
+
+    @Test
+    public void closedServersAreForgotten() throws Exception {
+        try (NanoRuntime runtime = new NanoRuntime()) {
+            NanoControl kept = runtime.start(threadNameServer("kept"));
+            for (int i = 0; i < 10; i++) {
+                runtime.start(threadNameServer("closed" + i)).close();
+            }
+            assertEquals(1, runtime.getNumServers());
+            kept.close();
+            assertEquals(0, runtime.getNumServers());
+        }
+    }
+
+    @Test
+    public void normalizeHost() {
+        assertEquals("example.com", NanoRuntime.normalizeHost("Example.COM:8080"));
+        assertEquals("[::1]", NanoRuntime.normalizeHost("[::1]:8080"));
+        assertEquals("localhost", NanoRuntime.normalizeHost("localhost"));
+        assertEquals("", NanoRuntime.normalizeHost(null));
+    }
+
+    private static NanoServer threadNameServer(String name) {
+        return NanoServer.builder()
+                .get(session -> NanoResponse.status(200).plainTextUtf8(name + " " + Thread.currentThread().getName()))
+                .build();
+    }
+
+    private static String fetch(CloseableHttpClient client, URI uri, String host) throws Exception {
+        HttpGet request = new HttpGet(uri);
+        if (host != null) {
+            request.setHeader("Host", host);
+        }
+        try (CloseableHttpResponse response = client.execute(request)) {
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package io.github.mike10004.nanochamp.server;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
 import com.google.common.net.HttpHeaders;
 import com.google.common.net.MediaType;
 import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.NanoHTTPD;
+import io.github.mike10004.nanochamp.repackaged.fi.iki.elonen.SocketOptions;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.text.StringEscapeUtils;
 import org.apache.http.Header;
@@ -16,17 +18,27 @@ import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import org.junit.Assume;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Base64;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -35,6 +47,7 @@ import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -85,6 +98,91 @@ public class NanoServerTest {
         }
     }
 
+    @Test
+    public void socketOptions() throws Exception {
+        printTitle("socketOptions");
+        NanoServer server = NanoServer.builder()
+                .getPath("/hello", session -> NanoResponse.status(200).plainTextUtf8("hello"))
+                .socketOptions(SocketOptions.builder()
+                        .backlog(1024)
+                        .tcpNoDelay(true)
+                        .keepAlive(true)
+                        .sendBufferSize(64 * 1024)
+                        .receiveBufferSize(64 * 1024)
+                        .headerReadTimeout(200)
+                        .build())
+                .build();
+        try (NanoControl control = server.startServer();
+             CloseableHttpClient client = HttpClients.createSystem()) {
+            try (CloseableHttpResponse response = client.execute(new HttpGet(new URIBuilder(control.baseUri()).setPath("/hello").build()))) {
+                assertEquals("message", "hello", EntityUtils.toString(response.getEntity()));
+            }
+            try (Socket socket = new Socket(control.baseUri().getHost(), control.getListeningPort())) {
+                socket.setSoTimeout(5000);
+                // an incomplete header is abandoned after the header read timeout
+                socket.getOutputStream().write("GET /hello HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+                long start = System.nanoTime();
+                assertEquals("end of stream", -1, socket.getInputStream().read());
+                assertTrue("closed before read timeout", System.nanoTime() - start < 4_000_000_000L);
+            }
+        }
+    }
+
+    @Test
+    public void multipleAcceptors() throws Exception {
+        printTitle("multipleAcceptors");
+        NanoServer server = NanoServer.builder()
+                .getPath("/hello", session -> NanoResponse.status(200).plainTextUtf8("hello"))
+                .socketOptions(SocketOptions.builder().acceptors(4).build())
+                .build();
+        int numRequests = 20;
+        try (NanoControl control = server.startServer()) {
+            for (int i = 0; i < numRequests; i++) {
+                try (CloseableHttpClient client = HttpClients.createSystem();
+                     CloseableHttpResponse response = client.execute(new HttpGet(new URIBuilder(control.baseUri()).setPath("/hello").build()))) {
+                    assertEquals("message", "hello", EntityUtils.toString(response.getEntity()));
+                }
+            }
+            assertEquals("accepted", numRequests, control.getNumConnectionsAccepted());
+        }
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void unixSocketOnly() throws Exception {
+        printTitle("unixSocketOnly");
+        Class<?> addressClass;
+        try {
+            addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+        } catch (ClassNotFoundException e) {
+            Assume.assumeTrue("Unix domain sockets require Java 16", false);
+            return;
+        }
+        Path path = temporaryFolder.getRoot().toPath().resolve("nano.sock");
+        NanoServer server = NanoServer.builder()
+                .getPath("/hello", session -> NanoResponse.status(200).plainTextUtf8("hello"))
+                .unixSocketOnly(path)
+                .build();
+        try (NanoControl control = server.startServer()) {
+            assertEquals("socket path", path, control.getUnixSocketPath());
+            assertEquals("no TCP port", -1, control.getListeningPort());
+            SocketAddress address = (SocketAddress) addressClass.getMethod("of", Path.class).invoke(null, path);
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            try (SocketChannel channel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix)) {
+                channel.connect(address);
+                OutputStream out = Channels.newOutputStream(channel);
+                out.write("GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                String response = new String(ByteStreams.toByteArray(Channels.newInputStream(channel)), StandardCharsets.US_ASCII);
+                assertTrue(response, response.startsWith("HTTP/1.1 200"));
+                assertTrue(response, response.endsWith("\r\n\r\nhello"));
+            }
+        }
+        assertFalse("socket file deleted", path.toFile().exists());
+    }
+
     @Test
     public void customHeaders() throws Exception {
         printTitle("customHeaders");
@@ -0,0 +1,99 @@
+package io.github.mike10004.nanochamp.server;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SseBroadcasterTest {
+
+    @Test
+    public void encode() {
+        String expected = "id: 3\nevent: update\ndata: a\ndata: b\n\n";
+        assertEquals(expected, new String(SseBroadcaster.encode(3, "update", "a\nb"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void slowSubscriberIsEvicted() throws Exception {
+        SseBroadcaster broadcaster = SseBroadcaster.builder().queueCapacity(2).build();
+        SseBroadcaster.Subscriber slow = broadcaster.subscribe(null);
+        broadcaster.send("1");
+        broadcaster.send("2");
+        assertEquals(1, broadcaster.getSubscriberCount());
+        broadcaster.send("3");
+        assertTrue("evicted", slow.isEvicted());
+        assertEquals(0, broadcaster.getSubscriberCount());
+        assertEquals(1L, broadcaster.getEvictionCount());
+        assertArrayEquals(new byte[0], slow.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void replayAfterLastEventId() throws Exception {
+        SseBroadcaster broadcaster = SseBroadcaster.builder().replayCapacity(2).build();
+        broadcaster.send("a");
+        broadcaster.send("b");
+        long idOfC = broadcaster.send("c");
+        SseBroadcaster.Subscriber subscriber = broadcaster.subscribe(1L);
+        assertArrayEquals(SseBroadcaster.encode(2, null, "b"), subscriber.poll(1, TimeUnit.SECONDS));
+        assertArrayEquals(SseBroadcaster.encode(idOfC, null, "c"), subscriber.poll(1, TimeUnit.SECONDS));
+        assertNull(subscriber.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void replayLargerThanQueue() throws Exception {
+        SseBroadcaster broadcaster = SseBroadcaster.builder().queueCapacity(1).replayCapacity(3).build();
+        broadcaster.send("a");
+        broadcaster.send("b");
+        broadcaster.send("c");
+        SseBroadcaster.Subscriber subscriber = broadcaster.subscribe(0L);
+        long idOfD = broadcaster.send("d");
+        assertFalse("not evicted", subscriber.isEvicted());
+        for (long id = 1; id <= idOfD; id++) {
+            assertArrayEquals(SseBroadcaster.encode(id, null, new String(new char[]{(char) ('a' + id - 1)})), subscriber.poll(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void eventTypeWithLineBreakIsRejected() {
+        SseBroadcaster.builder().build().send("update\ndata: injected", "x");
+    }
+
+    @Test
+    public void streamEvents() throws Exception {
+        SseBroadcaster broadcaster = SseBroadcaster.builder().build();
+        NanoServer server = NanoServer.builder()
+                .sse("/events", broadcaster)
+                .build();
+        List<String> lines = new ArrayList<>();
+        try (NanoControl control = server.startServer()) {
+            broadcaster.send("missed");
+            HttpURLConnection conn = (HttpURLConnection) new URL(control.baseUri().resolve("/events").toString()).openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            conn.setRequestProperty("Last-Event-ID", "0");
+            assertEquals(200, conn.getResponseCode());
+            assertTrue(conn.getContentType().startsWith(SseBroadcaster.MIME_TYPE));
+            assertNull("content encoding", conn.getContentEncoding());
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                broadcaster.send("greeting", "hello");
+                while (lines.size() < 7) {
+                    lines.add(reader.readLine());
+                }
+                broadcaster.close();
+            }
+        }
+        assertEquals(Arrays.asList("id: 1", "data: missed", "", "id: 2", "event: greeting", "data: hello", ""), lines);
+    }
+}
@@ -0,0 +1,255 @@
+package io.github.mike10004.nanochamp.server;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class WebSocketTest {
+
+    @Test
+    public void computeAccept() {
+        // example from RFC 6455 section 1.3
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocket.computeAccept("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void echo() throws Exception {
+        List<Integer> closeCodes = new CopyOnWriteArrayList<>();
+        CountDownLatch closed = new CountDownLatch(1);
+        WebSocketHandler echoHandler = new WebSocketHandler() {
+            @Override
+            public void onText(WebSocket socket, String text) {
+                try {
+                    socket.sendText(text);
+                    socket.sendText(text.toUpperCase());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void onBinary(WebSocket socket, ByteBuffer data) {
+                byte[] copy = new byte[data.remaining()];
+                data.get(copy);
+                try {
+                    socket.sendBinary(copy);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void onClose(WebSocket socket, int code, String reason) {
+                closeCodes.add(code);
+                closed.countDown();
+            }
+        };
+        NanoServer server = NanoServer.builder()
+                .websocket("/ws", echoHandler)
+                .build();
+        try (NanoControl control = server.startServer();
+             Socket socket = new Socket("localhost", control.getListeningPort())) {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(("GET /ws HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "Upgrade: websocket\r\n" +
+                    "Connection: keep-alive, Upgrade\r\n" +
+                    "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                    "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String head = readHead(in);
+            assertTrue(head, head.startsWith("HTTP/1.1 101 "));
+            assertTrue(head, head.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+            out.write(maskedFrame(0x1, "hello".getBytes(StandardCharsets.UTF_8)));
+            assertEquals("hello", readTextFrame(in));
+            assertEquals("HELLO", readTextFrame(in));
+            byte[] large = new byte[70000];
+            for (int i = 0; i < large.length; i++) {
+                large[i] = (byte) i;
+            }
+            out.write(maskedFrame(0x2, large));
+            assertEquals(0x82, in.readUnsignedByte());
+            assertEquals(127, in.readUnsignedByte());
+            assertEquals(large.length, in.readLong());
+            byte[] echoed = new byte[large.length];
+            in.readFully(echoed);
+            assertArrayEquals(large, echoed);
+            out.write(maskedFrame(0x8, new byte[]{0x03, (byte) 0xE8}));
+            assertEquals(0x88, in.readUnsignedByte());
+            assertEquals(2, in.readUnsignedByte());
+            assertEquals(WebSocket.CLOSE_NORMAL, in.readUnsignedShort());
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+        }
+        assertEquals(WebSocket.CLOSE_NORMAL, closeCodes.get(0).intValue());
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void pushOverUnixSocket() throws Exception {
+        Class<?> addressClass;
+        try {
+            addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+        } catch (ClassNotFoundException e) {
+            Assume.assumeTrue("Unix domain sockets require Java 16", false);
+            return;
+        }
+        BlockingQueue<WebSocket> opened = new ArrayBlockingQueue<>(1);
+        Path path = temporaryFolder.getRoot().toPath().resolve("ws.sock");
+        NanoServer server = NanoServer.builder()
+                .websocket("/ws", new WebSocketHandler() {
+                    @Override
+                    public void onOpen(WebSocket socket) {
+                        opened.add(socket);
+                    }
+                })
+                .unixSocketOnly(path)
+                .build();
+        try (NanoControl control = server.startServer()) {
+            SocketAddress address = (SocketAddress) addressClass.getMethod("of", Path.class).invoke(null, path);
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            try (SocketChannel channel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix)) {
+                channel.connect(address);
+                OutputStream out = Channels.newOutputStream(channel);
+                DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+                out.write(("GET /ws HTTP/1.1\r\n" +
+                        "Host: localhost\r\n" +
+                        "Upgrade: websocket\r\n" +
+                        "Connection: Upgrade\r\n" +
+                        "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                        "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                String head = readHead(in);
+                assertTrue(head, head.startsWith("HTTP/1.1 101 "));
+                WebSocket socket = opened.poll(5, TimeUnit.SECONDS);
+                assertNotNull("opened", socket);
+                // the connection thread is blocked reading while this thread writes
+                Thread.sleep(100);
+                ExecutorService pusher = Executors.newSingleThreadExecutor();
+                try {
+                    pusher.submit(() -> {
+                        socket.sendText("pushed");
+                        return null;
+                    }).get(5, TimeUnit.SECONDS);
+                } finally {
+                    pusher.shutdownNow();
+                }
+                assertEquals("pushed", readTextFrame(in));
+            }
+        }
+    }
+
+    @Test
+    public void rejectNonUpgradeRequest() throws Exception {
+        NanoServer server = NanoServer.builder()
+                .websocket("/ws", new WebSocketHandler() {})
+                .build();
+        try (NanoControl control = server.startServer()) {
+            HttpURLConnection conn = (HttpURLConnection) control.baseUri().resolve("/ws").toURL().openConnection();
+            assertEquals(400, conn.getResponseCode());
+        }
+    }
+
+    @Test
+    public void invalidFramesFailTheConnection() throws Exception {
+        NanoServer server = NanoServer.builder()
+                .websocket("/ws", new WebSocketHandler() {})
+                .build();
+        try (NanoControl control = server.startServer()) {
+            assertClosedWith(control, maskedFrame(0xB, new byte[0]), WebSocket.CLOSE_PROTOCOL_ERROR);
+            assertClosedWith(control, maskedFrame(0x8, new byte[]{0x03}), WebSocket.CLOSE_PROTOCOL_ERROR);
+            assertClosedWith(control, maskedFrame(0x1, new byte[]{(byte) 0xC3, 0x28}), WebSocket.CLOSE_INVALID_PAYLOAD);
+        }
+    }
+
+    private static void assertClosedWith(NanoControl control, byte[] frame, int expectedCode) throws IOException {
+        try (Socket socket = new Socket("localhost", control.getListeningPort())) {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(("GET /ws HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "Upgrade: websocket\r\n" +
+                    "Connection: Upgrade\r\n" +
+                    "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                    "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String head = readHead(in);
+            assertTrue(head, head.startsWith("HTTP/1.1 101 "));
+            out.write(frame);
+            assertEquals(0x88, in.readUnsignedByte());
+            int length = in.readUnsignedByte();
+            assertTrue("close payload " + length, length >= 2);
+            assertEquals(expectedCode, in.readUnsignedShort());
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            head.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : 0;
+        }
+        return new String(head.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static String readTextFrame(DataInputStream in) throws IOException {
+        assertEquals(0x81, in.readUnsignedByte());
+        int len = in.readUnsignedByte();
+        byte[] payload = new byte[len];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] maskedFrame(int opcode, byte[] payload) {
+        byte[] mask = {0x11, 0x22, 0x33, 0x44};
+        ByteBuffer frame = ByteBuffer.allocate(payload.length + 14);
+        frame.put((byte) (0x80 | opcode));
+        if (payload.length < 126) {
+            frame.put((byte) (0x80 | payload.length));
+        } else if (payload.length < 65536) {
+            frame.put((byte) (0x80 | 126)).putShort((short) payload.length);
+        } else {
+            frame.put((byte) (0x80 | 127)).putLong(payload.length);
+        }
+        frame.put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.put((byte) (payload[i] ^ mask[i & 3]));
+        }
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+}